@@ -0,0 +1,54 @@
+package rainbow.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import rainbow.scheduler.partition.Mask;
+import rainbow.scheduler.partition.Partition;
+import rainbow.scheduler.partition.PartitionManager;
+
+/*
+ * Partitions requested from one partition manager by several handler
+ * threads at once, run with -t to change the number of threads
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConcurrentAllocationBenchmark {
+
+	private PartitionManager manager;
+
+	@Setup
+	public void setUp() {
+		// Big enough that the benchmark never runs out of blocks
+		manager = new PartitionManager(Mask.parse("?a?a?a?a?a?a?a?a?a?a"));
+	}
+
+	/*
+	 * One partition in sixteen fails and comes back through the free list
+	 */
+	@Benchmark
+	public Partition requestAndFinish() {
+		Partition p = manager.requestPartition(2);
+		if (ThreadLocalRandom.current().nextInt(16) == 0) {
+			manager.notifyFailure(p);
+		} else {
+			manager.notifyComplete(p);
+		}
+		return p;
+	}
+}
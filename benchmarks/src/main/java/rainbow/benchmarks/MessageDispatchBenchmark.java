@@ -0,0 +1,118 @@
+package rainbow.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import rainbow.scheduler.application.Assignment;
+import rainbow.scheduler.application.Controller;
+import rainbow.scheduler.application.HashQuery;
+import rainbow.scheduler.application.LoopbackTransport;
+import rainbow.scheduler.application.MessageHandler;
+import rainbow.scheduler.application.SchedulerServer;
+import rainbow.scheduler.application.message.LocalWorkBlockComplete;
+import rainbow.scheduler.partition.Mask;
+import rainbow.scheduler.partition.Partition;
+import rainbowpc.Message;
+
+/*
+ * Cost of handling a completed work block on the scheduler thread, the most
+ * common message. Each call completes an assignment of the next
+ * controller, which records the block, updates the rate and hands out a new
+ * partition
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageDispatchBenchmark {
+
+	@Param({"1", "16", "256", "4096"})
+	public int controllers;
+	private File stateDirectory;
+	private SchedulerServer server;
+	private MessageHandler handler;
+	private List<Controller> fleet = new ArrayList<Controller>();
+	private int queryID;
+	private int next = 0;
+
+	/*
+	 * Accepts everything and sends nothing
+	 */
+	static class NullController extends Controller {
+
+		NullController() {
+			super(null);
+		}
+
+		@Override
+		protected void send(Message message) {
+		}
+
+		@Override
+		public boolean supportsMasks() {
+			return true;
+		}
+
+		@Override
+		public void synchronize() {
+		}
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		// Every handled block is logged otherwise
+		Logger.getLogger("rainbow").setLevel(Level.WARNING);
+		stateDirectory = File.createTempFile("scheduler-state", "");
+		stateDirectory.delete();
+		System.setProperty("rainbow.scheduler.state", stateDirectory.getPath());
+		server = new SchedulerServer(new LoopbackTransport());
+		handler = MessageHandler.createMessageAction(server);
+		for (int i = 0; i < controllers; i++) {
+			Controller controller = new NullController();
+			server.addController(controller);
+			fleet.add(controller);
+		}
+		// Big enough that the benchmark never runs out of blocks
+		HashQuery query = new HashQuery(Collections.singletonList("0123456789abcdef0123456789abcdef"), "md5",
+				Mask.parse("?a?a?a?a?a?a?a?a?a?a"));
+		queryID = server.addQuery(query).getQueryID();
+		for (Controller controller : fleet) {
+			controller.sendQuery(query);
+			server.fillController(controller);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.removeQuery(queryID);
+		stateDirectory.delete();
+	}
+
+	@Benchmark
+	public void workBlockComplete() {
+		Controller controller = fleet.get(next);
+		next = next + 1 == fleet.size() ? 0 : next + 1;
+		Assignment assignment = controller.getAssignments().iterator().next();
+		Partition p = assignment.getPartition();
+		handler.execute(new LocalWorkBlockComplete(controller, queryID, p.stringLength, p.startBlockNumber, p.endBlockNumber));
+	}
+}
@@ -0,0 +1,67 @@
+package rainbow.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rainbow.scheduler.partition.Mask;
+import rainbow.scheduler.partition.Partition;
+import rainbow.scheduler.partition.PartitionManager;
+
+/*
+ * Cost of handing out and taking back partitions when the space is
+ * fragmented, fragments is how many holes there are in both the completed
+ * and the processing ranges
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PartitionManagerBenchmark {
+
+	@Param({"0", "1000", "100000"})
+	public int fragments;
+	@Param({"2"})
+	public int size;
+	private PartitionManager manager;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		// Big enough that the benchmark never runs out of blocks
+		manager = new PartitionManager(Mask.parse("?a?a?a?a?a?a?a?a?a?a"));
+		// Finishing every other partition leaves a hole after each one
+		for (int i = 0; i < fragments; i++) {
+			Partition done = manager.requestPartition(1);
+			manager.requestPartition(1);
+			manager.notifyComplete(done);
+		}
+	}
+
+	@Benchmark
+	public Partition requestAndComplete() {
+		Partition p = manager.requestPartition(size);
+		manager.notifyComplete(p);
+		return p;
+	}
+
+	/*
+	 * The failed partition is the next one handed out again
+	 */
+	@Benchmark
+	public Partition requestAndFail() {
+		Partition p = manager.requestPartition(size);
+		manager.notifyFailure(p);
+		return p;
+	}
+}
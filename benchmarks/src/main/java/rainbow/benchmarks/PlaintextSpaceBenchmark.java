@@ -0,0 +1,80 @@
+package rainbow.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rainbow.scheduler.partition.AlphabetGenerator;
+import rainbow.scheduler.partition.Mask;
+import rainbow.scheduler.partition.PlaintextCursor;
+import rainbow.scheduler.partition.PlaintextSpace;
+
+/*
+ * Per candidate cost of turning an index into a plaintext, getText against
+ * walking the block with a cursor
+ *
+ * lower8 is the default space, wide is alphanumeric length 11 past 2^63
+ * plaintexts so it takes the 128 bit path, policy is a mixed radix mask
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PlaintextSpaceBenchmark {
+
+	// Indices getText cycles through, a power of two
+	private static final int INDICES = 1 << 20;
+	@Param({"lower8", "wide", "policy"})
+	public String space;
+	private PlaintextSpace plaintextSpace;
+	private PlaintextCursor cursor;
+	private long block;
+	private int index = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Mask mask;
+		if (space.equals("lower8")) {
+			mask = Mask.uniform(AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.LOWER_CASE), 8);
+			block = 100;
+		} else if (space.equals("wide")) {
+			mask = Mask.uniform(AlphabetGenerator.generateAlphabet(
+					AlphabetGenerator.Types.UPPER_CASE,
+					AlphabetGenerator.Types.LOWER_CASE,
+					AlphabetGenerator.Types.NUMBERS), 11);
+			// The last full block
+			block = PlaintextSpace.getNumberOfBlocks(mask) - 2;
+		} else {
+			mask = Mask.parse("?u?l?l?l?l?d?d?s");
+			block = 0;
+		}
+		plaintextSpace = new PlaintextSpace(mask, block);
+		cursor = plaintextSpace.getCursor();
+	}
+
+	@Benchmark
+	public String getText() {
+		index = (index + 1) & (INDICES - 1);
+		return plaintextSpace.getText(index);
+	}
+
+	@Benchmark
+	public byte[] cursorNext() {
+		if (!cursor.next()) {
+			cursor.seek(block, 0);
+			cursor.next();
+		}
+		return cursor.getBytes();
+	}
+}
@@ -0,0 +1,116 @@
+package rainbow.scheduler.application;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import rainbow.scheduler.partition.PartitionManager;
+
+/**
+ *
+ * A query that is being worked on along with the partitions of its plaintext
+ * space, each query sweeps the space on its own
+ */
+public class ActiveQuery {
+
+	private HashQuery query;
+	private PartitionManager pm;
+	private long startTime;
+	// Name of the query's files in the QueryStore, null if not persisted
+	private String stateName;
+	private QueryMetrics metrics;
+	// Cached ranges being looked up in rainbow tables, they count as done in
+	// the partition manager so the query isn't over until these come back
+	private List<CacheDirectory.Entry> lookups = new ArrayList<CacheDirectory.Entry>();
+	// How much the query's weight is raised to make its deadline, set by
+	// FairShare on the lease tick
+	private volatile double deadlineBoost = 1;
+
+	public ActiveQuery(HashQuery query, PartitionManager pm) {
+		this.query = query;
+		this.pm = pm;
+		this.startTime = System.currentTimeMillis();
+		this.metrics = new QueryMetrics(this);
+	}
+
+	public HashQuery getQuery() {
+		return query;
+	}
+
+	public int getQueryID() {
+		return query.getQueryID();
+	}
+
+	public PartitionManager getPartitionManager() {
+		return pm;
+	}
+
+	public String getStateName() {
+		return stateName;
+	}
+
+	public void setStateName(String stateName) {
+		this.stateName = stateName;
+	}
+
+	public QueryMetrics getMetrics() {
+		return metrics;
+	}
+
+	public double getDeadlineBoost() {
+		return deadlineBoost;
+	}
+
+	public void setDeadlineBoost(double deadlineBoost) {
+		this.deadlineBoost = deadlineBoost;
+	}
+
+	public synchronized void addLookup(CacheDirectory.Entry entry) {
+		lookups.add(entry);
+	}
+
+	public synchronized List<CacheDirectory.Entry> getLookups() {
+		return new ArrayList<CacheDirectory.Entry>(lookups);
+	}
+
+	/*
+	 * False if the lookup already finished or was removed
+	 */
+	public synchronized boolean removeLookup(CacheDirectory.Entry entry) {
+		return lookups.remove(entry);
+	}
+
+	/*
+	 * Removes the holder's lookup of a range, null if there is none
+	 */
+	public synchronized CacheDirectory.Entry removeLookup(Controller holder, int stringLength, long startBlock, long endBlock) {
+		for (Iterator<CacheDirectory.Entry> i = lookups.iterator(); i.hasNext();) {
+			CacheDirectory.Entry entry = i.next();
+			if (entry.matches(holder, stringLength, startBlock, endBlock)) {
+				i.remove();
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Every block has been brute forced or looked up
+	 */
+	public boolean isComplete() {
+		synchronized (this) {
+			if (!lookups.isEmpty()) {
+				return false;
+			}
+		}
+		return pm.isComplete();
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public void stopWatch() {
+		double seconds = (double) (System.currentTimeMillis() - startTime) / 1000;
+		System.out.println("Query " + query.getQueryID() + " took " + seconds + " seconds to complete");
+	}
+}
@@ -0,0 +1,68 @@
+package rainbow.scheduler.application;
+
+import rainbow.scheduler.partition.Partition;
+
+/**
+ *
+ * A partition of a query that has been sent to a controller
+ */
+public class Assignment {
+
+	private Partition partition;
+	private HashQuery query;
+	private long assignedTime;
+	private LeaseWheel.Lease lease;
+
+	public Assignment(Partition partition, HashQuery query) {
+		this.partition = partition;
+		this.query = query;
+		this.assignedTime = System.currentTimeMillis();
+	}
+
+	public Partition getPartition() {
+		return partition;
+	}
+
+	/*
+	 * The partition was split, only called on the controller's lane. The
+	 * start stays the same so the assignment keeps its place in the index
+	 */
+	void setPartition(Partition partition) {
+		this.partition = partition;
+	}
+
+	public HashQuery getQuery() {
+		return query;
+	}
+
+	public long getAssignedTime() {
+		return assignedTime;
+	}
+
+	public LeaseWheel.Lease getLease() {
+		return lease;
+	}
+
+	public void setLease(LeaseWheel.Lease lease) {
+		this.lease = lease;
+	}
+
+	/*
+	 * Checks if this is the partition described by a WorkBlockComplete
+	 *
+	 * A partition that was split may be reported with its old end if the
+	 * controller got that far before it was told to stop, anything that
+	 * covers the partition counts
+	 */
+	public boolean matches(int queryID, long startBlock, long endBlock, int stringLength) {
+		return query.getQueryID() == queryID
+				&& partition.startBlockNumber == startBlock
+				&& partition.endBlockNumber <= endBlock
+				&& partition.stringLength == stringLength;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Assignment{query=%s, %s}", query.getQueryID(), partition);
+	}
+}
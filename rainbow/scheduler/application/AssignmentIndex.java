@@ -0,0 +1,177 @@
+package rainbow.scheduler.application;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ *
+ * A controller's assignments hashed by (queryID, stringLength, startBlock) so
+ * a WorkBlockComplete finds its assignment in constant time however many
+ * partitions the controller has buffered
+ *
+ * Open addressing with linear probing, the key is mixed straight from the
+ * primitive fields so a lookup doesn't create any objects
+ */
+public class AssignmentIndex extends AbstractCollection<Assignment> {
+
+	private Assignment[] table;
+	private int size = 0;
+
+	public AssignmentIndex() {
+		table = new Assignment[8];
+	}
+
+	private static int hash(int queryID, int stringLength, long startBlock) {
+		long h = startBlock * 0x9E3779B97F4A7C15L;
+		h ^= ((long) queryID << 32 | stringLength) * 0xC2B2AE3D27D4EB4FL;
+		h ^= h >>> 29;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private static int hash(Assignment a) {
+		return hash(a.getQuery().getQueryID(), a.getPartition().stringLength, a.getPartition().startBlockNumber);
+	}
+
+	private static boolean keyEquals(Assignment a, int queryID, int stringLength, long startBlock) {
+		return a.getQuery().getQueryID() == queryID
+				&& a.getPartition().stringLength == stringLength
+				&& a.getPartition().startBlockNumber == startBlock;
+	}
+
+	/*
+	 * Returns the slot holding the key or the empty slot where it would go
+	 */
+	private int slot(int queryID, int stringLength, long startBlock) {
+		int mask = table.length - 1;
+		int i = hash(queryID, stringLength, startBlock) & mask;
+		while (table[i] != null && !keyEquals(table[i], queryID, stringLength, startBlock)) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	public Assignment get(int queryID, int stringLength, long startBlock) {
+		return table[slot(queryID, stringLength, startBlock)];
+	}
+
+	/*
+	 * Adds an assignment, replaces one with the same key
+	 */
+	@Override
+	public boolean add(Assignment a) {
+		if ((size + 1) * 2 > table.length) {
+			resize(table.length * 2);
+		}
+		int i = slot(a.getQuery().getQueryID(), a.getPartition().stringLength, a.getPartition().startBlockNumber);
+		if (table[i] == null) {
+			size++;
+		}
+		table[i] = a;
+		return true;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof Assignment)) {
+			return false;
+		}
+		Assignment a = (Assignment) o;
+		return get(a.getQuery().getQueryID(), a.getPartition().stringLength, a.getPartition().startBlockNumber) == a;
+	}
+
+	/*
+	 * Removes the assignment if it is the one stored under its key
+	 */
+	@Override
+	public boolean remove(Object o) {
+		if (!(o instanceof Assignment)) {
+			return false;
+		}
+		Assignment a = (Assignment) o;
+		int i = slot(a.getQuery().getQueryID(), a.getPartition().stringLength, a.getPartition().startBlockNumber);
+		if (table[i] != a) {
+			return false;
+		}
+		removeSlot(i);
+		return true;
+	}
+
+	/*
+	 * Empties a slot and shifts back the entries after it that probed past it
+	 */
+	private void removeSlot(int i) {
+		int mask = table.length - 1;
+		table[i] = null;
+		size--;
+		int j = (i + 1) & mask;
+		while (table[j] != null) {
+			int home = hash(table[j]) & mask;
+			// Move it back if its home is not between the hole and j
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				table[i] = table[j];
+				table[j] = null;
+				i = j;
+			}
+			j = (j + 1) & mask;
+		}
+	}
+
+	private void resize(int capacity) {
+		Assignment[] old = table;
+		table = new Assignment[capacity];
+		size = 0;
+		for (Assignment a : old) {
+			if (a != null) {
+				add(a);
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		table = new Assignment[8];
+		size = 0;
+	}
+
+	@Override
+	public Iterator<Assignment> iterator() {
+		return new Iterator<Assignment>() {
+
+			private int next = advance(0);
+
+			private int advance(int i) {
+				while (i < table.length && table[i] == null) {
+					i++;
+				}
+				return i;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next < table.length;
+			}
+
+			@Override
+			public Assignment next() {
+				if (next >= table.length) {
+					throw new NoSuchElementException();
+				}
+				Assignment a = table[next];
+				next = advance(next + 1);
+				return a;
+			}
+
+			@Override
+			public void remove() {
+				// Backward shifting would move entries under the iterator
+				throw new UnsupportedOperationException("Remove assignments through the index");
+			}
+		};
+	}
+}
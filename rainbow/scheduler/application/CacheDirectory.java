@@ -0,0 +1,288 @@
+package rainbow.scheduler.application;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import rainbow.scheduler.partition.Partition;
+import rainbow.scheduler.partition.PartitionManager;
+import rainbow.scheduler.partition.PlaintextSpace;
+
+/**
+ *
+ * Which parts of the default keyspace have rainbow tables and which
+ * controller holds each of them, shared by all the queries
+ *
+ * Each hash method has its own partition manager that only tracks caching
+ * and cached ranges, its block numbers are the same as the ones of a query
+ * without a mask. Only kept in memory, after a restart the controllers have
+ * to be asked to build again
+ *
+ * Where tables are built is up to the CachePolicy, the ranges where
+ * plaintexts were found go first and each controller holds at most
+ * budgetBlocks of tables. Once it is full a new table only replaces one
+ * that is worth less
+ *
+ * Called from any lane so everything is synchronized
+ */
+public class CacheDirectory {
+
+	/*
+	 * A range of the keyspace a controller is building or holds a table for
+	 */
+	public static class Entry {
+
+		private Partition range;
+		private String method;
+		private Controller holder;
+		private boolean ready = false;
+		// Lookups done with the table and the blocks they didn't have to sweep
+		private int lookups = 0;
+		private long savedBlocks = 0;
+		// Plaintexts found in the range since the table was ready
+		private int hits = 0;
+
+		Entry(Partition range, String method, Controller holder) {
+			this.range = range;
+			this.method = method;
+			this.holder = holder;
+		}
+
+		public Partition getRange() {
+			return range;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public Controller getHolder() {
+			return holder;
+		}
+
+		public boolean isReady() {
+			return ready;
+		}
+
+		public int getLookups() {
+			return lookups;
+		}
+
+		public long getSavedBlocks() {
+			return savedBlocks;
+		}
+
+		public int getHits() {
+			return hits;
+		}
+
+		public boolean matches(Controller holder, int stringLength, long startBlock, long endBlock) {
+			return this.holder == holder
+					&& range.stringLength == stringLength
+					&& range.startBlockNumber == startBlock
+					&& range.endBlockNumber == endBlock;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Cache{%s, holder=%s, %s}", method, holder.getID(), range);
+		}
+	}
+	private String alphabet;
+	private int maxStringLength;
+	private long budgetBlocks;
+	private CachePolicy policy;
+	private HashMap<String, PartitionManager> spaces = new HashMap<String, PartitionManager>();
+	private List<Entry> entries = new ArrayList<Entry>();
+	private long savedBlocks = 0;
+
+	public CacheDirectory(String alphabet, int maxStringLength, long regionBlocks, long budgetBlocks) {
+		this.alphabet = alphabet;
+		this.maxStringLength = maxStringLength;
+		this.budgetBlocks = budgetBlocks;
+		this.policy = new CachePolicy(regionBlocks);
+	}
+
+	private PartitionManager getSpace(String method) {
+		PartitionManager space = spaces.get(method);
+		if (space == null) {
+			space = new PartitionManager(alphabet, maxStringLength);
+			spaces.put(method, space);
+		}
+		return space;
+	}
+
+	/*
+	 * Hands the controller a range to build a table for, the uncached part
+	 * of the region with the most hits or the next range by position if
+	 * there were no hits. Returns null if it is already building one,
+	 * everything is cached or the controller is full of tables worth more
+	 *
+	 * Tables that have to go to make room are removed and added to evicted,
+	 * the controller has to be told to drop them
+	 */
+	public synchronized Entry requestBuild(Controller controller, String method, int size, List<Entry> evicted) {
+		long held = 0;
+		for (Entry entry : entries) {
+			if (entry.holder == controller) {
+				if (!entry.ready) {
+					return null;
+				}
+				held += entry.range.getNumberOfBlocks();
+			}
+		}
+		PartitionManager space = getSpace(method);
+		Partition range = null;
+		for (Partition candidate : policy.getCandidates()) {
+			if (candidate.stringLength <= maxStringLength) {
+				range = space.requestCache(candidate.stringLength, candidate.startBlockNumber, candidate.endBlockNumber);
+				if (range != null) {
+					break;
+				}
+			}
+		}
+		if (range == null) {
+			range = space.requestCache(size);
+		}
+		if (range == null) {
+			return null;
+		}
+		double worth = policy.getWorth(range, HashAlgorithm.forName(method), 0);
+		List<Entry> victims = new ArrayList<Entry>();
+		while (held + range.getNumberOfBlocks() > budgetBlocks) {
+			// The least worth table goes first
+			Entry victim = null;
+			for (Entry entry : entries) {
+				if (entry.holder == controller && !victims.contains(entry)
+						&& (victim == null || getWorth(entry) < getWorth(victim))) {
+					victim = entry;
+				}
+			}
+			if (victim == null || getWorth(victim) >= worth) {
+				space.releaseCache(range);
+				return null;
+			}
+			victims.add(victim);
+			held -= victim.range.getNumberOfBlocks();
+		}
+		for (Entry victim : victims) {
+			entries.remove(victim);
+			getSpace(victim.method).releaseCache(victim.range);
+			evicted.add(victim);
+		}
+		Entry entry = new Entry(range, method, controller);
+		entries.add(entry);
+		return entry;
+	}
+
+	/*
+	 * What keeping the table is worth, see CachePolicy
+	 */
+	private double getWorth(Entry entry) {
+		return policy.getWorth(entry.range, HashAlgorithm.forName(entry.method), entry.savedBlocks);
+	}
+
+	/*
+	 * A plaintext was found, counts for the region it is in and the table
+	 * that holds it
+	 */
+	public synchronized void recordHit(String plaintext) {
+		int stringLength = plaintext.length();
+		if (stringLength < 1 || stringLength > maxStringLength) {
+			return;
+		}
+		long block = PlaintextSpace.getBlockNumber(alphabet, plaintext);
+		if (block < 0) {
+			return;
+		}
+		policy.recordHit(stringLength, block);
+		for (Entry entry : entries) {
+			Partition r = entry.range;
+			if (entry.ready && r.stringLength == stringLength && r.startBlockNumber <= block && block < r.endBlockNumber) {
+				entry.hits++;
+			}
+		}
+	}
+
+	/*
+	 * A query looked the table up instead of sweeping it
+	 */
+	public synchronized void recordLookup(Entry entry) {
+		entry.lookups++;
+		entry.savedBlocks += entry.range.getNumberOfBlocks();
+		savedBlocks += entry.range.getNumberOfBlocks();
+	}
+
+	/*
+	 * Blocks the queries looked up instead of sweeping, over all the tables
+	 * there have been
+	 */
+	public synchronized long getSavedBlocks() {
+		return savedBlocks;
+	}
+
+	/*
+	 * The controller finished building a table, null if we never asked it
+	 * to build that range
+	 */
+	public synchronized Entry ready(Controller controller, int stringLength, long startBlock, long endBlock) {
+		for (Entry entry : entries) {
+			if (!entry.ready && entry.matches(controller, stringLength, startBlock, endBlock)) {
+				getSpace(entry.method).notifyCache(entry.range);
+				entry.ready = true;
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * The controller dropped a table or gave up building it, the range can be
+	 * handed out again. Returns the entry so the queries looking it up can
+	 * sweep it instead, null if there was none
+	 */
+	public synchronized Entry release(Controller controller, int stringLength, long startBlock, long endBlock) {
+		for (Iterator<Entry> i = entries.iterator(); i.hasNext();) {
+			Entry entry = i.next();
+			if (entry.matches(controller, stringLength, startBlock, endBlock)) {
+				i.remove();
+				getSpace(entry.method).releaseCache(entry.range);
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Forgets everything a controller that went away built or was building
+	 */
+	public synchronized List<Entry> drop(Controller controller) {
+		List<Entry> dropped = new ArrayList<Entry>();
+		for (Iterator<Entry> i = entries.iterator(); i.hasNext();) {
+			Entry entry = i.next();
+			if (entry.holder == controller) {
+				i.remove();
+				getSpace(entry.method).releaseCache(entry.range);
+				dropped.add(entry);
+			}
+		}
+		return dropped;
+	}
+
+	/*
+	 * The ranges with a finished table for the method
+	 */
+	public synchronized List<Entry> getReady(String method) {
+		List<Entry> ready = new ArrayList<Entry>();
+		for (Entry entry : entries) {
+			if (entry.ready && entry.method.equals(method)) {
+				ready.add(entry);
+			}
+		}
+		return ready;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,133 @@
+package rainbow.scheduler.application;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import rainbow.scheduler.partition.Partition;
+
+/**
+ *
+ * Decides which ranges of the keyspace are worth a rainbow table, from where
+ * the plaintexts that were found are
+ *
+ * The keyspace is cut into regions of regionBlocks aligned blocks and every
+ * found plaintext counts as a hit on its region. Hits age, each new hit
+ * counts a little more than the one before so after HIT_HALF_LIFE hits an
+ * old one is worth half (LFU with aging, without touching every count).
+ *
+ * A range is worth the hashing it saves per block since table storage is
+ * what is limited. Every lookup saves sweeping the range, so that is its
+ * hits times the work of the range for the table's method, plus the work
+ * the lookups of an existing table already saved. A candidate is built in
+ * place of the least worth table on the controller only if it is worth more
+ *
+ * Called under the CacheDirectory lock
+ */
+public class CachePolicy {
+
+	public static double HIT_HALF_LIFE = 1000;
+	// Scale the counts back down once the hit weight gets this big
+	private static final double RESCALE = 1e100;
+	private long regionBlocks;
+	// Aged hits keyed by region, see key()
+	private HashMap<Long, Double> hits = new HashMap<Long, Double>();
+	// What the next hit counts for
+	private double weight = 1;
+
+	public CachePolicy(long regionBlocks) {
+		this.regionBlocks = regionBlocks;
+	}
+
+	/*
+	 * String lengths fit in a byte and regions in the rest
+	 */
+	private static long key(int stringLength, long region) {
+		return (long) stringLength << 56 | region;
+	}
+
+	private static int stringLength(long key) {
+		return (int) (key >>> 56);
+	}
+
+	private static long region(long key) {
+		return key & ((1L << 56) - 1);
+	}
+
+	public void recordHit(int stringLength, long block) {
+		long key = key(stringLength, block / regionBlocks);
+		Double old = hits.get(key);
+		hits.put(key, (old == null ? 0 : old) + weight);
+		weight *= Math.pow(2, 1 / HIT_HALF_LIFE);
+		if (weight > RESCALE) {
+			for (Map.Entry<Long, Double> entry : hits.entrySet()) {
+				entry.setValue(entry.getValue() / weight);
+			}
+			weight = 1;
+		}
+	}
+
+	/*
+	 * Aged hits in a range, a region only partly in the range counts for the
+	 * part that is
+	 */
+	public double getHits(Partition range) {
+		double total = 0;
+		long first = range.startBlockNumber / regionBlocks;
+		long last = (range.endBlockNumber - 1) / regionBlocks;
+		if (last - first > hits.size()) {
+			// Quicker to go through the hits
+			for (Map.Entry<Long, Double> entry : hits.entrySet()) {
+				long region = region(entry.getKey());
+				if (stringLength(entry.getKey()) == range.stringLength && region >= first && region <= last) {
+					total += entry.getValue() * overlap(range, region);
+				}
+			}
+			return total / weight;
+		}
+		for (long region = first; region <= last; region++) {
+			Double h = hits.get(key(range.stringLength, region));
+			if (h != null) {
+				total += h * overlap(range, region);
+			}
+		}
+		return total / weight;
+	}
+
+	private double overlap(Partition range, long region) {
+		long start = Math.max(range.startBlockNumber, region * regionBlocks);
+		long end = Math.min(range.endBlockNumber, (region + 1) * regionBlocks);
+		return (double) (end - start) / regionBlocks;
+	}
+
+	/*
+	 * Work saved per block of table storage, savedBlocks are the blocks the
+	 * table's lookups didn't have to sweep so far
+	 */
+	public double getWorth(Partition range, HashAlgorithm algorithm, long savedBlocks) {
+		double saved = getHits(range) * algorithm.getWork(range.getNumberOfBlocks()) + algorithm.getWork(savedBlocks);
+		return saved / range.getNumberOfBlocks();
+	}
+
+	/*
+	 * The regions that had hits, most hits first
+	 */
+	public List<Partition> getCandidates() {
+		List<Map.Entry<Long, Double>> ranked = new ArrayList<Map.Entry<Long, Double>>(hits.entrySet());
+		Collections.sort(ranked, new Comparator<Map.Entry<Long, Double>>() {
+
+			@Override
+			public int compare(Map.Entry<Long, Double> a, Map.Entry<Long, Double> b) {
+				return Double.compare(b.getValue(), a.getValue());
+			}
+		});
+		List<Partition> candidates = new ArrayList<Partition>(ranked.size());
+		for (Map.Entry<Long, Double> entry : ranked) {
+			long region = region(entry.getKey());
+			candidates.add(new Partition(stringLength(entry.getKey()), region * regionBlocks, (region + 1) * regionBlocks));
+		}
+		return candidates;
+	}
+}
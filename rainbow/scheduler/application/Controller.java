@@ -2,22 +2,80 @@ package rainbow.scheduler.application;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import rainbow.scheduler.partition.Partition;
+import rainbowpc.Message;
 import rainbowpc.scheduler.SchedulerProtocolet;
 
 /**
  *
  * Contains the information relating to a specific connected controller
+ *
+ * A controller is only changed on the handler lane its messages are hashed
+ * to, anything else that needs to change it posts a ControllerTask
  */
 public class Controller {
 
+	private static AtomicInteger nextID = new AtomicInteger();
+	private int id;
 	private SchedulerProtocolet protocol;
-	private ArrayList<Partition> assignedPartitions;
-	private HashQuery currentQuery;
+	private AssignmentIndex assignments;
+	// Queries the controller has been sent, keyed by queryID
+	private LinkedHashMap<Integer, HashQuery> activeQueries;
+	private long lastCompletionTime = 0;
+	private RateEstimator rate;
+	// Set when a lease ran out, no new work until the controller reports back
+	private volatile boolean hung = false;
+	// Only changed on the controller's lane, volatile for the metrics
+	private volatile long blocksCompleted = 0;
+	private volatile long lastRoundTripMillis = 0;
+	private ControllerMetrics metrics;
+	// Set once the controller says it takes batches (ControllerCapabilities)
+	// or reports a WorkBlockBatchComplete, it gets its work in batches from
+	// then on
+	private volatile boolean batching = false;
+	// Set once the controller says it takes WorkBlockShrink
+	// (ControllerCapabilities)
+	private volatile boolean splitting = false;
+	// Assigned partitions not sent yet, keyed by queryID
+	private LinkedHashMap<Integer, List<Partition>> pending = new LinkedHashMap<Integer, List<Partition>>();
+	private int pendingCount = 0;
+	// Set once the controller sends a CacheRequest, it is given rainbow
+	// tables to build when it has nothing else to do
+	private volatile boolean cacheCapable = false;
+	// Assignments at the last lease tick, only used on the scheduler thread
+	private int tickAssignments = 0;
 
 	public Controller(SchedulerProtocolet protocol) {
 		this.protocol = protocol;
-		assignedPartitions = new ArrayList<Partition>();
+		assignments = new AssignmentIndex();
+		activeQueries = new LinkedHashMap<Integer, HashQuery>();
+		rate = new RateEstimator();
+		id = nextID.getAndIncrement();
+		metrics = new ControllerMetrics(this);
+	}
+
+	public int getID() {
+		return id;
+	}
+
+	public ControllerMetrics getMetrics() {
+		return metrics;
+	}
+
+	public long getBlocksCompleted() {
+		return blocksCompleted;
+	}
+
+	/*
+	 * Time from the last completed partition being sent to it being reported
+	 */
+	public long getLastRoundTripMillis() {
+		return lastRoundTripMillis;
 	}
 
 	/*
@@ -27,44 +85,336 @@ public class Controller {
 		return protocol;
 	}
 
-	public ArrayList<Partition> getAssignedPartitions() {
-		return assignedPartitions;
+	public Collection<Assignment> getAssignments() {
+		return assignments;
+	}
+
+	public Assignment findAssignment(int queryID, long startBlock, long endBlock, int stringLength) {
+		Assignment a = assignments.get(queryID, stringLength, startBlock);
+		if (a != null && a.matches(queryID, startBlock, endBlock, stringLength)) {
+			return a;
+		}
+		return null;
 	}
 
-	public Partition findPartition(long startBlock, long endBlock, int stringLength) {
-		for (Partition p : assignedPartitions) {
-			if (p.startBlockNumber == startBlock && p.endBlockNumber == endBlock && p.stringLength == stringLength) {
-				return p;
+	/*
+	 * The partitions of one query assigned to this controller
+	 */
+	public List<Partition> getPartitions(int queryID) {
+		List<Partition> partitions = new ArrayList<Partition>();
+		for (Assignment a : assignments) {
+			if (a.getQuery().getQueryID() == queryID) {
+				partitions.add(a.getPartition());
 			}
 		}
+		return partitions;
+	}
+
+	/*
+	 * Finds this controller's assignment of a partition object
+	 */
+	public Assignment findAssignment(int queryID, Partition partition) {
+		Assignment a = assignments.get(queryID, partition.stringLength, partition.startBlockNumber);
+		if (a != null && a.getPartition() == partition) {
+			return a;
+		}
 		return null;
 	}
 
-	public HashQuery getCurrentQuery() {
-		return currentQuery;
+	public Collection<HashQuery> getActiveQueries() {
+		return activeQueries.values();
+	}
+
+	public boolean hasQuery(int queryID) {
+		return activeQueries.containsKey(queryID);
+	}
+
+	public RateEstimator getRate() {
+		return rate;
+	}
+
+	/*
+	 * Number of blocks of the query to give this controller so that the
+	 * partition takes about TARGET_PARTITION_SECONDS, until we have measured
+	 * the controller it gets as much work as WORKSIZE blocks of MD5
+	 */
+	public int getPartitionSize(HashQuery query) {
+		double blockWork = query.getAlgorithm().getWork(1);
+		double blocks = rate.hasEstimate()
+				? rate.getRate() * SchedulerServer.TARGET_PARTITION_SECONDS / blockWork
+				: HashAlgorithm.MD5.getWork(SchedulerServer.WORKSIZE) / blockWork;
+		if (blocks < SchedulerServer.MIN_WORKSIZE) {
+			return SchedulerServer.MIN_WORKSIZE;
+		}
+		if (blocks > SchedulerServer.MAX_WORKSIZE) {
+			return SchedulerServer.MAX_WORKSIZE;
+		}
+		return (int) blocks;
+	}
+
+	/*
+	 * Lease length for the newest assignment, it is queued behind everything
+	 * else the controller has so allow LEASE_FACTOR times as long as all of
+	 * it should take, uses LEASE_DEFAULT_SECONDS until we have measured the
+	 * controller
+	 *
+	 * Partitions of a slow method can't be smaller than a block so without a
+	 * rate the default is stretched by how much more work the biggest one is
+	 * than WORKSIZE blocks of MD5
+	 */
+	public long getLeaseMillis() {
+		double queuedWork = 0;
+		double largestWork = 0;
+		for (Assignment a : assignments) {
+			double work = a.getQuery().getAlgorithm().getWork(a.getPartition().getNumberOfBlocks());
+			queuedWork += work;
+			largestWork = Math.max(largestWork, work);
+		}
+		if (!rate.hasEstimate()) {
+			double stretch = Math.max(1, largestWork / HashAlgorithm.MD5.getWork(SchedulerServer.WORKSIZE));
+			return (long) (SchedulerServer.LEASE_DEFAULT_SECONDS * 1000L * stretch);
+		}
+		double expected = queuedWork / rate.getRate();
+		return (long) (1000 * Math.max(SchedulerServer.LEASE_MIN_SECONDS, SchedulerServer.LEASE_FACTOR * expected));
+	}
+
+	/*
+	 * True if the controller has fewer assignments than at the last lease
+	 * tick, called once a tick
+	 */
+	public boolean assignmentsDropped() {
+		int now = assignments.size();
+		boolean dropped = now < tickAssignments;
+		tickAssignments = now;
+		return dropped;
+	}
+
+	public boolean isHung() {
+		return hung;
+	}
+
+	public void setHung(boolean hung) {
+		this.hung = hung;
+	}
+
+	/*
+	 * The controller protocol has no way to send a mask, remote controllers
+	 * only know the plain alphabet
+	 */
+	public boolean supportsMasks() {
+		return false;
+	}
+
+	/*
+	 * True if the controller takes a query of several digests, they are
+	 * sent as one comma separated query string. Older controllers take the
+	 * string as a single digest and the protocol has no way to ask
+	 */
+	public boolean supportsMultiTarget() {
+		return false;
+	}
+
+	/*
+	 * True if the controller understands WorkBlockBatch. Remote controllers
+	 * opt in with ControllerCapabilities, the ones inside the scheduler are
+	 * set up with setBatching
+	 */
+	public boolean supportsBatches() {
+		return batching;
+	}
+
+	public void setBatching(boolean batching) {
+		this.batching = batching;
+	}
+
+	/*
+	 * True if the controller builds rainbow tables, only known once it has
+	 * asked for a range to build
+	 */
+	public boolean supportsCaching() {
+		return cacheCapable;
+	}
+
+	public void setCacheCapable(boolean cacheCapable) {
+		this.cacheCapable = cacheCapable;
+	}
+
+	public void buildCache(CacheDirectory.Entry entry, String alphabet) throws IOException {
+		send(SchedulerMessageFactory.createCacheBuild(entry, alphabet));
+	}
+
+	public void evictCache(CacheDirectory.Entry entry) throws IOException {
+		send(SchedulerMessageFactory.createCacheEvict(entry));
+	}
+
+	/*
+	 * Looks up the query in a table this controller holds, the query has to
+	 * have been sent first
+	 */
+	public void lookupCache(HashQuery query, Partition range) throws IOException {
+		send(SchedulerMessageFactory.createCacheLookup(range, query));
+	}
+
+	/*
+	 * True if the controller can be told to stop a work block early with a
+	 * WorkBlockShrink, only known once it said so
+	 */
+	public boolean supportsSplits() {
+		return splitting;
 	}
 
-	public void setCurrentQuery(HashQuery currentQuery) {
-		this.currentQuery = currentQuery;
+	public void setSplitting(boolean splitting) {
+		this.splitting = splitting;
 	}
 
+	/*
+	 * Sends a query, mask and multi target queries are not sent to
+	 * controllers that can't handle them so they never get its partitions
+	 */
 	public void sendQuery(HashQuery query) throws IOException {
-		currentQuery = query;
-		protocol.sendMessage(SchedulerMessageFactory.createNewQuery(query));
+		if (query.getMask() != null && !supportsMasks()) {
+			return;
+		}
+		if (query.isMultiTarget() && !supportsMultiTarget()) {
+			return;
+		}
+		activeQueries.put(query.getQueryID(), query);
+		send(SchedulerMessageFactory.createNewQuery(query));
+	}
+
+	/*
+	 * Stops a query on the controller, the partitions of that query are
+	 * dropped and returned so the caller can deal with them
+	 */
+	public List<Assignment> stopQuery(HashQuery query) throws IOException {
+		List<Assignment> dropped = new ArrayList<Assignment>();
+		for (Assignment a : assignments) {
+			if (a.getQuery().getQueryID() == query.getQueryID()) {
+				dropped.add(a);
+			}
+		}
+		for (Assignment a : dropped) {
+			removeAssignment(a);
+		}
+		List<Partition> unsent = pending.remove(query.getQueryID());
+		if (unsent != null) {
+			pendingCount -= unsent.size();
+		}
+		if (activeQueries.remove(query.getQueryID()) != null) {
+			send(SchedulerMessageFactory.createStopQuery(query));
+		}
+		return dropped;
+	}
+
+	/*
+	 * Controllers that take batches only get the partition when flushBatches
+	 * is called
+	 */
+	public Assignment assignPartition(Partition p, HashQuery query) throws IOException {
+		Assignment assignment = new Assignment(p, query);
+		assignments.add(assignment);
+		if (!supportsBatches()) {
+			send(SchedulerMessageFactory.createWorkBlock(p, query));
+			return assignment;
+		}
+		List<Partition> partitions = pending.get(query.getQueryID());
+		if (partitions == null) {
+			partitions = new ArrayList<Partition>();
+			pending.put(query.getQueryID(), partitions);
+		}
+		partitions.add(p);
+		pendingCount++;
+		return assignment;
 	}
 
-	public void stopQuery() throws IOException {
-		protocol.sendMessage(SchedulerMessageFactory.createStopQuery(currentQuery));
-		currentQuery = null;
+	/*
+	 * Partitions assigned but not sent yet
+	 */
+	public int getPendingCount() {
+		return pendingCount;
 	}
 
-	public void assignPartition(Partition p) throws IOException {
-		assignedPartitions.add(p);
-		protocol.sendMessage(SchedulerMessageFactory.createWorkBlock(p, currentQuery));
+	/*
+	 * Sends the partitions waiting to go out, one message per query
+	 */
+	public void flushBatches() throws IOException {
+		if (pendingCount == 0) {
+			return;
+		}
+		for (Map.Entry<Integer, List<Partition>> entry : pending.entrySet()) {
+			HashQuery query = activeQueries.get(entry.getKey());
+			List<Partition> partitions = entry.getValue();
+			if (query == null) {
+				continue;
+			}
+			if (partitions.size() == 1) {
+				send(SchedulerMessageFactory.createWorkBlock(partitions.get(0), query));
+			} else {
+				send(SchedulerMessageFactory.createWorkBlockBatch(partitions, query));
+			}
+		}
+		pending.clear();
+		pendingCount = 0;
 	}
 
-	public void removePartition(Partition partition) {
-		assignedPartitions.remove(partition);
+	/*
+	 * The partition of the assignment was split and now ends earlier, tells
+	 * the controller unless the partition hasn't been sent yet, then the
+	 * shorter one is sent instead
+	 */
+	public void shrinkAssignment(Assignment assignment) throws IOException {
+		List<Partition> unsent = pending.get(assignment.getQuery().getQueryID());
+		if (unsent != null) {
+			for (int i = 0; i < unsent.size(); i++) {
+				if (unsent.get(i).startBlockEquals(assignment.getPartition())) {
+					unsent.set(i, assignment.getPartition());
+					return;
+				}
+			}
+		}
+		send(SchedulerMessageFactory.createWorkBlockShrink(assignment.getPartition(), assignment.getQuery()));
+	}
+
+	public void removeAssignment(Assignment assignment) {
+		assignments.remove(assignment);
+		if (assignment.getLease() != null) {
+			assignment.getLease().cancel();
+		}
+	}
+
+	/*
+	 * Removes an assignment the controller finished and updates the rate,
+	 * in work units so it holds for the next query whatever its method
+	 *
+	 * Partitions are buffered on the controller so the time since the
+	 * partition was sent includes the time it sat in the queue, only count
+	 * from the previous completion if that was later
+	 */
+	public void completeAssignment(Assignment assignment) {
+		long now = System.currentTimeMillis();
+		long started = Math.max(assignment.getAssignedTime(), lastCompletionTime);
+		rate.addSample((long) assignment.getQuery().getAlgorithm().getWork(assignment.getPartition().getNumberOfBlocks()), now - started);
+		lastCompletionTime = now;
+		lastRoundTripMillis = now - assignment.getAssignedTime();
+		blocksCompleted += assignment.getPartition().getNumberOfBlocks();
+		hung = false;
+		removeAssignment(assignment);
+	}
+
+	/*
+	 * Sends a message to the controller, subclasses that don't talk over the
+	 * network override this
+	 */
+	protected void send(Message message) throws IOException {
+		protocol.sendMessage(message);
+	}
+
+	/*
+	 * What the server looks the controller up by, its protocolet or itself if
+	 * it doesn't have one
+	 */
+	public Object getKey() {
+		return protocol != null ? protocol : this;
 	}
 
 	public void synchronize() {
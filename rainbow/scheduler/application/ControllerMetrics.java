@@ -0,0 +1,50 @@
+package rainbow.scheduler.application;
+
+/**
+ *
+ * Reads straight from the controller, these are single fields so a read
+ * from a JMX thread is at worst a little stale
+ */
+public class ControllerMetrics implements ControllerMetricsMBean {
+
+	private Controller controller;
+
+	public ControllerMetrics(Controller controller) {
+		this.controller = controller;
+	}
+
+	@Override
+	public int getID() {
+		return controller.getID();
+	}
+
+	@Override
+	public boolean isLocal() {
+		return controller instanceof LocalController;
+	}
+
+	@Override
+	public double getHashRate() {
+		return controller.getRate().getRate();
+	}
+
+	@Override
+	public int getAssignments() {
+		return controller.getAssignments().size();
+	}
+
+	@Override
+	public long getBlocksCompleted() {
+		return controller.getBlocksCompleted();
+	}
+
+	@Override
+	public long getLastRoundTripMillis() {
+		return controller.getLastRoundTripMillis();
+	}
+
+	@Override
+	public boolean isHung() {
+		return controller.isHung();
+	}
+}
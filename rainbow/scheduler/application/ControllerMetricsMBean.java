@@ -0,0 +1,24 @@
+package rainbow.scheduler.application;
+
+/**
+ *
+ * Metrics of one controller, a slow node shows up as a low hash rate or a
+ * long round trip compared to the others. The hash rate is in MD5 hashes per
+ * second whatever the controller was working on, see HashAlgorithm
+ */
+public interface ControllerMetricsMBean {
+
+	public int getID();
+
+	public boolean isLocal();
+
+	public double getHashRate();
+
+	public int getAssignments();
+
+	public long getBlocksCompleted();
+
+	public long getLastRoundTripMillis();
+
+	public boolean isHung();
+}
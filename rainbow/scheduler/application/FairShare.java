@@ -0,0 +1,222 @@
+package rainbow.scheduler.application;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import rainbow.scheduler.partition.PartitionManager;
+
+/**
+ *
+ * Decides which query the next partition of a controller comes from
+ *
+ * Queries of a higher priority class always go first, a lower class only
+ * gets the controllers the higher ones can't use (all their space is handed
+ * out or the controller can't do them). Nothing in flight is ever taken
+ * back, an urgent query takes over the controllers one partition boundary
+ * at a time as their blocks complete
+ *
+ * Within a class the controllers are shared with start time fair queueing,
+ * first between tenants by their weight and then evenly between the queries
+ * of a tenant. Every partition handed out charges its work (see
+ * HashAlgorithm) divided by the weight to the virtual time of its tenant and
+ * query, and the lowest virtual times go next. A tenant or query that starts
+ * running begins at the lowest virtual time of the ones already running so
+ * it can't claim the time it was idle
+ *
+ * A query with a deadline has its weight raised every lease tick by how far
+ * its fair share falls short of the share it needs to be done in time at the
+ * cluster's current rate, at most MAX_DEADLINE_BOOST times
+ *
+ * Called from any lane so everything is synchronized
+ */
+public class FairShare {
+
+	public static double MAX_DEADLINE_BOOST = 100;
+
+	/*
+	 * The queries of a tenant in one priority class
+	 */
+	private static class Tenant {
+
+		String name;
+		HashQuery.Priority priority;
+		double virtualTime = 0;
+		List<Flow> flows = new ArrayList<Flow>();
+
+		Tenant(String name, HashQuery.Priority priority) {
+			this.name = name;
+			this.priority = priority;
+		}
+	}
+
+	private static class Flow {
+
+		ActiveQuery active;
+		Tenant tenant;
+		double virtualTime;
+		long arrival;
+
+		Flow(ActiveQuery active, Tenant tenant, long arrival) {
+			this.active = active;
+			this.tenant = tenant;
+			this.arrival = arrival;
+		}
+	}
+	// Tenants that ever had a query, keyed by class and name
+	private HashMap<String, Tenant> tenants = new HashMap<String, Tenant>();
+	private HashMap<String, Double> weights = new HashMap<String, Double>();
+	// Running queries keyed by queryID
+	private LinkedHashMap<Integer, Flow> flows = new LinkedHashMap<Integer, Flow>();
+	private long arrivals = 0;
+
+	private Tenant getTenant(String name, HashQuery.Priority priority) {
+		String key = priority + ":" + name;
+		Tenant tenant = tenants.get(key);
+		if (tenant == null) {
+			tenant = new Tenant(name, priority);
+			tenants.put(key, tenant);
+		}
+		return tenant;
+	}
+
+	/*
+	 * A tenant's share of its class against the other tenants, 1 unless set
+	 */
+	public synchronized void setWeight(String tenant, double weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Weight of " + tenant + " must be positive");
+		}
+		weights.put(tenant, weight);
+	}
+
+	public synchronized double getWeight(String tenant) {
+		Double weight = weights.get(tenant);
+		return weight == null ? 1 : weight;
+	}
+
+	public synchronized void add(ActiveQuery active) {
+		HashQuery query = active.getQuery();
+		Tenant tenant = getTenant(query.getTenant(), query.getPriority());
+		if (tenant.flows.isEmpty()) {
+			double start = Double.MAX_VALUE;
+			for (Tenant other : tenants.values()) {
+				if (other.priority == tenant.priority && !other.flows.isEmpty()) {
+					start = Math.min(start, other.virtualTime);
+				}
+			}
+			if (start != Double.MAX_VALUE) {
+				tenant.virtualTime = Math.max(tenant.virtualTime, start);
+			}
+		}
+		Flow flow = new Flow(active, tenant, arrivals++);
+		double start = Double.MAX_VALUE;
+		for (Flow other : tenant.flows) {
+			start = Math.min(start, other.virtualTime);
+		}
+		flow.virtualTime = start == Double.MAX_VALUE ? 0 : start;
+		tenant.flows.add(flow);
+		flows.put(active.getQueryID(), flow);
+	}
+
+	public synchronized void remove(ActiveQuery active) {
+		Flow flow = flows.remove(active.getQueryID());
+		if (flow != null) {
+			flow.tenant.flows.remove(flow);
+		}
+	}
+
+	/*
+	 * The running queries in the order they should get the next partition
+	 */
+	public synchronized List<ActiveQuery> order() {
+		List<Flow> sorted = new ArrayList<Flow>(flows.values());
+		Collections.sort(sorted, new Comparator<Flow>() {
+
+			@Override
+			public int compare(Flow a, Flow b) {
+				if (a.tenant.priority != b.tenant.priority) {
+					return a.tenant.priority.compareTo(b.tenant.priority);
+				}
+				if (a.tenant != b.tenant) {
+					int c = Double.compare(a.tenant.virtualTime, b.tenant.virtualTime);
+					if (c != 0) {
+						return c;
+					}
+				}
+				int c = Double.compare(a.virtualTime, b.virtualTime);
+				return c != 0 ? c : Long.compare(a.arrival, b.arrival);
+			}
+		});
+		List<ActiveQuery> order = new ArrayList<ActiveQuery>(sorted.size());
+		for (Flow flow : sorted) {
+			order.add(flow.active);
+		}
+		return order;
+	}
+
+	/*
+	 * A partition of the query was handed out
+	 */
+	public synchronized void charge(int queryID, double work) {
+		Flow flow = flows.get(queryID);
+		if (flow == null) {
+			return;
+		}
+		flow.virtualTime += work / flow.active.getDeadlineBoost();
+		flow.tenant.virtualTime += work / (getWeight(flow.tenant.name) * getBoost(flow.tenant));
+	}
+
+	/*
+	 * A tenant is raised as much as its most urgent query
+	 */
+	private double getBoost(Tenant tenant) {
+		double boost = 1;
+		for (Flow flow : tenant.flows) {
+			boost = Math.max(boost, flow.active.getDeadlineBoost());
+		}
+		return boost;
+	}
+
+	/*
+	 * Recomputes the deadline boosts, clusterRate is in work units per second
+	 */
+	public synchronized void updateDeadlines(double clusterRate, long now) {
+		for (Flow flow : flows.values()) {
+			HashQuery query = flow.active.getQuery();
+			if (query.getDeadline() <= 0) {
+				continue;
+			}
+			double secondsLeft = (query.getDeadline() - now) / 1000.0;
+			if (secondsLeft <= 0) {
+				flow.active.setDeadlineBoost(MAX_DEADLINE_BOOST);
+				continue;
+			}
+			if (clusterRate <= 0) {
+				// Nothing measured yet, keep what it had
+				continue;
+			}
+			PartitionManager pm = flow.active.getPartitionManager();
+			double needed = query.getAlgorithm().getWork(pm.getTotalBlocks() - pm.getCoveredBlocks())
+					/ (clusterRate * secondsLeft);
+			double boost = needed / getFairShare(flow);
+			flow.active.setDeadlineBoost(Math.max(1, Math.min(MAX_DEADLINE_BOOST, boost)));
+		}
+	}
+
+	/*
+	 * Share of the cluster the query gets without a boost if its class is
+	 * the only one running
+	 */
+	private double getFairShare(Flow flow) {
+		double total = 0;
+		for (Tenant tenant : tenants.values()) {
+			if (tenant.priority == flow.tenant.priority && !tenant.flows.isEmpty()) {
+				total += getWeight(tenant.name);
+			}
+		}
+		return getWeight(flow.tenant.name) / total / flow.tenant.flows.size();
+	}
+}
@@ -0,0 +1,42 @@
+package rainbow.scheduler.application;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import rainbowpc.Message;
+
+/**
+ *
+ * One of the threads handling controller messages, every controller is
+ * hashed to one lane so its messages are still handled in order while
+ * different controllers are handled in parallel. A controller with a slow
+ * socket only holds up the lane it is on
+ */
+class HandlerLane extends Thread {
+
+	private SchedulerServer server;
+	private LinkedBlockingQueue<SchedulerServer.Inbound> queue = new LinkedBlockingQueue<SchedulerServer.Inbound>();
+
+	HandlerLane(SchedulerServer server, int number) {
+		super("Handler lane " + number);
+		this.server = server;
+		setDaemon(true);
+	}
+
+	void post(Message message) {
+		queue.add(new SchedulerServer.Inbound(message));
+	}
+
+	int depth() {
+		return queue.size();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				server.handle(queue.take());
+			}
+		} catch (InterruptedException e) {
+			// Shutting down
+		}
+	}
+}
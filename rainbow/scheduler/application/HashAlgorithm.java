@@ -0,0 +1,132 @@
+package rainbow.scheduler.application;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import rainbow.scheduler.partition.PlaintextSpace;
+
+/**
+ *
+ * The hash methods a query can be for and what each one costs
+ *
+ * Work is counted in units of one MD5 hash so controller rates, partition
+ * sizes and leases mean the same thing whatever the query's method. The
+ * costs are the ratios of hashcat speeds on one GPU, a controller with
+ * different ratios is only off until its rate has been measured on the
+ * query's method for a while
+ *
+ * A block is always BLOCK_SIZE plaintexts so a slow method can't get a
+ * partition under one block, a bcrypt block is still long but its lease is
+ * sized for it
+ */
+public enum HashAlgorithm {
+
+	MD5("md5", "MD5", 16, 1, false),
+	NTLM("ntlm", null, 16, 0.6, false),
+	SHA1("sha1", "SHA-1", 20, 3, false),
+	SHA256("sha256", "SHA-256", 32, 7.5, false),
+	// Work factor 5, every step up doubles it. Salted so the digests can't
+	// be sent as a plain list of targets
+	BCRYPT("bcrypt", null, 23, 1e6, true);
+	private String methodName;
+	// Name in the JDK, null if we hash it ourselves or can't at all
+	private String jdkName;
+	private int digestLength;
+	private volatile double cost;
+	private boolean salted;
+
+	private HashAlgorithm(String methodName, String jdkName, int digestLength, double cost, boolean salted) {
+		this.methodName = methodName;
+		this.jdkName = jdkName;
+		this.digestLength = digestLength;
+		this.cost = cost;
+		this.salted = salted;
+	}
+
+	/*
+	 * Looks a method up by its name in the protocol or in the JDK, case
+	 * doesn't matter
+	 */
+	public static HashAlgorithm forName(String name) {
+		for (HashAlgorithm algorithm : values()) {
+			if (algorithm.methodName.equalsIgnoreCase(name) || name.equalsIgnoreCase(algorithm.jdkName)) {
+				return algorithm;
+			}
+		}
+		throw new IllegalArgumentException("Unknown hash method " + name);
+	}
+
+	/*
+	 * The name the controllers know the method by
+	 */
+	public String getName() {
+		return methodName;
+	}
+
+	public int getDigestLength() {
+		return digestLength;
+	}
+
+	public boolean isSalted() {
+		return salted;
+	}
+
+	/*
+	 * Work units (MD5 hashes) per plaintext
+	 */
+	public double getCost() {
+		return cost;
+	}
+
+	/*
+	 * Calibrates the method against MD5 for the fleet we actually have
+	 */
+	public void setCost(double cost) {
+		this.cost = cost;
+	}
+
+	/*
+	 * Work units to sweep a number of blocks
+	 */
+	public double getWork(long blocks) {
+		return (double) blocks * PlaintextSpace.BLOCK_SIZE * cost;
+	}
+
+	/*
+	 * A new digest for the method, null if it can't be hashed here
+	 */
+	public MessageDigest newDigest() {
+		if (this == NTLM) {
+			return new NtlmDigest();
+		}
+		if (jdkName == null) {
+			return null;
+		}
+		try {
+			return MessageDigest.getInstance(jdkName);
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Hashes a plaintext, returns null if the method can't be hashed here
+	 */
+	public byte[] digest(String plaintext) {
+		MessageDigest md = newDigest();
+		if (md == null) {
+			return null;
+		}
+		try {
+			// NtlmDigest widens every byte itself
+			return md.digest(plaintext.getBytes(this == NTLM ? "ISO-8859-1" : "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return methodName;
+	}
+}
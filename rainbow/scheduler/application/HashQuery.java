@@ -4,27 +4,99 @@
  */
 package rainbow.scheduler.application;
 
+import java.util.Collections;
+import java.util.List;
+import rainbow.scheduler.partition.Mask;
+
 /**
  *
  * @author WesleyLuk
  */
 public class HashQuery {
-	
+
+	/*
+	 * Classes of queries, a class gets the controllers before the ones
+	 * after it, see FairShare
+	 */
+	public enum Priority {
+
+		URGENT, HIGH, NORMAL, LOW
+	}
+	public static final String DEFAULT_TENANT = "default";
 	private static int lastQueryID = 0;
 	
 	private String query;
 	private int queryID;
-	private String method;
+	private HashAlgorithm algorithm;
+	private TargetSet targets;
+	// Keyspace to sweep, null for the scheduler's default alphabet
+	private Mask mask;
+	// Sweep every length up to the mask with the mask's first positions
+	private boolean increment = false;
+	// Set before the query is posted, read on any lane after that
+	private Priority priority = Priority.NORMAL;
+	private String tenant = DEFAULT_TENANT;
+	// When the query should be done by in milliseconds, 0 for no deadline
+	private long deadline = 0;
 	
 	public HashQuery(String query, String method){
-		this.query = query;
+		this(Collections.singletonList(query), method);
+	}
+
+	/*
+	 * A query for a list of digests that are all looked for in one sweep of
+	 * the plaintext space, the digests are sent to the controllers as one
+	 * comma separated query
+	 */
+	public HashQuery(List<String> digests, String method) {
+		this(digests, HashAlgorithm.forName(method));
+	}
+
+	public HashQuery(List<String> digests, HashAlgorithm algorithm) {
+		this.targets = new TargetSet(digests);
+		this.query = join(digests);
 		this.queryID = lastQueryID;
 		lastQueryID++;
-		this.method = method;
+		this.algorithm = algorithm;
+	}
+
+	/*
+	 * A query that only sweeps the plaintexts matching a mask
+	 */
+	public HashQuery(List<String> digests, String method, Mask mask) {
+		this(digests, method, mask, false);
 	}
 
+	public HashQuery(List<String> digests, String method, Mask mask, boolean increment) {
+		this(digests, HashAlgorithm.forName(method), mask, increment);
+	}
+
+	public HashQuery(List<String> digests, HashAlgorithm algorithm, Mask mask, boolean increment) {
+		this(digests, algorithm);
+		this.mask = mask;
+		this.increment = increment;
+	}
+
+	private static String join(List<String> digests) {
+		StringBuilder builder = new StringBuilder();
+		for (String digest : digests) {
+			if (builder.length() > 0) {
+				builder.append(',');
+			}
+			builder.append(digest);
+		}
+		return builder.toString();
+	}
+
+	/*
+	 * Name of the hash method as the controllers know it
+	 */
 	public String getMethod() {
-		return method;
+		return algorithm.getName();
+	}
+
+	public HashAlgorithm getAlgorithm() {
+		return algorithm;
 	}
 
 	public String getQuery() {
@@ -34,5 +106,66 @@ public class HashQuery {
 	public int getQueryID() {
 		return queryID;
 	}
+
+	public Mask getMask() {
+		return mask;
+	}
+
+	public boolean isIncrement() {
+		return increment;
+	}
+
+	/*
+	 * The keyspace of one string length, null if the query has no mask
+	 */
+	public Mask getMask(int stringLength) {
+		if (mask == null) {
+			return null;
+		}
+		return increment ? mask.prefix(stringLength) : mask;
+	}
+
+	public Priority getPriority() {
+		return priority;
+	}
+
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
+	/*
+	 * Who the query is for, tenants share the controllers by their weight
+	 */
+	public String getTenant() {
+		return tenant;
+	}
+
+	public void setTenant(String tenant) {
+		this.tenant = tenant;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public TargetSet getTargets() {
+		return targets;
+	}
+
+	public boolean isMultiTarget() {
+		return targets.size() > 1;
+	}
+
+	/*
+	 * Hashes a plaintext with this query's method, returns null if the
+	 * method is not available in this JVM
+	 */
+	public byte[] digest(String plaintext) {
+		return algorithm.digest(plaintext);
+	}
 	
 }
@@ -0,0 +1,148 @@
+package rainbow.scheduler.application;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * Hashed timer wheel holding the lease of every assignment and rainbow
+ * table lookup
+ *
+ * The wheel has a slot per tick, a lease goes in the slot its deadline falls
+ * in and remembers how many times around the wheel it still has to wait, so
+ * adding and cancelling a lease is O(1) however many are outstanding and each
+ * tick only looks at one slot
+ *
+ * Cancelled leases are only flagged and dropped when their slot comes around
+ *
+ * Leases are added from every handler lane so the wheel locks itself
+ */
+public class LeaseWheel {
+
+	/*
+	 * The lease on one assignment or lookup
+	 */
+	public static class Lease {
+
+		private Controller controller;
+		private Assignment assignment;
+		// Set instead of the assignment for a lookup
+		private ActiveQuery query;
+		private CacheDirectory.Entry lookup;
+		private long deadline;
+		private long rounds;
+		// Cancelled on the controller's lane, dropped on the scheduler thread
+		private volatile boolean cancelled = false;
+		private Lease next;
+
+		public Lease(Controller controller, Assignment assignment, long deadline) {
+			this.controller = controller;
+			this.assignment = assignment;
+			this.deadline = deadline;
+		}
+
+		/*
+		 * The lease on a lookup of the query in the holder's table
+		 */
+		public Lease(ActiveQuery query, CacheDirectory.Entry lookup, long deadline) {
+			this(lookup.getHolder(), null, deadline);
+			this.query = query;
+			this.lookup = lookup;
+		}
+
+		public Controller getController() {
+			return controller;
+		}
+
+		public Assignment getAssignment() {
+			return assignment;
+		}
+
+		public ActiveQuery getQuery() {
+			return query;
+		}
+
+		/*
+		 * Null for the lease on an assignment
+		 */
+		public CacheDirectory.Entry getLookup() {
+			return lookup;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+	private Lease[] slots;
+	private int mask;
+	private long tickMillis;
+	// Time of the slot that will be processed next
+	private long currentTick;
+	private int size = 0;
+
+	/*
+	 * wheelSize is rounded up to a power of two
+	 */
+	public LeaseWheel(long tickMillis, int wheelSize, long now) {
+		int slotCount = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.slots = new Lease[slotCount];
+		this.mask = slotCount - 1;
+		this.tickMillis = tickMillis;
+		this.currentTick = now / tickMillis;
+	}
+
+	public synchronized void add(Lease lease) {
+		long tick = Math.max(lease.deadline / tickMillis, currentTick);
+		long ticks = tick - currentTick;
+		lease.rounds = ticks / slots.length;
+		int slot = (int) (tick & mask);
+		lease.next = slots[slot];
+		slots[slot] = lease;
+		size++;
+	}
+
+	/*
+	 * Moves the wheel up to now and returns the leases that ran out
+	 */
+	public synchronized List<Lease> advance(long now) {
+		List<Lease> expired = new ArrayList<Lease>();
+		long lastTick = now / tickMillis;
+		for (; currentTick <= lastTick; currentTick++) {
+			int slot = (int) (currentTick & mask);
+			Lease kept = null;
+			Lease lease = slots[slot];
+			while (lease != null) {
+				Lease next = lease.next;
+				if (lease.cancelled) {
+					size--;
+				} else if (lease.rounds > 0) {
+					lease.rounds--;
+					lease.next = kept;
+					kept = lease;
+				} else {
+					size--;
+					expired.add(lease);
+				}
+				lease = next;
+			}
+			slots[slot] = kept;
+		}
+		return expired;
+	}
+
+	/*
+	 * Number of leases in the wheel including cancelled ones that have not
+	 * been dropped yet
+	 */
+	public synchronized int size() {
+		return size;
+	}
+}
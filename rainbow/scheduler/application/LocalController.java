@@ -0,0 +1,93 @@
+package rainbow.scheduler.application;
+
+import java.io.IOException;
+import java.util.List;
+import rainbow.scheduler.partition.Partition;
+import rainbowpc.Message;
+
+/**
+ *
+ * A controller that runs inside the scheduler, the partitions it is assigned
+ * are brute forced by a LocalWorker on this machine's cores instead of being
+ * sent over the network
+ *
+ * It is scheduled exactly like a remote controller, its results come back
+ * through the message queue as LocalWorkBlockComplete and LocalQueryFound
+ */
+public class LocalController extends Controller {
+
+	private LocalWorker worker;
+
+	public LocalController(SchedulerServer server, String alphabet, int threads) {
+		super(null);
+		worker = new LocalWorker(this, server, alphabet, threads);
+	}
+
+	/*
+	 * Nothing to send, the worker is handed the work directly
+	 */
+	@Override
+	protected void send(Message message) {
+	}
+
+	@Override
+	public boolean supportsMasks() {
+		return true;
+	}
+
+	@Override
+	public boolean supportsMultiTarget() {
+		return true;
+	}
+
+	/*
+	 * Queries of a method the worker can't hash are never taken so their
+	 * partitions go to the other controllers
+	 */
+	@Override
+	public void sendQuery(HashQuery query) throws IOException {
+		if (query.getAlgorithm().newDigest() == null) {
+			return;
+		}
+		super.sendQuery(query);
+	}
+
+	@Override
+	public Assignment assignPartition(Partition p, HashQuery query) throws IOException {
+		Assignment assignment = super.assignPartition(p, query);
+		worker.submit(assignment);
+		return assignment;
+	}
+
+	@Override
+	public boolean supportsSplits() {
+		return true;
+	}
+
+	/*
+	 * Lowers where the worker stops, there is no message to send
+	 */
+	@Override
+	public void shrinkAssignment(Assignment assignment) {
+		worker.shrink(assignment);
+	}
+
+	@Override
+	public List<Assignment> stopQuery(HashQuery query) throws IOException {
+		List<Assignment> dropped = super.stopQuery(query);
+		worker.stop(query.getQueryID());
+		return dropped;
+	}
+
+	@Override
+	public void synchronize() {
+	}
+
+	public LocalWorker getWorker() {
+		return worker;
+	}
+
+	public void shutdown() {
+		worker.shutdown();
+	}
+}
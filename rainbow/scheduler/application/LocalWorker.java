@@ -0,0 +1,233 @@
+package rainbow.scheduler.application;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rainbow.scheduler.application.message.ControllerTask;
+import rainbow.scheduler.application.message.LocalQueryFound;
+import rainbow.scheduler.application.message.LocalWorkBlockComplete;
+import rainbow.scheduler.partition.Partition;
+import rainbow.scheduler.partition.PlaintextCursor;
+import rainbow.scheduler.partition.PlaintextSpace;
+
+/**
+ *
+ * Brute forces the partitions of a LocalController on a fork join pool
+ *
+ * Partitions are worked on one at a time in the order they were assigned,
+ * like a remote controller would, and each block is split into chunks of
+ * CHUNK_SIZE plaintexts that the pool spreads over its threads. Every chunk
+ * walks its plaintexts with a PlaintextCursor and hashes them into a reused
+ * buffer so the inner loop doesn't create garbage
+ */
+public class LocalWorker {
+
+	static Logger logger = Logger.getLogger(LocalWorker.class.getName());
+	// Plaintexts one task does without splitting further
+	public static int CHUNK_SIZE = 1 << 20;
+	// How often a chunk checks whether its query was stopped
+	private static final int STOP_CHECK_INTERVAL = 1 << 16;
+	// One digest per thread and method, MessageDigest is not thread safe
+	private static final ThreadLocal<EnumMap<HashAlgorithm, MessageDigest>> digests = new ThreadLocal<EnumMap<HashAlgorithm, MessageDigest>>() {
+
+		@Override
+		protected EnumMap<HashAlgorithm, MessageDigest> initialValue() {
+			return new EnumMap<HashAlgorithm, MessageDigest>(HashAlgorithm.class);
+		}
+	};
+	private LocalController controller;
+	private SchedulerServer server;
+	private String alphabet;
+	private int threads;
+	private ForkJoinPool pool;
+	// Takes the assignments in order and runs them on the pool
+	private ExecutorService feeder;
+	// Query IDs are never reused so stopped ones can stay in here
+	private Set<Integer> stopped = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	// Plaintexts hashed for the current partition
+	private AtomicLong hashed = new AtomicLong();
+	// Where each queued or running assignment stops, lowered when it is split
+	private ConcurrentHashMap<Assignment, AtomicLong> ends = new ConcurrentHashMap<Assignment, AtomicLong>();
+
+	public LocalWorker(LocalController controller, SchedulerServer server, String alphabet, int threads) {
+		this.controller = controller;
+		this.server = server;
+		this.alphabet = alphabet;
+		this.threads = threads;
+		this.pool = new ForkJoinPool(threads);
+		this.feeder = Executors.newSingleThreadExecutor();
+	}
+
+	public void submit(final Assignment assignment) {
+		final HashQuery query = assignment.getQuery();
+		// Copy the range now, the partition belongs to the scheduler thread
+		final Partition range = assignment.getPartition().clone();
+		final AtomicLong end = new AtomicLong(range.endBlockNumber);
+		ends.put(assignment, end);
+		feeder.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if (query.getAlgorithm().newDigest() == null) {
+						fail(assignment);
+						return;
+					}
+					work(query, range, end);
+				} finally {
+					ends.remove(assignment);
+				}
+			}
+		});
+	}
+
+	/*
+	 * The assignment's partition was split, stop at its new end. Called on
+	 * the controller's lane
+	 */
+	public void shrink(Assignment assignment) {
+		AtomicLong end = ends.get(assignment);
+		if (end != null) {
+			end.set(assignment.getPartition().endBlockNumber);
+		}
+	}
+
+	/*
+	 * Stops working on a query, partitions already queued for it are skipped
+	 */
+	public void stop(int queryID) {
+		stopped.add(queryID);
+	}
+
+	public void shutdown() {
+		feeder.shutdownNow();
+		pool.shutdownNow();
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/*
+	 * The partition can't be hashed here, it goes straight back to the
+	 * scheduler instead of waiting for its lease
+	 */
+	private void fail(final Assignment assignment) {
+		logger.log(Level.SEVERE, "Local worker can't hash " + assignment.getQuery().getMethod() + ", giving back " + assignment);
+		server.postTask(new ControllerTask(controller) {
+
+			@Override
+			public void run() {
+				server.failAssignment(getController(), assignment);
+			}
+		});
+	}
+
+	/*
+	 * Works through the blocks up to end, which can be lowered while it runs.
+	 * If it was lowered below a block already done the report just covers
+	 * more than the scheduler asked for
+	 */
+	private void work(HashQuery query, Partition range, AtomicLong end) {
+		if (stopped.contains(query.getQueryID())) {
+			return;
+		}
+		long start = System.nanoTime();
+		hashed.set(0);
+		long block = range.startBlockNumber;
+		for (; block < end.get(); block++) {
+			pool.invoke(new ChunkTask(query, range.stringLength, block, 0, PlaintextSpace.BLOCK_SIZE));
+			if (stopped.contains(query.getQueryID())) {
+				return;
+			}
+		}
+		range.endBlockNumber = block;
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double rate = hashed.get() / seconds;
+		logger.log(Level.FINE, String.format("Local worker did %s in %.1fs, %.0f hashes/s per core",
+				range, seconds, rate / threads));
+		server.postMessage(new LocalWorkBlockComplete(controller, query.getQueryID(),
+				range.stringLength, range.startBlockNumber, range.endBlockNumber));
+	}
+
+	/*
+	 * Hashes the plaintexts [from, to) of one block, splits in half until
+	 * the range is at most CHUNK_SIZE
+	 */
+	private class ChunkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private HashQuery query;
+		private int stringLength;
+		private long block;
+		private int from;
+		private int to;
+
+		ChunkTask(HashQuery query, int stringLength, long block, int from, int to) {
+			this.query = query;
+			this.stringLength = stringLength;
+			this.block = block;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > CHUNK_SIZE) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ChunkTask(query, stringLength, block, from, middle),
+						new ChunkTask(query, stringLength, block, middle, to));
+				return;
+			}
+			search();
+		}
+
+		private void search() {
+			MessageDigest md = getDigest(query.getAlgorithm());
+			TargetSet targets = query.getTargets();
+			byte[] digest = new byte[md.getDigestLength()];
+			PlaintextCursor cursor = query.getMask() != null
+					? new PlaintextCursor(query.getMask(stringLength), block)
+					: new PlaintextCursor(alphabet, stringLength, block);
+			cursor.seek(block, from);
+			byte[] text = cursor.getBytes();
+			int count = to - from;
+			int i = 0;
+			try {
+				for (; i < count && cursor.next(); i++) {
+					md.update(text, 0, text.length);
+					md.digest(digest, 0, digest.length);
+					if (targets.contains(digest)) {
+						server.postMessage(new LocalQueryFound(query.getQueryID(), new String(cursor.getChars())));
+					}
+					if ((i & (STOP_CHECK_INTERVAL - 1)) == 0 && stopped.contains(query.getQueryID())) {
+						break;
+					}
+				}
+			} catch (DigestException e) {
+				throw new RuntimeException(e);
+			}
+			hashed.addAndGet(i);
+		}
+	}
+
+	private static MessageDigest getDigest(HashAlgorithm algorithm) {
+		EnumMap<HashAlgorithm, MessageDigest> map = digests.get();
+		MessageDigest md = map.get(algorithm);
+		if (md == null) {
+			md = algorithm.newDigest();
+			map.put(algorithm, md);
+		}
+		return md;
+	}
+}
@@ -0,0 +1,44 @@
+package rainbow.scheduler.application;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import rainbowpc.Message;
+
+/**
+ *
+ * In memory transport, whatever is delivered comes out of receive in order.
+ * Lets simulated controllers drive a real scheduler without a network
+ *
+ * Controllers on a loopback have no protocolet, they use the Local messages
+ * that carry the Controller itself
+ */
+public class LoopbackTransport implements Transport {
+
+	private LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<Message>();
+	private volatile boolean exited = false;
+
+	/*
+	 * Safe to call from any thread
+	 */
+	public void deliver(Message message) {
+		queue.add(message);
+	}
+
+	@Override
+	public void start() {
+	}
+
+	@Override
+	public Message receive() throws InterruptedException {
+		return queue.take();
+	}
+
+	@Override
+	public void shutdown() {
+		exited = true;
+	}
+
+	@Override
+	public boolean hasExited() {
+		return exited;
+	}
+}
@@ -1,11 +1,22 @@
 package rainbow.scheduler.application;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import rainbow.scheduler.application.message.CacheLookupComplete;
+import rainbow.scheduler.application.message.ControllerCapabilities;
+import rainbow.scheduler.application.message.ControllerTask;
+import rainbow.scheduler.application.message.LeaseTickMessage;
+import rainbow.scheduler.application.message.LocalControllerDisconnect;
+import rainbow.scheduler.application.message.LocalControllerMessage;
+import rainbow.scheduler.application.message.LocalQueryFound;
+import rainbow.scheduler.application.message.LocalWorkBlockBatchComplete;
+import rainbow.scheduler.application.message.LocalWorkBlockComplete;
 import rainbow.scheduler.application.message.RequestQueryMessage;
+import rainbow.scheduler.application.message.WorkBlockBatchComplete;
 import rainbow.scheduler.partition.Partition;
 import rainbowpc.Message;
 import rainbowpc.scheduler.messages.*;
@@ -41,38 +52,90 @@ public class MessageHandler {
 
 			@Override
 			public void execute(Message message) {
-				logger.log(Level.INFO, "Got message " + message.getMethod());
+				CacheReady ready = (CacheReady) message;
+				Controller controller = heardFrom(server.getController(ready.getSchedulerProtocolet()));
+				if (controller == null) {
+					return;
+				}
+				CacheDirectory.Entry entry = server.getCaches().ready(controller, ready.getStringLength(),
+						ready.getStartBlockNumber(), ready.getEndBlockNumber());
+				if (entry == null) {
+					logger.log(Level.WARNING, "Controller " + controller.getID() + " built a table we didn't ask for");
+					return;
+				}
+				// Queries that are already running sweep the range, new
+				// ones look it up
+				logger.log(Level.INFO, "Table ready " + entry);
 			}
 		});
 		actions.put(CacheRelease.LABEL, new Action() {
 
 			@Override
 			public void execute(Message message) {
-				logger.log(Level.INFO, "Got message " + message.getMethod());
+				CacheRelease release = (CacheRelease) message;
+				Controller controller = heardFrom(server.getController(release.getSchedulerProtocolet()));
+				if (controller == null) {
+					return;
+				}
+				CacheDirectory.Entry entry = server.getCaches().release(controller, release.getStringLength(),
+						release.getStartBlockNumber(), release.getEndBlockNumber());
+				if (entry != null) {
+					logger.log(Level.INFO, "Table released " + entry);
+					server.cacheLost(entry);
+				}
 			}
 		});
 		actions.put(CacheRequest.LABEL, new Action() {
 
 			@Override
 			public void execute(Message message) {
-				logger.log(Level.INFO, "Got message " + message.getMethod());
+				// The range in the request is ignored, the controller gets
+				// the next one nobody has built
+				Controller controller = heardFrom(server.getController(((CacheRequest) message).getSchedulerProtocolet()));
+				if (controller == null) {
+					return;
+				}
+				controller.setCacheCapable(true);
+				try {
+					server.assignCacheBuild(controller);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
 		});
-		actions.put(QueryFound.LABEL, new Action() {
+		actions.put(CacheLookupComplete.LABEL, new Action() {
 
 			@Override
 			public void execute(Message message) {
-				System.out.println("Query was successfuly, plaintext found = " + ((QueryFound) message).getPlaintext());
-				for (Controller controller : server.controllers) {
-					try {
-						controller.stopQuery();
-						controller.synchronize(); // converge state
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
+				CacheLookupComplete complete = (CacheLookupComplete) message;
+				Controller controller = heardFrom(server.getController(complete.getSchedulerProtocolet()));
+				ActiveQuery active = server.getQuery(complete.getQueryID());
+				if (controller == null || active == null) {
+					return;
 				}
-				server.currentQuery = null;
-				server.stopWatch();
+				CacheDirectory.Entry entry = active.removeLookup(controller, complete.getStringLength(),
+						complete.getStartBlockNumber(), complete.getEndBlockNumber());
+				if (entry == null) {
+					return;
+				}
+				server.getCaches().recordLookup(entry);
+				server.finishIfSwept(active);
+			}
+		});
+		actions.put(QueryFound.LABEL, new Action() {
+
+			@Override
+			public void execute(Message message) {
+				QueryFound queryFound = (QueryFound) message;
+				queryFound(queryFound.getQueryID(), queryFound.getPlaintext());
+			}
+		});
+		actions.put(LocalQueryFound.LABEL, new Action() {
+
+			@Override
+			public void execute(Message message) {
+				LocalQueryFound queryFound = (LocalQueryFound) message;
+				queryFound(queryFound.getQueryID(), queryFound.getPlaintext());
 			}
 		});
 		actions.put(NewControllerMessage.LABEL, new Action() {
@@ -80,25 +143,16 @@ public class MessageHandler {
 			@Override
 			public void execute(Message message) {
 				NewControllerMessage newControllerMessage = (NewControllerMessage) message;
-				Controller controller = new Controller(newControllerMessage.getSchedulerProtocolet());
-				server.controllers.add(controller);
-
 				logger.log(Level.INFO, "There is a new controller " + newControllerMessage.getID());
-				if (server.currentQuery != null) {
-					try {
-						controller.sendQuery(server.currentQuery);
-						for (int i = 0; i < server.MESSAGES_BUFFERED; i++) {
-							Partition newPartition = server.pm.requestPartition(server.WORKSIZE);
-							if (newPartition == null) {
-								logger.log(Level.INFO, "Plaintext space exaused");
-								return;
-							}
-							controller.assignPartition(newPartition);
-						}
-					} catch (Exception e) {
-						logger.severe("Could not send new controller the current query or work block\n" + e.getMessage());
-					}
-				}
+				registerController(new Controller(newControllerMessage.getSchedulerProtocolet()));
+			}
+		});
+		actions.put(LocalControllerMessage.LABEL, new Action() {
+
+			@Override
+			public void execute(Message message) {
+				logger.log(Level.INFO, "There is a new local controller");
+				registerController(((LocalControllerMessage) message).getController());
 			}
 		});
 		actions.put(WorkBlockComplete.LABEL, new Action() {
@@ -107,25 +161,54 @@ public class MessageHandler {
 			public void execute(Message message) {
 				WorkBlockComplete workBlockCompleteMessage = (WorkBlockComplete) message;
 				Controller controller = server.getController(workBlockCompleteMessage.getSchedulerProtocolet());
-				Partition partition = controller.findPartition(workBlockCompleteMessage.getStartBlockNumber(), workBlockCompleteMessage.getEndBlockNumber(), workBlockCompleteMessage.getStringLength());
-				if (partition != null) {
-					server.pm.notifyComplete(partition);
-					controller.removePartition(partition);
-				}
-				if (server.currentQuery == null) {
+				if (controller == null) {
 					return;
 				}
-				logger.log(Level.INFO, "Work block is complete, sending more work");
-				Partition newPartition = server.pm.requestPartition(server.WORKSIZE);
-				if (newPartition == null) {
-					logger.log(Level.INFO, "Plaintext space exaused");
+				workBlockComplete(controller, workBlockCompleteMessage.getQueryID(), workBlockCompleteMessage.getStartBlockNumber(), workBlockCompleteMessage.getEndBlockNumber(), workBlockCompleteMessage.getStringLength());
+			}
+		});
+		actions.put(WorkBlockBatchComplete.LABEL, new Action() {
+
+			@Override
+			public void execute(Message message) {
+				WorkBlockBatchComplete batch = (WorkBlockBatchComplete) message;
+				Controller controller = server.getController(batch.getSchedulerProtocolet());
+				if (controller == null) {
 					return;
 				}
-				try {
-					controller.assignPartition(newPartition);
-				} catch (Exception e) {
-					e.printStackTrace();
+				// It understands batches so send it batches as well, even if
+				// it never said so with ControllerCapabilities
+				controller.setBatching(true);
+				workBlockBatchComplete(controller, batch.getQueryID(), batch.getPartitions());
+			}
+		});
+		actions.put(LocalWorkBlockBatchComplete.LABEL, new Action() {
+
+			@Override
+			public void execute(Message message) {
+				LocalWorkBlockBatchComplete batch = (LocalWorkBlockBatchComplete) message;
+				workBlockBatchComplete(batch.getController(), batch.getQueryID(), batch.getPartitions());
+			}
+		});
+		actions.put(ControllerCapabilities.LABEL, new Action() {
+
+			@Override
+			public void execute(Message message) {
+				ControllerCapabilities capabilities = (ControllerCapabilities) message;
+				Controller controller = heardFrom(server.getController(capabilities.getSchedulerProtocolet()));
+				if (controller == null) {
+					return;
 				}
+				controller.setBatching(capabilities.supportsBatches());
+				controller.setSplitting(capabilities.supportsSplits());
+			}
+		});
+		actions.put(LocalWorkBlockComplete.LABEL, new Action() {
+
+			@Override
+			public void execute(Message message) {
+				LocalWorkBlockComplete complete = (LocalWorkBlockComplete) message;
+				workBlockComplete(complete.getController(), complete.getQueryID(), complete.getStartBlockNumber(), complete.getEndBlockNumber(), complete.getStringLength());
 			}
 		});
 		actions.put(ControllerDisconnect.LABEL, new Action() {
@@ -133,13 +216,14 @@ public class MessageHandler {
 			@Override
 			public void execute(Message m) {
 				ControllerDisconnect cdmessage = (ControllerDisconnect) m;
-				Controller controller = server.getController(cdmessage.getSchedulerProtocolet());
+				disconnectController(server.getController(cdmessage.getSchedulerProtocolet()));
+			}
+		});
+		actions.put(LocalControllerDisconnect.LABEL, new Action() {
 
-				for (Partition p : controller.getAssignedPartitions()) {
-					System.out.println("Notify failure" + p.toString());
-					server.pm.notifyFailure(p);
-				}
-				server.controllers.remove(controller);
+			@Override
+			public void execute(Message m) {
+				disconnectController(((LocalControllerDisconnect) m).getController());
 			}
 		});
 		actions.put(RequestQueryMessage.LABEL, new Action() {
@@ -147,31 +231,231 @@ public class MessageHandler {
 			@Override
 			public void execute(Message m) {
 				RequestQueryMessage message = (RequestQueryMessage)m;
-				server.currentQuery = message.getQuery();
-				server.pm.reset();
-				server.startTime = System.currentTimeMillis();
-				for (Controller controller : server.controllers) {
-					try {
-						controller.sendQuery(server.currentQuery);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
+				final ActiveQuery active = server.addQuery(message.getQuery());
+				for (Controller controller : server.getControllers()) {
+					server.postTask(new ControllerTask(controller) {
 
-				for (int i = 0; i < server.MESSAGES_BUFFERED; i++) {
-					for (Controller controller : server.controllers) {
-						try {
-							Partition p = server.pm.requestPartition(server.WORKSIZE);
-							controller.assignPartition(p);
-						} catch (IOException e) {
-							e.printStackTrace();
+						@Override
+						public void run() throws IOException {
+							// A controller that registered after the query
+							// was added already has it
+							if (!getController().hasQuery(active.getQueryID())) {
+								getController().sendQuery(active.getQuery());
+							}
+							// Controllers that are busy pick up the new query
+							// as their blocks complete, only idle ones are
+							// topped up here
+							server.fillController(getController());
 						}
-					}
+					});
 				}
+				server.sendLookups(active);
+			}
+		});
+		actions.put(ControllerTask.LABEL, new Action() {
+
+			@Override
+			public void execute(Message m) {
+				ControllerTask task = (ControllerTask) m;
+				if (!server.hasController(task.getController())) {
+					return;
+				}
+				try {
+					task.run();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		actions.put(LeaseTickMessage.LABEL, new Action() {
+
+			@Override
+			public void execute(Message m) {
+				server.expireLeases();
+				server.sampleMetrics();
+				server.updateDeadlines();
 			}
 		});
 	}
 
+	/*
+	 * Sends a new controller the running queries and fills its buffer
+	 */
+	private void registerController(Controller controller) {
+		server.addController(controller);
+		try {
+			for (ActiveQuery active : server.queryOrder) {
+				if (!controller.hasQuery(active.getQueryID())) {
+					controller.sendQuery(active.getQuery());
+				}
+			}
+			server.fillController(controller);
+		} catch (Exception e) {
+			logger.severe("Could not send new controller the current queries or work blocks\n" + e.getMessage());
+		}
+	}
+
+	/*
+	 * Puts the partitions of a controller that went away back in the pool
+	 */
+	private void disconnectController(Controller controller) {
+		for (Assignment a : new ArrayList<Assignment>(controller.getAssignments())) {
+			controller.removeAssignment(a);
+			ActiveQuery active = server.getQuery(a.getQuery().getQueryID());
+			if (active != null) {
+				logger.log(Level.FINE, "Notify failure " + a.toString());
+				active.getPartitionManager().notifyFailure(a.getPartition());
+				server.notifyWorkReturned();
+			}
+		}
+		for (CacheDirectory.Entry entry : server.getCaches().drop(controller)) {
+			server.cacheLost(entry);
+		}
+		server.removeController(controller);
+	}
+
+	private void queryFound(int queryID, String plaintext) {
+		System.out.println("Query was successfuly, plaintext found = " + plaintext);
+		ActiveQuery active = server.getQuery(queryID);
+		if (active == null) {
+			// Another controller already found it
+			return;
+		}
+		HashQuery query = active.getQuery();
+		byte[] digest = query.digest(plaintext);
+		if (digest != null) {
+			if (!query.getTargets().remove(digest)) {
+				logger.log(Level.WARNING, "Plaintext " + plaintext + " does not match a remaining target of query " + query.getQueryID());
+				return;
+			}
+			System.out.println(TargetSet.toHex(digest) + " = " + plaintext);
+			// Only stored once checked, an unchecked single target could be
+			// a bad report
+			server.recordPlaintext(query, digest, plaintext);
+		} else if (query.isMultiTarget()) {
+			logger.log(Level.WARNING, "Can't hash " + query.getMethod() + " to tell which target of query " + query.getQueryID() + " " + plaintext + " is for");
+			return;
+		}
+		// A single target is trusted if we can't check the digest
+		server.getCaches().recordHit(plaintext);
+		if (query.isMultiTarget() && !query.getTargets().isEmpty()) {
+			logger.log(Level.INFO, query.getTargets().getRemaining() + " targets left in query " + query.getQueryID());
+			server.saveQuery(active);
+			return;
+		}
+		server.finishQuery(active);
+	}
+
+	private void workBlockComplete(Controller controller, int queryID, long startBlock, long endBlock, int stringLength) {
+		completeBlock(controller, queryID, startBlock, endBlock, stringLength);
+		assignMore(controller);
+	}
+
+	/*
+	 * One new partition for each one done, they go out together
+	 */
+	private void workBlockBatchComplete(Controller controller, int queryID, List<Partition> partitions) {
+		for (Partition p : partitions) {
+			completeBlock(controller, queryID, p.startBlockNumber, p.endBlockNumber, p.stringLength);
+		}
+		for (int i = 0; i < partitions.size(); i++) {
+			if (!assignMore(controller)) {
+				break;
+			}
+		}
+	}
+
+	/*
+	 * Records a completed block, the controller gets no new work yet
+	 */
+	private void completeBlock(Controller controller, int queryID, long startBlock, long endBlock, int stringLength) {
+		heardFrom(controller);
+		Assignment assignment = controller.findAssignment(queryID, startBlock, endBlock, stringLength);
+		if (assignment != null) {
+			controller.completeAssignment(assignment);
+			server.getMetrics().roundTripMillis.record(controller.getLastRoundTripMillis());
+			server.getMetrics().partitionsCompleted.incrementAndGet();
+			ActiveQuery active = server.getQuery(assignment.getQuery().getQueryID());
+			if (active != null) {
+				server.cancelDuplicates(assignment);
+				active.getPartitionManager().notifyComplete(assignment.getPartition());
+				server.finishIfSwept(active);
+			}
+		} else {
+			// Taken back when its lease ran out, cancelled as a duplicate
+			// or split off, it was still searched so it counts
+			lateComplete(queryID, new Partition(stringLength, startBlock, endBlock));
+		}
+	}
+
+	/*
+	 * Gives the controller another partition, false if there is no work left
+	 */
+	private boolean assignMore(Controller controller) {
+		logger.log(Level.FINE, "Work block is complete, sending more work");
+		try {
+			if (server.assignWork(controller) == null) {
+				logger.log(Level.FINE, "Plaintext space exaused");
+				return false;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
+
+	/*
+	 * A report of blocks without an assignment, the partition manager counts
+	 * them if they are in the query's space
+	 */
+	private void lateComplete(int queryID, Partition blocks) {
+		ActiveQuery active = server.getQuery(queryID);
+		if (active == null) {
+			return;
+		}
+		if (!active.getPartitionManager().notifyComplete(blocks)) {
+			logger.log(Level.WARNING, "A controller reported " + blocks + ", they are not in query " + active.getQueryID());
+			return;
+		}
+		logger.log(Level.FINE, "Late report of " + blocks);
+		server.finishIfSwept(active);
+	}
+
+	/*
+	 * A controller whose lease ran out is hung until it sends anything at
+	 * all, then it gets work again
+	 */
+	private Controller heardFrom(Controller controller) {
+		if (controller != null) {
+			controller.setHung(false);
+		}
+		return controller;
+	}
+
+	/*
+	 * The controller a message is about, its messages are handled in order
+	 * on one lane. Null for messages that go to the scheduler thread
+	 */
+	public Object getControllerKey(Message m) {
+		if (m instanceof WorkBlockComplete || m instanceof WorkBlockBatchComplete
+				|| m instanceof NewControllerMessage || m instanceof ControllerDisconnect
+				|| m instanceof CacheReady || m instanceof CacheRelease || m instanceof CacheRequest
+				|| m instanceof CacheLookupComplete || m instanceof ControllerCapabilities) {
+			return ((SchedulerMessage) m).getSchedulerProtocolet();
+		} else if (m instanceof LocalWorkBlockComplete) {
+			return ((LocalWorkBlockComplete) m).getController().getKey();
+		} else if (m instanceof LocalWorkBlockBatchComplete) {
+			return ((LocalWorkBlockBatchComplete) m).getController().getKey();
+		} else if (m instanceof LocalControllerMessage) {
+			return ((LocalControllerMessage) m).getController().getKey();
+		} else if (m instanceof LocalControllerDisconnect) {
+			return ((LocalControllerDisconnect) m).getController().getKey();
+		} else if (m instanceof ControllerTask) {
+			return ((ControllerTask) m).getController().getKey();
+		}
+		return null;
+	}
+
 	public void execute(Message m) {
 		actions.get(m.getMethod()).execute(m);
 	}
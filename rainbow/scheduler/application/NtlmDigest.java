@@ -0,0 +1,116 @@
+package rainbow.scheduler.application;
+
+import java.security.MessageDigest;
+
+/**
+ *
+ * NTLM hash, MD4 of the plaintext in UTF-16LE
+ *
+ * Each byte given to update is taken as one Latin-1 character and widened to
+ * two bytes, that is the same as UTF-16LE for every character in the
+ * keyspaces and lets the cursor's byte buffer be hashed as it is. The JDK
+ * has no public MD4 so it is done here (RFC 1320)
+ */
+public class NtlmDigest extends MessageDigest {
+
+	private static final int[] ROUND2 = {0, 4, 8, 12, 1, 5, 9, 13, 2, 6, 10, 14, 3, 7, 11, 15};
+	private static final int[] ROUND3 = {0, 8, 4, 12, 2, 10, 6, 14, 1, 9, 5, 13, 3, 11, 7, 15};
+	private int[] state = new int[4];
+	private byte[] block = new byte[64];
+	private int[] words = new int[16];
+	// Bytes of MD4 input so far, twice the bytes given to update
+	private long count;
+
+	public NtlmDigest() {
+		super("NTLM");
+		engineReset();
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 16;
+	}
+
+	@Override
+	protected void engineReset() {
+		state[0] = 0x67452301;
+		state[1] = 0xefcdab89;
+		state[2] = 0x98badcfe;
+		state[3] = 0x10325476;
+		count = 0;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		add(input);
+		add((byte) 0);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			add(input[i]);
+			add((byte) 0);
+		}
+	}
+
+	private void add(byte b) {
+		int position = (int) (count & 63);
+		block[position] = b;
+		count++;
+		if (position == 63) {
+			transform();
+		}
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		long bits = count << 3;
+		add((byte) 0x80);
+		while ((count & 63) != 56) {
+			add((byte) 0);
+		}
+		for (int i = 0; i < 8; i++) {
+			add((byte) (bits >>> (8 * i)));
+		}
+		byte[] digest = new byte[16];
+		for (int i = 0; i < 16; i++) {
+			digest[i] = (byte) (state[i / 4] >>> (8 * (i % 4)));
+		}
+		engineReset();
+		return digest;
+	}
+
+	private void transform() {
+		for (int i = 0; i < 16; i++) {
+			words[i] = (block[i * 4] & 0xff) | (block[i * 4 + 1] & 0xff) << 8
+					| (block[i * 4 + 2] & 0xff) << 16 | (block[i * 4 + 3] & 0xff) << 24;
+		}
+		int a = state[0];
+		int b = state[1];
+		int c = state[2];
+		int d = state[3];
+		for (int i = 0; i < 16; i += 4) {
+			a = Integer.rotateLeft(a + ((b & c) | (~b & d)) + words[i], 3);
+			d = Integer.rotateLeft(d + ((a & b) | (~a & c)) + words[i + 1], 7);
+			c = Integer.rotateLeft(c + ((d & a) | (~d & b)) + words[i + 2], 11);
+			b = Integer.rotateLeft(b + ((c & d) | (~c & a)) + words[i + 3], 19);
+		}
+		for (int i = 0; i < 16; i += 4) {
+			a = Integer.rotateLeft(a + ((b & c) | (b & d) | (c & d)) + words[ROUND2[i]] + 0x5a827999, 3);
+			d = Integer.rotateLeft(d + ((a & b) | (a & c) | (b & c)) + words[ROUND2[i + 1]] + 0x5a827999, 5);
+			c = Integer.rotateLeft(c + ((d & a) | (d & b) | (a & b)) + words[ROUND2[i + 2]] + 0x5a827999, 9);
+			b = Integer.rotateLeft(b + ((c & d) | (c & a) | (d & a)) + words[ROUND2[i + 3]] + 0x5a827999, 13);
+		}
+		for (int i = 0; i < 16; i += 4) {
+			a = Integer.rotateLeft(a + (b ^ c ^ d) + words[ROUND3[i]] + 0x6ed9eba1, 3);
+			d = Integer.rotateLeft(d + (a ^ b ^ c) + words[ROUND3[i + 1]] + 0x6ed9eba1, 9);
+			c = Integer.rotateLeft(c + (d ^ a ^ b) + words[ROUND3[i + 2]] + 0x6ed9eba1, 11);
+			b = Integer.rotateLeft(b + (c ^ d ^ a) + words[ROUND3[i + 3]] + 0x6ed9eba1, 15);
+		}
+		state[0] += a;
+		state[1] += b;
+		state[2] += c;
+		state[3] += d;
+	}
+}
@@ -0,0 +1,43 @@
+package rainbow.scheduler.application;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import rainbowpc.Message;
+import rainbowpc.scheduler.SchedulerProtocol;
+
+/**
+ *
+ * The real network transport, remote controllers connect through the
+ * rainbowpc SchedulerProtocol
+ */
+public class ProtocolTransport implements Transport {
+
+	private Executor executor;
+	private SchedulerProtocol protocol;
+
+	public ProtocolTransport() throws IOException {
+		executor = Executors.newSingleThreadExecutor();
+		protocol = new SchedulerProtocol();
+	}
+
+	@Override
+	public void start() {
+		executor.execute(protocol);
+	}
+
+	@Override
+	public Message receive() throws InterruptedException {
+		return protocol.getMessage();
+	}
+
+	@Override
+	public void shutdown() {
+		protocol.shutdown();
+	}
+
+	@Override
+	public boolean hasExited() {
+		return protocol.hasExited();
+	}
+}
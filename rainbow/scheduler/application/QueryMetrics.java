@@ -0,0 +1,129 @@
+package rainbow.scheduler.application;
+
+import rainbow.scheduler.partition.PartitionManager;
+import rainbow.scheduler.partition.PlaintextSpace;
+
+/**
+ *
+ * Progress of a query, the partition manager is only touched by sample() on
+ * the scheduler thread, JMX reads the sampled values
+ *
+ * The hash rate is how fast the covered part of the space grows, so the ETA
+ * is what is left over that rate. It includes everything that sped the
+ * query up or slowed it down, i.e. other queries sharing the controllers.
+ * Unlike the controller rates it is in hashes of the query's own method
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+	private ActiveQuery active;
+	private RateEstimator rate = new RateEstimator();
+	private long lastSampleTime;
+	private long lastCovered;
+	private volatile int targetsRemaining;
+	private volatile int processing;
+	private volatile int cached;
+	private volatile int caching;
+	private volatile int completedRanges;
+	private volatile double percentCovered;
+	private volatile double hashRate;
+	private volatile long etaSeconds = -1;
+
+	public QueryMetrics(ActiveQuery active) {
+		this.active = active;
+		this.lastSampleTime = System.currentTimeMillis();
+	}
+
+	/*
+	 * Called on the scheduler thread
+	 */
+	void sample() {
+		long now = System.currentTimeMillis();
+		PartitionManager pm = active.getPartitionManager();
+		long covered = pm.getCoveredBlocks();
+		long total = pm.getTotalBlocks();
+		if (covered > lastCovered) {
+			rate.addSample((covered - lastCovered) * PlaintextSpace.BLOCK_SIZE, now - lastSampleTime);
+		}
+		lastCovered = covered;
+		lastSampleTime = now;
+		targetsRemaining = active.getQuery().getTargets().getRemaining();
+		processing = pm.getProcessing().size();
+		cached = pm.getCached().size();
+		caching = pm.getCaching().size();
+		completedRanges = pm.getCompletedRanges();
+		percentCovered = total == 0 ? 100 : 100.0 * covered / total;
+		hashRate = rate.getRate();
+		etaSeconds = hashRate > 0 ? (long) ((double) (total - covered) * PlaintextSpace.BLOCK_SIZE / hashRate) : -1;
+	}
+
+	@Override
+	public int getQueryID() {
+		return active.getQueryID();
+	}
+
+	@Override
+	public String getPriority() {
+		return active.getQuery().getPriority().name();
+	}
+
+	@Override
+	public String getTenant() {
+		return active.getQuery().getTenant();
+	}
+
+	/*
+	 * 1 unless the query is behind its deadline
+	 */
+	@Override
+	public double getDeadlineBoost() {
+		return active.getDeadlineBoost();
+	}
+
+	@Override
+	public int getTargetsRemaining() {
+		return targetsRemaining;
+	}
+
+	@Override
+	public int getProcessingPartitions() {
+		return processing;
+	}
+
+	@Override
+	public int getCachedPartitions() {
+		return cached;
+	}
+
+	@Override
+	public int getCachingPartitions() {
+		return caching;
+	}
+
+	@Override
+	public int getCompletedRanges() {
+		return completedRanges;
+	}
+
+	@Override
+	public double getPercentCovered() {
+		return percentCovered;
+	}
+
+	@Override
+	public double getHashRate() {
+		return hashRate;
+	}
+
+	/*
+	 * -1 until the query has made some progress
+	 */
+	@Override
+	public long getEtaSeconds() {
+		return etaSeconds;
+	}
+
+	@Override
+	public long getElapsedSeconds() {
+		return (System.currentTimeMillis() - active.getStartTime()) / 1000;
+	}
+}
@@ -0,0 +1,34 @@
+package rainbow.scheduler.application;
+
+/**
+ *
+ * Progress of one query, sampled once per lease tick
+ */
+public interface QueryMetricsMBean {
+
+	public int getQueryID();
+
+	public String getPriority();
+
+	public String getTenant();
+
+	public double getDeadlineBoost();
+
+	public int getTargetsRemaining();
+
+	public int getProcessingPartitions();
+
+	public int getCachedPartitions();
+
+	public int getCachingPartitions();
+
+	public int getCompletedRanges();
+
+	public double getPercentCovered();
+
+	public double getHashRate();
+
+	public long getEtaSeconds();
+
+	public long getElapsedSeconds();
+}
@@ -0,0 +1,146 @@
+package rainbow.scheduler.application;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import rainbow.scheduler.partition.Mask;
+import rainbow.scheduler.partition.PartitionJournal;
+
+/**
+ *
+ * Keeps the running queries on disk so they can be picked up again after the
+ * scheduler restarts
+ *
+ * Each query has a properties file with the method and the digests that have
+ * not been found yet and a journal of its completed blocks, both named after
+ * the query's state name
+ */
+public class QueryStore {
+
+	private static final String QUERY_SUFFIX = ".query";
+	private static final String JOURNAL_SUFFIX = ".journal";
+	private File directory;
+
+	public QueryStore(File directory) throws IOException {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create state directory " + directory);
+		}
+	}
+
+	/*
+	 * A name that stays the same for the query across restarts, unlike the
+	 * queryID
+	 */
+	public String newName(HashQuery query) {
+		return "query-" + System.currentTimeMillis() + "-" + query.getQueryID();
+	}
+
+	/*
+	 * Names of the queries that were running when the scheduler stopped, in
+	 * the order they were started
+	 */
+	public List<String> getNames() {
+		List<String> names = new ArrayList<String>();
+		String[] files = directory.list();
+		if (files == null) {
+			return names;
+		}
+		Arrays.sort(files);
+		for (String file : files) {
+			if (file.endsWith(QUERY_SUFFIX)) {
+				names.add(file.substring(0, file.length() - QUERY_SUFFIX.length()));
+			}
+		}
+		return names;
+	}
+
+	public void save(String name, HashQuery query) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("method", query.getMethod());
+		StringBuilder digests = new StringBuilder();
+		for (String digest : query.getTargets().getRemainingDigests()) {
+			if (digests.length() > 0) {
+				digests.append(',');
+			}
+			digests.append(digest);
+		}
+		properties.setProperty("digests", digests.toString());
+		properties.setProperty("priority", query.getPriority().name());
+		properties.setProperty("tenant", query.getTenant());
+		properties.setProperty("deadline", Long.toString(query.getDeadline()));
+		Mask mask = query.getMask();
+		if (mask != null) {
+			// One charset per position, a custom mask can't be parsed back
+			properties.setProperty("mask.length", Integer.toString(mask.getLength()));
+			for (int i = 0; i < mask.getLength(); i++) {
+				properties.setProperty("mask." + i, mask.getCharset(i));
+			}
+			properties.setProperty("mask.increment", Boolean.toString(query.isIncrement()));
+		}
+		// Write to a temporary file first so a crash can't leave half a file
+		File temp = new File(directory, name + QUERY_SUFFIX + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			properties.store(out, "Rainbow scheduler query");
+		} finally {
+			out.close();
+		}
+		File file = new File(directory, name + QUERY_SUFFIX);
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Could not save query " + file);
+			}
+		}
+	}
+
+	/*
+	 * Loads a saved query, it gets a new queryID
+	 */
+	public HashQuery load(String name) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(new File(directory, name + QUERY_SUFFIX));
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		List<String> digests = Arrays.asList(properties.getProperty("digests").split(","));
+		String maskLength = properties.getProperty("mask.length");
+		HashQuery query;
+		if (maskLength != null) {
+			String[] charsets = new String[Integer.parseInt(maskLength)];
+			for (int i = 0; i < charsets.length; i++) {
+				charsets[i] = properties.getProperty("mask." + i);
+			}
+			query = new HashQuery(digests, properties.getProperty("method"), new Mask(charsets),
+					Boolean.parseBoolean(properties.getProperty("mask.increment")));
+		} else {
+			query = new HashQuery(digests, properties.getProperty("method"));
+		}
+		// Queries saved before there were priorities are normal
+		query.setPriority(HashQuery.Priority.valueOf(properties.getProperty("priority", "NORMAL")));
+		query.setTenant(properties.getProperty("tenant", HashQuery.DEFAULT_TENANT));
+		query.setDeadline(Long.parseLong(properties.getProperty("deadline", "0")));
+		return query;
+	}
+
+	public PartitionJournal openJournal(String name) throws IOException {
+		return new PartitionJournal(new File(directory, name + JOURNAL_SUFFIX));
+	}
+
+	/*
+	 * Forgets a query that is done, its journal is deleted by the caller
+	 */
+	public void remove(String name) {
+		new File(directory, name + QUERY_SUFFIX).delete();
+	}
+}
@@ -0,0 +1,51 @@
+package rainbow.scheduler.application;
+
+/**
+ *
+ * Keeps a moving estimate of how many hashes per second a controller does,
+ * counted in work units (MD5 hashes, see HashAlgorithm) so it doesn't change
+ * with the method of the query
+ *
+ * Uses an exponentially weighted moving average so a node that slows down or
+ * speeds up is picked up after a few blocks without being thrown off by one
+ * slow round trip
+ */
+public class RateEstimator {
+
+	// Weight of the newest sample
+	public static double SMOOTHING = 0.3;
+	// Read by the metrics off the controller's lane
+	private volatile double rate = 0;
+	private volatile int samples = 0;
+
+	/*
+	 * Adds a measurement of work done in a number of milliseconds
+	 */
+	public void addSample(long work, long millis) {
+		if (millis <= 0 || work <= 0) {
+			return;
+		}
+		double sample = (double) work * 1000 / millis;
+		if (samples == 0) {
+			rate = sample;
+		} else {
+			rate = SMOOTHING * sample + (1 - SMOOTHING) * rate;
+		}
+		samples++;
+	}
+
+	public boolean hasEstimate() {
+		return samples > 0;
+	}
+
+	/*
+	 * Work units per second, 0 if there are no samples yet
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+}
@@ -0,0 +1,283 @@
+package rainbow.scheduler.application;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import rainbow.scheduler.partition.Mask;
+
+/**
+ *
+ * What every query that ever finished found out, kept across restarts so the
+ * same digest is never swept for twice
+ *
+ * A found plaintext is stored under its method and digest. A query that
+ * swept its whole keyspace without finding a digest stores a miss under the
+ * method, the digest and the keyspace, the same digest can still be in a
+ * bigger keyspace
+ *
+ * The store is a memory mapped hash table of fixed size slots with linear
+ * probing. Slots are only ever added so a lookup is a few reads from the
+ * mapping. Once it is half full it is rehashed into a file twice the size
+ * and renamed over the old one, like PartitionJournal.compact
+ *
+ * Slot layout: byte type, byte digestLength, byte plaintextLength, byte
+ * unused, int method hash, MAX_DIGEST bytes of digest, then MAX_PLAINTEXT
+ * bytes of UTF-8 plaintext for a result or the long keyspace for a miss.
+ * Slot 0 is the header: int magic, int slot size, int capacity, int count
+ *
+ * Digests longer than MAX_DIGEST bytes and plaintexts longer than
+ * MAX_PLAINTEXT bytes are not stored, the query just runs again
+ *
+ * Called from any lane so everything is synchronized
+ */
+public class ResultStore {
+
+	private static final int MAGIC = 0x52525354; // RRST
+	private static final int EMPTY = 0;
+	private static final int FOUND = 1;
+	private static final int MISS = 2;
+	private static final int SLOT_SIZE = 64;
+	private static final int DIGEST_OFFSET = 8;
+	private static final int MAX_DIGEST = 32;
+	private static final int VALUE_OFFSET = DIGEST_OFFSET + MAX_DIGEST;
+	public static final int MAX_PLAINTEXT = SLOT_SIZE - VALUE_OFFSET;
+	public static int DEFAULT_CAPACITY = 1 << 14; // slots, 1MB
+	private File file;
+	private RandomAccessFile raf;
+	private MappedByteBuffer buffer;
+	// Slots including the header
+	private int capacity;
+	private int count;
+
+	public ResultStore(File file) throws IOException {
+		this.file = file;
+		boolean exists = file.exists() && file.length() >= SLOT_SIZE;
+		map(file, exists ? (int) file.length() / SLOT_SIZE : DEFAULT_CAPACITY);
+		if (!exists || buffer.getInt(0) != MAGIC || buffer.getInt(4) != SLOT_SIZE
+				|| buffer.getInt(8) != capacity) {
+			for (int i = 0; i < capacity * SLOT_SIZE; i++) {
+				buffer.put(i, (byte) 0);
+			}
+			writeHeader();
+		}
+		count = buffer.getInt(12);
+	}
+
+	private void map(File target, int slots) throws IOException {
+		raf = new RandomAccessFile(target, "rw");
+		raf.setLength((long) slots * SLOT_SIZE);
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) slots * SLOT_SIZE);
+		capacity = slots;
+	}
+
+	private void writeHeader() {
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, SLOT_SIZE);
+		buffer.putInt(8, capacity);
+		buffer.putInt(12, count);
+	}
+
+	/*
+	 * Fingerprint of a keyspace, the charsets are sorted so the same space in
+	 * another order (see CharacterModel) is the same keyspace
+	 */
+	public static long keyspace(Mask mask, boolean increment) {
+		// FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < mask.getLength(); i++) {
+			char[] charset = mask.getCharset(i).toCharArray();
+			Arrays.sort(charset);
+			for (char c : charset) {
+				hash = (hash ^ c) * 0x100000001b3L;
+			}
+			hash = (hash ^ 0xffff) * 0x100000001b3L;
+		}
+		return (hash ^ (increment ? 1 : 0)) * 0x100000001b3L;
+	}
+
+	private static int slotHash(int method, byte[] digest, long keyspace) {
+		int hash = method * 31 + Arrays.hashCode(digest);
+		hash = hash * 31 + (int) (keyspace ^ (keyspace >>> 32));
+		// Spread the bits, the low ones pick the slot
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash & Integer.MAX_VALUE;
+	}
+
+	/*
+	 * Offset of the slot holding the key, or of the empty slot where it goes
+	 */
+	private int find(int type, int method, byte[] digest, long keyspace) {
+		int slots = capacity - 1;
+		int slot = slotHash(method, digest, type == MISS ? keyspace : 0) % slots;
+		while (true) {
+			int offset = (slot + 1) * SLOT_SIZE;
+			int found = buffer.get(offset);
+			if (found == EMPTY || found == type && matches(offset, method, digest, keyspace)) {
+				return offset;
+			}
+			slot = (slot + 1) % slots;
+		}
+	}
+
+	private boolean matches(int offset, int method, byte[] digest, long keyspace) {
+		if (buffer.getInt(offset + 4) != method || buffer.get(offset + 1) != digest.length) {
+			return false;
+		}
+		for (int i = 0; i < digest.length; i++) {
+			if (buffer.get(offset + DIGEST_OFFSET + i) != digest[i]) {
+				return false;
+			}
+		}
+		return buffer.get(offset) != MISS || buffer.getLong(offset + VALUE_OFFSET) == keyspace;
+	}
+
+	/*
+	 * The plaintext of a digest, null if it was never found
+	 */
+	public synchronized String getPlaintext(String method, byte[] digest) {
+		if (digest.length > MAX_DIGEST) {
+			return null;
+		}
+		int offset = find(FOUND, method.hashCode(), digest, 0);
+		if (buffer.get(offset) == EMPTY) {
+			return null;
+		}
+		byte[] text = new byte[buffer.get(offset + 2)];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = buffer.get(offset + VALUE_OFFSET + i);
+		}
+		try {
+			return new String(text, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/*
+	 * True if a sweep of the keyspace didn't find the digest
+	 */
+	public synchronized boolean isMiss(String method, byte[] digest, long keyspace) {
+		if (digest.length > MAX_DIGEST) {
+			return false;
+		}
+		return buffer.get(find(MISS, method.hashCode(), digest, keyspace)) != EMPTY;
+	}
+
+	public synchronized void addPlaintext(String method, byte[] digest, String plaintext) {
+		byte[] text;
+		try {
+			text = plaintext.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		if (digest.length > MAX_DIGEST || text.length > MAX_PLAINTEXT) {
+			return;
+		}
+		int offset = find(FOUND, method.hashCode(), digest, 0);
+		if (buffer.get(offset) != EMPTY) {
+			return;
+		}
+		for (int i = 0; i < text.length; i++) {
+			buffer.put(offset + VALUE_OFFSET + i, text[i]);
+		}
+		buffer.put(offset + 2, (byte) text.length);
+		put(offset, FOUND, method.hashCode(), digest);
+	}
+
+	public synchronized void addMiss(String method, byte[] digest, long keyspace) {
+		if (digest.length > MAX_DIGEST) {
+			return;
+		}
+		int offset = find(MISS, method.hashCode(), digest, keyspace);
+		if (buffer.get(offset) != EMPTY) {
+			return;
+		}
+		buffer.putLong(offset + VALUE_OFFSET, keyspace);
+		put(offset, MISS, method.hashCode(), digest);
+	}
+
+	/*
+	 * Fills in the key of a slot whose value is written, the type goes last
+	 * so a crash mid slot leaves it empty
+	 */
+	private void put(int offset, int type, int method, byte[] digest) {
+		buffer.put(offset + 1, (byte) digest.length);
+		buffer.putInt(offset + 4, method);
+		for (int i = 0; i < digest.length; i++) {
+			buffer.put(offset + DIGEST_OFFSET + i, digest[i]);
+		}
+		buffer.put(offset, (byte) type);
+		count++;
+		buffer.putInt(12, count);
+		if (count > (capacity - 1) / 2) {
+			grow();
+		}
+	}
+
+	/*
+	 * Rehashes every slot into a new file twice the size and moves it over
+	 * the old one atomically, a crash at any point leaves one whole store
+	 */
+	private void grow() {
+		File oldFile = file;
+		File temp = new File(file.getPath() + ".tmp");
+		MappedByteBuffer old = buffer;
+		int oldCapacity = capacity;
+		try {
+			RandomAccessFile oldRaf = raf;
+			temp.delete();
+			map(temp, (oldCapacity - 1) * 2 + 1);
+			writeHeader();
+			byte[] slot = new byte[SLOT_SIZE];
+			for (int offset = SLOT_SIZE; offset < oldCapacity * SLOT_SIZE; offset += SLOT_SIZE) {
+				int type = old.get(offset);
+				if (type == EMPTY) {
+					continue;
+				}
+				byte[] digest = new byte[old.get(offset + 1)];
+				for (int i = 0; i < digest.length; i++) {
+					digest[i] = old.get(offset + DIGEST_OFFSET + i);
+				}
+				int target = find(type, old.getInt(offset + 4), digest, old.getLong(offset + VALUE_OFFSET));
+				for (int i = 0; i < SLOT_SIZE; i++) {
+					slot[i] = old.get(offset + i);
+				}
+				for (int i = 0; i < SLOT_SIZE; i++) {
+					buffer.put(target + i, slot[i]);
+				}
+			}
+			buffer.force();
+			raf.close();
+			oldRaf.close();
+			Files.move(temp.toPath(), oldFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			map(oldFile, capacity);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not grow result store " + oldFile, e);
+		}
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	/*
+	 * Forces the slots to disk, the operating system writes them back anyway
+	 */
+	public synchronized void flush() {
+		buffer.force();
+	}
+
+	public synchronized void close() throws IOException {
+		buffer.force();
+		raf.close();
+	}
+}
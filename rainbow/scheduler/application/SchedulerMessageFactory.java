@@ -4,6 +4,12 @@
  */
 package rainbow.scheduler.application;
 
+import java.util.List;
+import rainbow.scheduler.application.message.CacheBuild;
+import rainbow.scheduler.application.message.CacheEvict;
+import rainbow.scheduler.application.message.CacheLookup;
+import rainbow.scheduler.application.message.WorkBlockBatch;
+import rainbow.scheduler.application.message.WorkBlockShrink;
 import rainbow.scheduler.partition.Partition;
 import rainbowpc.controller.messages.NewQuery;
 import rainbowpc.controller.messages.StopQuery;
@@ -24,6 +30,28 @@ public class SchedulerMessageFactory {
 		return new WorkBlockSetup(p.stringLength, p.startBlockNumber, p.endBlockNumber, query.getQueryID());
 	}
 
+	public static CacheBuild createCacheBuild(CacheDirectory.Entry entry, String alphabet) {
+		Partition p = entry.getRange();
+		return new CacheBuild(entry.getMethod(), alphabet, p.stringLength, p.startBlockNumber, p.endBlockNumber);
+	}
+
+	public static CacheEvict createCacheEvict(CacheDirectory.Entry entry) {
+		Partition p = entry.getRange();
+		return new CacheEvict(entry.getMethod(), p.stringLength, p.startBlockNumber, p.endBlockNumber);
+	}
+
+	public static CacheLookup createCacheLookup(Partition p, HashQuery query) {
+		return new CacheLookup(query.getQueryID(), p.stringLength, p.startBlockNumber, p.endBlockNumber);
+	}
+
+	public static WorkBlockShrink createWorkBlockShrink(Partition p, HashQuery query) {
+		return new WorkBlockShrink(query.getQueryID(), p.stringLength, p.startBlockNumber, p.endBlockNumber);
+	}
+
+	public static WorkBlockBatch createWorkBlockBatch(List<Partition> partitions, HashQuery query) {
+		return new WorkBlockBatch(query.getQueryID(), partitions);
+	}
+
 	public static Partition createPartition(WorkBlockComplete block) {
 		return new Partition(block.getStringLength(), block.getStartBlockNumber(), block.getEndBlockNumber());
 	}
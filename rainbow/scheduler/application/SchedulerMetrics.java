@@ -0,0 +1,178 @@
+package rainbow.scheduler.application;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import rainbow.scheduler.metrics.LatencyHistogram;
+
+/**
+ *
+ * Counters and histograms for the whole scheduler, exported over JMX
+ *
+ * The counters are only bumped by the scheduler thread so plain atomics are
+ * enough, there is nothing to stripe. Anything that needs walking the
+ * scheduler's collections is computed on the scheduler thread once per
+ * lease tick by sample() and read from volatile fields, JMX calls come in on
+ * other threads
+ */
+public class SchedulerMetrics implements SchedulerMetricsMBean {
+
+	private SchedulerServer server;
+	AtomicLong messagesHandled = new AtomicLong();
+	AtomicLong partitionsCompleted = new AtomicLong();
+	AtomicLong leasesExpired = new AtomicLong();
+	AtomicLong partitionsSplit = new AtomicLong();
+	// Time from a message being queued to the scheduler thread taking it
+	LatencyHistogram queueWaitMicros = new LatencyHistogram();
+	// Time the scheduler thread spends on a message
+	LatencyHistogram handleMicros = new LatencyHistogram();
+	// Time from a partition being sent to it being reported complete
+	LatencyHistogram roundTripMillis = new LatencyHistogram();
+	private volatile double clusterHashRate = 0;
+	private volatile int controllers = 0;
+	private volatile int hungControllers = 0;
+	private volatile int activeQueries = 0;
+
+	public SchedulerMetrics(SchedulerServer server) {
+		this.server = server;
+	}
+
+	/*
+	 * Called on the scheduler thread
+	 */
+	void sample() {
+		double rate = 0;
+		int hung = 0;
+		Collection<Controller> all = server.getControllers();
+		for (Controller controller : all) {
+			rate += controller.getRate().getRate();
+			if (controller.isHung()) {
+				hung++;
+			}
+		}
+		clusterHashRate = rate;
+		controllers = all.size();
+		hungControllers = hung;
+		activeQueries = server.queryOrder.size();
+		for (ActiveQuery active : server.queryOrder) {
+			active.getMetrics().sample();
+		}
+	}
+
+	@Override
+	public long getMessagesHandled() {
+		return messagesHandled.get();
+	}
+
+	@Override
+	public int getInboundQueueDepth() {
+		return server.getInboundQueueDepth();
+	}
+
+	@Override
+	public double getClusterHashRate() {
+		return clusterHashRate;
+	}
+
+	@Override
+	public int getControllers() {
+		return controllers;
+	}
+
+	@Override
+	public int getHungControllers() {
+		return hungControllers;
+	}
+
+	@Override
+	public int getActiveQueries() {
+		return activeQueries;
+	}
+
+	@Override
+	public long getPartitionsCompleted() {
+		return partitionsCompleted.get();
+	}
+
+	@Override
+	public long getLeasesExpired() {
+		return leasesExpired.get();
+	}
+
+	@Override
+	public int getCacheRanges() {
+		return server.getCaches().size();
+	}
+
+	@Override
+	public long getCacheBlocksSaved() {
+		return server.getCaches().getSavedBlocks();
+	}
+
+	@Override
+	public int getStoredResults() {
+		ResultStore results = server.getResults();
+		return results == null ? 0 : results.size();
+	}
+
+	@Override
+	public long getPartitionsSplit() {
+		return partitionsSplit.get();
+	}
+
+	@Override
+	public long getQueueWaitMicrosP50() {
+		return queueWaitMicros.getPercentile(50);
+	}
+
+	@Override
+	public long getQueueWaitMicrosP99() {
+		return queueWaitMicros.getPercentile(99);
+	}
+
+	@Override
+	public long getHandleMicrosP50() {
+		return handleMicros.getPercentile(50);
+	}
+
+	@Override
+	public long getHandleMicrosP99() {
+		return handleMicros.getPercentile(99);
+	}
+
+	@Override
+	public long getHandleMicrosMax() {
+		return handleMicros.getMax();
+	}
+
+	@Override
+	public long getRoundTripMillisP50() {
+		return roundTripMillis.getPercentile(50);
+	}
+
+	@Override
+	public long getRoundTripMillisP90() {
+		return roundTripMillis.getPercentile(90);
+	}
+
+	@Override
+	public long getRoundTripMillisP99() {
+		return roundTripMillis.getPercentile(99);
+	}
+
+	@Override
+	public long getRoundTripMillisMax() {
+		return roundTripMillis.getMax();
+	}
+
+	@Override
+	public String getRoundTripHistogram() {
+		return roundTripMillis.toString();
+	}
+
+	@Override
+	public void resetHistograms() {
+		queueWaitMicros.reset();
+		handleMicros.reset();
+		roundTripMillis.reset();
+	}
+}
@@ -0,0 +1,56 @@
+package rainbow.scheduler.application;
+
+/**
+ *
+ * Scheduler wide metrics, rates are MD5 hashes per second (work units, see
+ * HashAlgorithm), the histogram values are the top of the bucket the
+ * percentile falls in
+ */
+public interface SchedulerMetricsMBean {
+
+	public long getMessagesHandled();
+
+	public int getInboundQueueDepth();
+
+	public double getClusterHashRate();
+
+	public int getControllers();
+
+	public int getHungControllers();
+
+	public int getActiveQueries();
+
+	public long getPartitionsCompleted();
+
+	public long getLeasesExpired();
+
+	public long getPartitionsSplit();
+
+	public int getCacheRanges();
+
+	public long getCacheBlocksSaved();
+
+	public int getStoredResults();
+
+	public long getQueueWaitMicrosP50();
+
+	public long getQueueWaitMicrosP99();
+
+	public long getHandleMicrosP50();
+
+	public long getHandleMicrosP99();
+
+	public long getHandleMicrosMax();
+
+	public long getRoundTripMillisP50();
+
+	public long getRoundTripMillisP90();
+
+	public long getRoundTripMillisP99();
+
+	public long getRoundTripMillisMax();
+
+	public String getRoundTripHistogram();
+
+	public void resetHistograms();
+}
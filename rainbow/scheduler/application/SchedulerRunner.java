@@ -4,7 +4,17 @@
  */
 package rainbow.scheduler.application;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
+import rainbow.scheduler.partition.CharacterModel;
+import rainbow.scheduler.partition.Mask;
 
 /**
  *
@@ -17,16 +27,68 @@ public class SchedulerRunner {
 		ss.start();
 		Scanner s = new Scanner(System.in);
 		boolean done = false;
-		try {
-			do {
-				String line = s.nextLine();
-				String[] params = line.split(" ");
-				String command = params[0];
+		// Hash method of the digests in the queries that follow
+		HashAlgorithm algorithm = HashAlgorithm.MD5;
+		// Same for the priority, tenant and deadline (minutes from when the
+		// query is made, 0 for none)
+		HashQuery.Priority priority = HashQuery.Priority.NORMAL;
+		String tenant = HashQuery.DEFAULT_TENANT;
+		long deadlineMinutes = 0;
+		while (!done && s.hasNextLine()) {
+			String line = s.nextLine();
+			String[] params = line.split(" ");
+			String command = params[0];
+			// A bad command only prints an error, the scheduler keeps running
+			try {
 				// Too lazy to make a mapping just live with an if else chain for now
 				if (command.equals("quit")) {
 					done = true;
 				} else if (command.equals("query")) {
-					ss.newQuery(params[1]);
+					ss.newQuery(Collections.singletonList(params[1]), null, algorithm, priority, tenant, deadline(deadlineMinutes));
+				} else if (command.equals("algorithm")) {
+					// algorithm <md5|ntlm|sha1|sha256>, for the queries after it
+					try {
+						algorithm = HashAlgorithm.forName(params[1]);
+					} catch (IllegalArgumentException e) {
+						System.out.println("Error, " + e.getMessage());
+					}
+				} else if (command.equals("priority")) {
+					// priority <urgent|high|normal|low>, for the queries after it
+					try {
+						priority = HashQuery.Priority.valueOf(params[1].toUpperCase());
+					} catch (IllegalArgumentException e) {
+						System.out.println("Error, unknown priority " + params[1]);
+					}
+				} else if (command.equals("tenant")) {
+					// tenant <name>, who the queries after it are for
+					tenant = params[1];
+				} else if (command.equals("weight")) {
+					// weight <tenant> <weight>, the tenant's share against the
+					// other tenants of a priority class
+					ss.getFairShare().setWeight(params[1], Double.parseDouble(params[2]));
+				} else if (command.equals("deadline")) {
+					// deadline <minutes|none>, for the queries after it
+					deadlineMinutes = params[1].equals("none") ? 0 : Long.parseLong(params[1]);
+				} else if (command.equals("local")) {
+					// Work on queries on this machine as well
+					int threads = params.length > 1 ? Integer.parseInt(params[1]) : Runtime.getRuntime().availableProcessors();
+					ss.addLocalController(threads);
+				} else if (command.equals("queryfile")) {
+					// One digest per line, all searched for in one sweep
+					ss.newQuery(readDigests(params[1]), null, algorithm, priority, tenant, deadline(deadlineMinutes));
+				} else if (command.equals("mask")) {
+					// mask <mask> <digest> [custom charsets], i.e. mask ?u?l?l?l?d?d <digest>
+					String[] custom = Arrays.copyOfRange(params, 3, params.length);
+					ss.newQuery(Collections.singletonList(params[2]), Mask.parse(params[1], custom), algorithm, priority, tenant, deadline(deadlineMinutes));
+				} else if (command.equals("train")) {
+					// One password per line, later queries try likely plaintexts first
+					CharacterModel model = CharacterModel.train(new File(params[1]));
+					System.out.println("Trained on " + model.getWords() + " passwords");
+					ss.setModel(model);
+				} else if (command.equals("reorder")) {
+					// reorder <on|off>, the mask queries after it also try
+					// the likely characters of every position first
+					ss.setReorderCharsets(params[1].equals("on"));
 				} else if (command.equals("test1")) {
 					// md5 of "z"
 					ss.newQuery("fbade9e36a3f36d3d676c1b808451dd7");
@@ -43,11 +105,43 @@ public class SchedulerRunner {
 
 					System.out.println("Unknown command " + params[0]);
 				}
-			} while (!done);
-		} catch (Exception e) {
-			e.printStackTrace();
+			} catch (ArrayIndexOutOfBoundsException e) {
+				System.out.println("Error, missing arguments to " + command);
+			} catch (Exception e) {
+				System.out.println("Error, " + command + " failed: " + e);
+			}
 		}
 
 		ss.callInterrupt();
 	}
+
+	/*
+	 * Milliseconds when a query made now is due, 0 for no deadline
+	 */
+	private static long deadline(long minutes) {
+		return minutes > 0 ? System.currentTimeMillis() + minutes * 60000 : 0;
+	}
+
+	/*
+	 * Reads the digests from a hash list, skips blank lines and takes the last
+	 * field of user:hash style lines
+	 */
+	private static List<String> readDigests(String fileName) throws IOException {
+		List<String> digests = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+				String[] fields = line.split(":");
+				digests.add(fields[fields.length - 1].toLowerCase());
+			}
+		} finally {
+			reader.close();
+		}
+		return digests;
+	}
 }
@@ -1,71 +1,903 @@
 package rainbow.scheduler.application;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rainbow.scheduler.application.message.ControllerTask;
+import rainbow.scheduler.application.message.LeaseTickMessage;
+import rainbow.scheduler.application.message.LocalControllerMessage;
 import rainbow.scheduler.application.message.RequestQueryMessage;
+import rainbow.scheduler.metrics.MBeans;
 import rainbow.scheduler.partition.AlphabetGenerator;
+import rainbow.scheduler.partition.CharacterModel;
+import rainbow.scheduler.partition.Mask;
 import rainbow.scheduler.partition.Partition;
 import rainbow.scheduler.partition.PartitionManager;
 import rainbowpc.Message;
-import rainbowpc.scheduler.SchedulerProtocol;
 import rainbowpc.scheduler.SchedulerProtocolet;
 
 public class SchedulerServer extends Thread {
 
-	Executor executor;
-	SchedulerProtocol protocol;
+	static Logger logger = Logger.getLogger(SchedulerServer.class.getName());
+
+	// Where the messages from the controllers come from
+	Transport transport;
 	
-	HashQuery currentQuery;
-	PartitionManager pm;
+	// Queries being worked on, keyed by queryID
+	ConcurrentHashMap<Integer, ActiveQuery> queries = new ConcurrentHashMap<Integer, ActiveQuery>();
+	// Same queries in the order they arrived
+	CopyOnWriteArrayList<ActiveQuery> queryOrder = new CopyOnWriteArrayList<ActiveQuery>();
+	// Decides which query work is handed out from, by priority and weight
+	FairShare share = new FairShare();
 	String alphabet;
-	ArrayList<Controller> controllers = new ArrayList<Controller>();
+	int maxStringLength = 8;
+	// Looked up by the protocolet of every message so keyed by identity,
+	// lock it to use it
+	IdentityHashMap<Object, Controller> controllers = new IdentityHashMap<Object, Controller>();
 	MessageHandler messageHandler;
-	long startTime = System.currentTimeMillis();
+	// Saves the running queries so a restart continues where it stopped
+	QueryStore store;
+	// Plaintexts found and keyspaces swept in vain by earlier queries
+	ResultStore results;
+	// Digests a query is already looking for, keyed by method, keyspace and
+	// digest, so the same digest submitted again joins that query. Lock it
+	// to use it
+	HashMap<String, Integer> searching = new HashMap<String, Integer>();
+	// Every assignment has a lease, expired ones are taken back
+	LeaseWheel leases = new LeaseWheel(LEASE_TICK_MILLIS, LEASE_WHEEL_SLOTS, System.currentTimeMillis());
+	// Set when partitions went back in the pool since the last lease tick,
+	// the controllers with room are topped up on the tick
+	AtomicBoolean workReturned = new AtomicBoolean();
+	ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+	// Orders new queries likely plaintexts first, null sweeps in order
+	volatile CharacterModel model;
+	// Off unless asked for, see setReorderCharsets
+	volatile boolean reorderCharsets = false;
+	SchedulerMetrics metrics = new SchedulerMetrics(this);
+	// Rainbow tables of the default keyspace the controllers hold
+	CacheDirectory caches;
+	// Messages waiting for the scheduler thread, the ones that are not about
+	// one controller (new queries, lease ticks, found plaintexts)
+	LinkedBlockingQueue<Inbound> inbound = new LinkedBlockingQueue<Inbound>();
+	// Controller messages are handled on these, see HandlerLane
+	HandlerLane[] lanes;
 
+	// Blocks given to a controller until its rate is known
 	public static int WORKSIZE = 2;
+	// Threads handling controller messages, more than the cores since they
+	// spend time blocked on sends
+	public static int HANDLER_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+	// Once the rate is known partitions are sized to take this long
+	public static int TARGET_PARTITION_SECONDS = 30;
+	public static int MIN_WORKSIZE = 1;
+	public static int MAX_WORKSIZE = 10000;
 	public static int MESSAGES_BUFFERED = 3;
+	// Partitions for a controller that takes batches are held this long so
+	// they go out together, or until there are MAX_BATCH of them
+	public static long BATCH_WINDOW_MILLIS = 5;
+	public static int MAX_BATCH = 256;
+	// Most controllers working on the same partition in the endgame
+	public static int SPECULATIVE_COPIES = 2;
+	// A controller gets LEASE_FACTOR times as long as its rate says it needs
+	public static double LEASE_FACTOR = 3;
+	public static int LEASE_MIN_SECONDS = 60;
+	public static int LEASE_DEFAULT_SECONDS = 600;
+	public static long LEASE_TICK_MILLIS = 1000;
+	public static int LEASE_WHEEL_SLOTS = 512;
+	// Size of the range an idle controller builds a rainbow table for, and
+	// the hash method of the tables
+	public static int CACHE_BUILD_BLOCKS = 1000;
+	public static String CACHE_METHOD = "md5";
+	// Table storage of a controller, in blocks of the keyspace it covers
+	public static long CACHE_BUDGET_BLOCKS = 10 * CACHE_BUILD_BLOCKS;
+	// A holder that hasn't answered a lookup by then is not going to, the
+	// range is swept instead
+	public static int LOOKUP_LEASE_SECONDS = 60;
+
+	/*
+	 * A message and when it was queued
+	 */
+	static class Inbound {
+
+		Message message;
+		long queuedNanos;
+
+		Inbound(Message message) {
+			this.message = message;
+			this.queuedNanos = System.nanoTime();
+		}
+	}
 
 	public SchedulerServer() {
+		this(null);
+	}
+
+	/*
+	 * Runs on the given transport, null for the network protocol
+	 */
+	public SchedulerServer(Transport transport) {
+		MBeans.register(MBeans.name("Scheduler", null), metrics);
 		alphabet = AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.LOWER_CASE);
-		pm = new PartitionManager(alphabet, 8);
+		caches = new CacheDirectory(alphabet, maxStringLength, CACHE_BUILD_BLOCKS, CACHE_BUDGET_BLOCKS);
 		messageHandler = MessageHandler.createMessageAction(this);
+		File state = new File(System.getProperty("rainbow.scheduler.state", "scheduler-state"));
 		try {
-			executor = Executors.newSingleThreadExecutor();
-			protocol = new SchedulerProtocol();
+			store = new QueryStore(state);
+			results = new ResultStore(new File(state, "results.db"));
+			recoverQueries();
 		} catch (IOException e) {
+			System.out.println("Could not open the scheduler state, queries will not survive a restart");
 			e.printStackTrace();
-			System.exit(-1);
+			store = null;
+			results = null;
+		}
+		if (transport == null) {
+			try {
+				transport = new ProtocolTransport();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		this.transport = transport;
+		lanes = new HandlerLane[HANDLER_THREADS];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new HandlerLane(this, i);
 		}
 		buildHook();
 	}
 
 	public void callInterrupt() {
 		this.interrupt();
+		for (HandlerLane lane : lanes) {
+			lane.interrupt();
+		}
 	}
 
 	public void broadcast(Message message) {
-		for (Controller prot : controllers) {
+		for (Controller prot : getControllers()) {
 			try {
-				prot.getProtocol().sendMessage(message);
+				prot.send(message);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 		}
 	}
 
+	/*
+	 * Queues a message, messages about a controller go to that controller's
+	 * lane and everything else to the scheduler thread
+	 */
+	public void postMessage(Message message) {
+		Object key = messageHandler.getControllerKey(message);
+		if (key == null) {
+			inbound.add(new Inbound(message));
+		} else {
+			lanes[(System.identityHashCode(key) & Integer.MAX_VALUE) % lanes.length].post(message);
+		}
+	}
+
+	/*
+	 * Runs task on the controller's lane
+	 */
+	public void postTask(ControllerTask task) {
+		postMessage(task);
+	}
+
+	/*
+	 * Handles a message on whichever thread took it off its queue
+	 */
+	void handle(Inbound next) {
+		long started = System.nanoTime();
+		metrics.queueWaitMicros.record((started - next.queuedNanos) / 1000);
+		messageHandler.execute(next.message);
+		metrics.handleMicros.record((System.nanoTime() - started) / 1000);
+		metrics.messagesHandled.incrementAndGet();
+	}
+
+	public int getInboundQueueDepth() {
+		int depth = inbound.size();
+		for (HandlerLane lane : lanes) {
+			depth += lane.depth();
+		}
+		return depth;
+	}
+
+	public SchedulerMetrics getMetrics() {
+		return metrics;
+	}
+
+	public FairShare getFairShare() {
+		return share;
+	}
+
+	/*
+	 * Raises the share of the queries that are behind their deadline
+	 */
+	public void updateDeadlines() {
+		share.updateDeadlines(metrics.getClusterHashRate(), System.currentTimeMillis());
+	}
+
+	/*
+	 * Samples the metrics that need the scheduler's collections
+	 */
+	public void sampleMetrics() {
+		metrics.sample();
+	}
+
+	/*
+	 * Starts a controller on this machine with the given number of threads,
+	 * it registers once the scheduler thread picks up the message
+	 */
+	public LocalController addLocalController(int threads) {
+		LocalController controller = new LocalController(this, alphabet, threads);
+		postMessage(new LocalControllerMessage(controller));
+		return controller;
+	}
+
+	/*
+	 * Queries made after this hand out their likely blocks first, the
+	 * queries stay as they are so every controller still works on them
+	 */
+	public void setModel(CharacterModel model) {
+		this.model = model;
+	}
+
+	/*
+	 * Also reorders the charsets of every position of a mask query by the
+	 * model so the likely plaintexts come first within a block as well.
+	 * Queries without a mask are left alone, as a mask their partitions
+	 * would only go to controllers that support masks and they would lose the
+	 * rainbow table lookups
+	 */
+	public void setReorderCharsets(boolean reorderCharsets) {
+		this.reorderCharsets = reorderCharsets;
+	}
+
 	public Controller getController(SchedulerProtocolet protocol) {
-		for (Controller controller : controllers) {
-			if (controller.getProtocol() == protocol) {
-				return controller;
+		synchronized (controllers) {
+			return controllers.get(protocol);
+		}
+	}
+
+	/*
+	 * A copy, controllers come and go on the other lanes
+	 */
+	public Collection<Controller> getControllers() {
+		synchronized (controllers) {
+			return new ArrayList<Controller>(controllers.values());
+		}
+	}
+
+	public int getControllerCount() {
+		synchronized (controllers) {
+			return controllers.size();
+		}
+	}
+
+	/*
+	 * True if the controller is registered and hasn't disconnected
+	 */
+	public boolean hasController(Controller controller) {
+		synchronized (controllers) {
+			return controllers.get(controller.getKey()) == controller;
+		}
+	}
+
+	public void addController(Controller controller) {
+		synchronized (controllers) {
+			controllers.put(controller.getKey(), controller);
+		}
+		MBeans.register(MBeans.name("Controller", controller.getID()), controller.getMetrics());
+	}
+
+	public void removeController(Controller controller) {
+		synchronized (controllers) {
+			controllers.remove(controller.getKey());
+		}
+		MBeans.unregister(MBeans.name("Controller", controller.getID()));
+	}
+
+	public ActiveQuery getQuery(int queryID) {
+		return queries.get(queryID);
+	}
+
+	/*
+	 * Starts working on a query, each query gets its own partition manager so
+	 * queries don't disturb each other's progress
+	 */
+	public ActiveQuery addQuery(HashQuery query) {
+		return addQuery(query, null);
+	}
+
+	/*
+	 * Adds a query, stateName is the name of a query recovered from the store
+	 * or null for a new query
+	 */
+	private ActiveQuery addQuery(HashQuery query, String stateName) {
+		boolean recovered = stateName != null;
+		PartitionManager partitionManager = query.getMask() != null
+				? new PartitionManager(query.getMask(), query.isIncrement(), false)
+				: new PartitionManager(alphabet, maxStringLength);
+		CharacterModel currentModel = model;
+		if (currentModel != null) {
+			// Block order only, works for queries without a mask as well
+			partitionManager.orderBy(currentModel);
+		}
+		ActiveQuery active = new ActiveQuery(query, partitionManager);
+		if (store != null) {
+			try {
+				if (stateName == null) {
+					stateName = store.newName(query);
+				}
+				active.getPartitionManager().attachJournal(store.openJournal(stateName));
+				store.save(stateName, query);
+				active.setStateName(stateName);
+			} catch (IOException e) {
+				System.out.println("Could not save query " + query.getQueryID() + ", it will not survive a restart");
+				e.printStackTrace();
+			}
+		}
+		if (recovered) {
+			// The lookups of the cached ranges were lost, sweep them
+			for (Partition p : new ArrayList<Partition>(partitionManager.getCached())) {
+				partitionManager.releaseCache(p);
+			}
+		} else if (query.getMask() == null) {
+			// Only queries without a mask have the block numbers of the
+			// tables, the ranges are taken out before any work is handed out
+			for (CacheDirectory.Entry entry : caches.getReady(query.getMethod())) {
+				active.addLookup(entry);
+				partitionManager.notifyCache(entry.getRange().clone());
+			}
+		}
+		queries.put(query.getQueryID(), active);
+		queryOrder.add(active);
+		share.add(active);
+		MBeans.register(MBeans.name("Query", query.getQueryID()), active.getMetrics());
+		return active;
+	}
+
+	/*
+	 * Returns null if the query was already removed, only one caller gets it
+	 * when two lanes finish the same query
+	 */
+	public ActiveQuery removeQuery(int queryID) {
+		ActiveQuery active = queries.remove(queryID);
+		if (active != null) {
+			queryOrder.remove(active);
+			share.remove(active);
+			release(active.getQuery());
+			MBeans.unregister(MBeans.name("Query", queryID));
+			if (active.getStateName() != null) {
+				synchronized (store) {
+					store.remove(active.getStateName());
+				}
+				active.getPartitionManager().closeJournal();
+			}
+		}
+		return active;
+	}
+
+	/*
+	 * Saves the targets that are left after one of them was found
+	 */
+	public void saveQuery(ActiveQuery active) {
+		if (active.getStateName() == null) {
+			return;
+		}
+		// Holding the store lock so a query removed on another lane isn't
+		// saved again after its file was deleted
+		synchronized (store) {
+			if (queries.get(active.getQueryID()) != active) {
+				return;
+			}
+			try {
+				store.save(active.getStateName(), active.getQuery());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Picks up the queries that were running when the scheduler stopped, the
+	 * journals put back every block that was completed
+	 */
+	private void recoverQueries() throws IOException {
+		for (String name : store.getNames()) {
+			long start = System.currentTimeMillis();
+			HashQuery query = store.load(name);
+			claim(query);
+			ActiveQuery active = addQuery(query, name);
+			System.out.println(String.format("Recovered query %s as query %s in %s ms",
+					name, query.getQueryID(), System.currentTimeMillis() - start));
+			if (active.getPartitionManager().isComplete()) {
+				// It finished just as we went down
+				removeQuery(query.getQueryID());
+			}
+		}
+	}
+
+	/*
+	 * Makes sure the journals are on disk
+	 */
+	public void flushState() {
+		for (ActiveQuery active : queryOrder) {
+			active.getPartitionManager().flushJournal();
+		}
+		if (results != null) {
+			results.flush();
+		}
+	}
+
+	public ResultStore getResults() {
+		return results;
+	}
+
+	/*
+	 * Fingerprint of the plaintexts a query sweeps, see ResultStore.keyspace
+	 */
+	public long getKeyspace(HashQuery query) {
+		if (query.getMask() == null) {
+			return ResultStore.keyspace(Mask.uniform(alphabet, maxStringLength), true);
+		}
+		return ResultStore.keyspace(query.getMask(), query.isIncrement());
+	}
+
+	private static String searchKey(String method, long keyspace, String digest) {
+		return method + ":" + Long.toHexString(keyspace) + ":" + digest;
+	}
+
+	/*
+	 * Marks the digests of the query as being searched for
+	 */
+	private void claim(HashQuery query) {
+		long keyspace = getKeyspace(query);
+		synchronized (searching) {
+			for (String digest : query.getTargets().getRemainingDigests()) {
+				searching.put(searchKey(query.getMethod(), keyspace, digest), query.getQueryID());
+			}
+		}
+	}
+
+	/*
+	 * The query is done, its digests can be queried for again
+	 */
+	private void release(HashQuery query) {
+		synchronized (searching) {
+			for (Iterator<Integer> i = searching.values().iterator(); i.hasNext();) {
+				if (i.next() == query.getQueryID()) {
+					i.remove();
+				}
+			}
+		}
+	}
+
+	/*
+	 * The query swept its whole keyspace, the digests it didn't find are not
+	 * in there
+	 */
+	public void recordMisses(HashQuery query) {
+		if (results == null) {
+			return;
+		}
+		long keyspace = getKeyspace(query);
+		for (String digest : query.getTargets().getRemainingDigests()) {
+			results.addMiss(query.getMethod(), TargetSet.fromHex(digest), keyspace);
+		}
+	}
+
+	/*
+	 * A plaintext that was checked against its digest
+	 */
+	public void recordPlaintext(HashQuery query, byte[] digest, String plaintext) {
+		if (results != null) {
+			results.addPlaintext(query.getMethod(), digest, plaintext);
+		}
+	}
+
+	/*
+	 * Gives the controller a partition from the query FairShare puts first
+	 * of the ones that still have unassigned space and the controller can
+	 * work on. Called whenever a partition completes so a more urgent query
+	 * takes over at the partition boundaries
+	 *
+	 * Returns null if there is no work left in any query
+	 *
+	 * Runs on the controller's lane, the partition managers are shared with
+	 * the other lanes and lock themselves
+	 */
+	public Assignment assignWork(Controller controller) throws IOException {
+		if (controller.isHung()) {
+			return null;
+		}
+		for (ActiveQuery active : share.order()) {
+			if (!controller.hasQuery(active.getQueryID())) {
+				continue;
+			}
+			Partition partition = active.getPartitionManager().requestPartition(controller.getPartitionSize(active.getQuery()));
+			if (partition != null) {
+				return assign(controller, partition, active.getQuery());
+			}
+		}
+		if (controller.getAssignments().isEmpty()) {
+			Assignment stolen = assignSplit(controller);
+			if (stolen != null) {
+				return stolen;
+			}
+		}
+		Assignment duplicate = assignDuplicate(controller);
+		if (duplicate == null) {
+			assignCacheBuild(controller);
+		}
+		return duplicate;
+	}
+
+	/*
+	 * Gives a controller with nothing to do a range to build a rainbow table
+	 * for, if it builds them and isn't building one already
+	 */
+	public void assignCacheBuild(Controller controller) throws IOException {
+		if (!controller.supportsCaching() || !controller.getAssignments().isEmpty()) {
+			return;
+		}
+		List<CacheDirectory.Entry> evicted = new ArrayList<CacheDirectory.Entry>();
+		CacheDirectory.Entry entry = caches.requestBuild(controller, CACHE_METHOD, CACHE_BUILD_BLOCKS, evicted);
+		for (CacheDirectory.Entry old : evicted) {
+			logger.log(Level.INFO, String.format("Evicting %s, it saved %s blocks in %s lookups and had %s hits",
+					old, old.getSavedBlocks(), old.getLookups(), old.getHits()));
+			controller.evictCache(old);
+			cacheLost(old);
+		}
+		if (entry != null) {
+			logger.log(Level.INFO, "Controller " + controller.getID() + " is building " + entry);
+			controller.buildCache(entry, alphabet);
+		}
+	}
+
+	/*
+	 * Sends the lookups of a new query to the controllers holding the tables,
+	 * posted after the query itself so the controllers have it. Every lookup
+	 * has a lease like an assignment
+	 */
+	public void sendLookups(final ActiveQuery active) {
+		for (final CacheDirectory.Entry entry : active.getLookups()) {
+			postTask(new ControllerTask(entry.getHolder()) {
+
+				@Override
+				public void run() throws IOException {
+					if (!getController().hasQuery(active.getQueryID()) || getController().isHung()) {
+						cancelLookup(active, entry);
+						return;
+					}
+					getController().lookupCache(active.getQuery(), entry.getRange());
+					// Left to run out if the lookup completes, cancelLookup
+					// ignores a lookup that is gone
+					leases.add(new LeaseWheel.Lease(active, entry,
+							System.currentTimeMillis() + LOOKUP_LEASE_SECONDS * 1000L));
+				}
+			});
+		}
+	}
+
+	/*
+	 * A lookup can't be done after all, the range is brute forced instead.
+	 * The rest of the space may already be swept, then the query is done
+	 * once the range is
+	 */
+	public void cancelLookup(ActiveQuery active, CacheDirectory.Entry entry) {
+		if (active.removeLookup(entry)) {
+			logger.log(Level.INFO, "Lookup of " + entry + " for query " + active.getQueryID() + " lost, sweeping it");
+			active.getPartitionManager().releaseCache(entry.getRange());
+			notifyWorkReturned();
+			finishIfSwept(active);
+		}
+	}
+
+	/*
+	 * The holder is hung, the queries waiting on its tables sweep the ranges
+	 * instead
+	 */
+	public void cancelLookups(Controller holder) {
+		for (ActiveQuery active : queryOrder) {
+			for (CacheDirectory.Entry entry : active.getLookups()) {
+				if (entry.getHolder() == holder) {
+					cancelLookup(active, entry);
+				}
+			}
+		}
+	}
+
+	/*
+	 * A table is gone, every query still waiting on it sweeps the range
+	 */
+	public void cacheLost(CacheDirectory.Entry entry) {
+		for (ActiveQuery active : queryOrder) {
+			cancelLookup(active, entry);
+		}
+	}
+
+	public CacheDirectory getCaches() {
+		return caches;
+	}
+
+	/*
+	 * Sends the partition, charges its query's share and starts its lease
+	 */
+	private Assignment assign(Controller controller, Partition partition, HashQuery query) throws IOException {
+		share.charge(query.getQueryID(), query.getAlgorithm().getWork(partition.getNumberOfBlocks()));
+		// Only one owner is kept, a duplicated partition is never split
+		partition.setOwner(controller.supportsSplits() ? controller : null);
+		Assignment assignment = controller.assignPartition(partition, query);
+		if (controller.getPendingCount() >= MAX_BATCH) {
+			controller.flushBatches();
+		} else if (controller.getPendingCount() == 1) {
+			scheduleFlush(controller);
+		}
+		LeaseWheel.Lease lease = new LeaseWheel.Lease(controller, assignment,
+				System.currentTimeMillis() + controller.getLeaseMillis());
+		assignment.setLease(lease);
+		leases.add(lease);
+		return assignment;
+	}
+
+	/*
+	 * Sends whatever the controller has pending once the batch window is over
+	 */
+	private void scheduleFlush(final Controller controller) {
+		timer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				postTask(new ControllerTask(controller) {
+
+					@Override
+					public void run() throws IOException {
+						getController().flushBatches();
+					}
+				});
+			}
+		}, BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Takes back the partitions whose lease ran out, the controller is
+	 * treated as hung and gets no more work until it sends anything. A late
+	 * report still counts, see MessageHandler. Lookups whose lease ran out
+	 * and the lookups of a hung controller are swept instead
+	 *
+	 * The assignments are taken back on the controllers' lanes, the
+	 * partitions that came back go to whoever has room on the next tick.
+	 * Otherwise only the controllers with fewer assignments than at the last
+	 * tick are topped up, the rest are busy or there is nothing to give them
+	 */
+	public void expireLeases() {
+		for (final LeaseWheel.Lease lease : leases.advance(System.currentTimeMillis())) {
+			postTask(new ControllerTask(lease.getController()) {
+
+				@Override
+				public void run() {
+					if (lease.getLookup() != null) {
+						cancelLookup(lease.getQuery(), lease.getLookup());
+						return;
+					}
+					Controller controller = getController();
+					Assignment assignment = lease.getAssignment();
+					if (!controller.getAssignments().contains(assignment)) {
+						return;
+					}
+					logger.log(Level.WARNING, "Lease expired, taking back " + assignment);
+					metrics.leasesExpired.incrementAndGet();
+					controller.setHung(true);
+					failAssignment(controller, assignment);
+					cancelLookups(controller);
+				}
+			});
+		}
+		boolean returned = workReturned.getAndSet(false);
+		// The size is read off the lane so it is only a hint, the task
+		// checks again
+		for (Controller controller : getControllers()) {
+			boolean dropped = controller.assignmentsDropped();
+			if ((returned || dropped) && !controller.isHung()
+					&& controller.getAssignments().size() < MESSAGES_BUFFERED) {
+				postFill(controller);
+			}
+		}
+	}
+
+	/*
+	 * Partitions went back in the pool without a completion that would hand
+	 * them out again
+	 */
+	public void notifyWorkReturned() {
+		workReturned.set(true);
+	}
+
+	/*
+	 * Takes back an assignment the controller won't finish, its partition
+	 * goes back in the pool. Runs on the controller's lane
+	 */
+	public void failAssignment(Controller controller, Assignment assignment) {
+		if (!controller.getAssignments().contains(assignment)) {
+			return;
+		}
+		controller.removeAssignment(assignment);
+		ActiveQuery active = getQuery(assignment.getQuery().getQueryID());
+		if (active != null) {
+			active.getPartitionManager().notifyFailure(assignment.getPartition());
+			notifyWorkReturned();
+		}
+	}
+
+	/*
+	 * Tops up the controller on its lane
+	 */
+	public void postFill(Controller controller) {
+		postTask(new ControllerTask(controller) {
+
+			@Override
+			public void run() throws IOException {
+				fillController(getController());
+			}
+		});
+	}
+
+	/*
+	 * All the space has been handed out, an idle controller takes the second
+	 * half of the biggest partition another controller is still working on.
+	 * The owner keeps the first half and is told to stop there on its own
+	 * lane, until then a report of the whole partition still matches and
+	 * covers both halves
+	 */
+	private Assignment assignSplit(Controller controller) throws IOException {
+		for (ActiveQuery active : share.order()) {
+			if (!controller.hasQuery(active.getQueryID())) {
+				continue;
+			}
+			PartitionManager pm = active.getPartitionManager();
+			final Partition whole = pm.findSplit(controller.getPartitions(active.getQueryID()), MIN_WORKSIZE);
+			if (whole == null) {
+				continue;
+			}
+			Object owner = whole.getOwner();
+			if (!(owner instanceof Controller)) {
+				continue;
+			}
+			Partition tail = pm.split(whole, MIN_WORKSIZE);
+			if (tail == null) {
+				continue;
+			}
+			final Partition head = whole.getReplacement();
+			final int queryID = active.getQueryID();
+			postTask(new ControllerTask((Controller) owner) {
+
+				@Override
+				public void run() throws IOException {
+					Assignment assignment = getController().findAssignment(queryID, whole);
+					if (assignment != null) {
+						assignment.setPartition(head);
+						getController().shrinkAssignment(assignment);
+					}
+				}
+			});
+			logger.log(Level.INFO, "Split " + whole + ", the rest goes to controller " + controller.getID());
+			metrics.partitionsSplit.incrementAndGet();
+			return assign(controller, tail, active.getQuery());
+		}
+		return null;
+	}
+
+	/*
+	 * Endgame, all the space has been handed out so give an idle controller a
+	 * copy of the oldest partition still being processed elsewhere, from the
+	 * query FairShare puts first. Whichever copy finishes first wins
+	 */
+	private Assignment assignDuplicate(Controller controller) throws IOException {
+		for (ActiveQuery active : share.order()) {
+			if (!controller.hasQuery(active.getQueryID())) {
+				continue;
+			}
+			Partition partition = active.getPartitionManager().requestDuplicate(
+					controller.getPartitions(active.getQueryID()), SPECULATIVE_COPIES);
+			if (partition != null) {
+				logger.log(Level.INFO, "Endgame, duplicating " + partition);
+				return assign(controller, partition, active.getQuery());
 			}
 		}
 		return null;
 	}
 
+	/*
+	 * A partition was completed, drop the other copies of it from the
+	 * controllers that were given duplicates
+	 *
+	 * The protocol has no way to cancel a work block so the other controllers
+	 * keep going until they report it, the report no longer matches an
+	 * assignment and just gets them more work
+	 */
+	public void cancelDuplicates(final Assignment completed) {
+		if (completed.getPartition().getCopies() <= 1) {
+			return;
+		}
+		final int queryID = completed.getQuery().getQueryID();
+		for (Controller controller : getControllers()) {
+			postTask(new ControllerTask(controller) {
+
+				@Override
+				public void run() {
+					Assignment duplicate = getController().findAssignment(queryID, completed.getPartition());
+					if (duplicate != null && duplicate != completed) {
+						getController().removeAssignment(duplicate);
+					}
+				}
+			});
+		}
+	}
+
+	/*
+	 * Tops up the controller until it has MESSAGES_BUFFERED partitions or we
+	 * run out of work
+	 */
+	public void fillController(Controller controller) throws IOException {
+		while (controller.getAssignments().size() < MESSAGES_BUFFERED) {
+			if (assignWork(controller) == null) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Finishes the query once the whole space is swept or looked up
+	 */
+	public void finishIfSwept(ActiveQuery active) {
+		if (active.isComplete()) {
+			System.out.println("Query " + active.getQueryID() + " swept the whole space, plaintext not found");
+			recordMisses(active.getQuery());
+			finishQuery(active);
+		}
+	}
+
+	/*
+	 * Stops a query on every controller and forgets about it, can be called
+	 * from any lane, only the first call for a query does anything
+	 */
+	public void finishQuery(final ActiveQuery active) {
+		if (removeQuery(active.getQueryID()) == null) {
+			return;
+		}
+		for (Controller controller : getControllers()) {
+			postTask(new ControllerTask(controller) {
+
+				@Override
+				public void run() throws IOException {
+					getController().stopQuery(active.getQuery());
+					getController().synchronize(); // converge state
+					// Whatever was buffered for this query is gone, hand
+					// out other work
+					fillController(getController());
+				}
+			});
+		}
+		active.stopWatch();
+	}
+
 	public void buildHook() {
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 
@@ -73,12 +905,12 @@ public class SchedulerServer extends Thread {
 			public void run() {
 				// this.interrupt() would be ambiguous
 				callInterrupt();
-				protocol.shutdown();
-				Thread handle = new Thread(protocol);
+				timer.shutdown();
+				flushState();
+				transport.shutdown();
 				byte retries = 0;
 				final byte totalRetries = 5;
-				while (retries < totalRetries && !protocol.hasExited()) {
-					handle.interrupt();
+				while (retries < totalRetries && !transport.hasExited()) {
 					System.out.println("Waiting...");
 					retries++;
 					try {
@@ -96,32 +928,163 @@ public class SchedulerServer extends Thread {
 	}
 
 	public void newQuery(String query) {
-		if (!query.matches("^[0-9a-f]{1,32}$")) {
-			System.out.println("Error, invalid query");
+		List<String> digests = new ArrayList<String>();
+		digests.add(query);
+		newQuery(digests);
+	}
+
+	/*
+	 * Looks for all the digests in one sweep, the query finishes when all of
+	 * them are found or the space is exhausted
+	 */
+	public void newQuery(List<String> digests) {
+		newQuery(digests, null);
+	}
+
+	/*
+	 * Only sweeps the plaintexts matching the mask, null sweeps the default
+	 * alphabet up to maxStringLength
+	 */
+	public void newQuery(List<String> digests, Mask mask) {
+		newQuery(digests, mask, HashAlgorithm.MD5);
+	}
+
+	/*
+	 * A query for digests of another hash method, its partitions are sized
+	 * by what the method costs
+	 */
+	public void newQuery(List<String> digests, Mask mask, HashAlgorithm algorithm) {
+		newQuery(digests, mask, algorithm, HashQuery.Priority.NORMAL, HashQuery.DEFAULT_TENANT, 0);
+	}
+
+	/*
+	 * A query in a priority class for a tenant, deadline is when it should be
+	 * done by in milliseconds or 0, see FairShare
+	 */
+	public void newQuery(List<String> digests, Mask mask, HashAlgorithm algorithm,
+			HashQuery.Priority priority, String tenant, long deadline) {
+		if (digests.isEmpty()) {
+			System.out.println("Error, no digests in query");
+			return;
+		}
+		if (algorithm.isSalted()) {
+			System.out.println("Error, " + algorithm + " digests are salted and can't be queried as a list of targets");
 			return;
 		}
-		HashQuery hashquery = new HashQuery(query, "md5");
-		
+		for (String digest : digests) {
+			if (!digest.matches("^[0-9a-f]{" + algorithm.getDigestLength() * 2 + "}$")) {
+				System.out.println("Error, invalid query " + digest);
+				return;
+			}
+		}
+		long keyspace = mask != null
+				? ResultStore.keyspace(mask, false)
+				: ResultStore.keyspace(Mask.uniform(alphabet, maxStringLength), true);
+		HashQuery hashquery;
+		// Held until the query claimed its digests so the same digest
+		// submitted twice at once is only scheduled once
+		synchronized (searching) {
+			digests = filterKnown(digests, algorithm, keyspace);
+			if (digests.isEmpty()) {
+				return;
+			}
+			CharacterModel currentModel = model;
+			if (mask != null && currentModel != null && reorderCharsets) {
+				hashquery = new HashQuery(digests, algorithm, currentModel.order(mask), false);
+			} else if (mask != null) {
+				hashquery = new HashQuery(digests, algorithm, mask, false);
+			} else {
+				hashquery = new HashQuery(digests, algorithm);
+			}
+			hashquery.setPriority(priority);
+			hashquery.setTenant(tenant);
+			hashquery.setDeadline(deadline);
+			claim(hashquery);
+		}
+		warnIfUnsupported(hashquery);
 		RequestQueryMessage queryMessage = new RequestQueryMessage(hashquery);
-		protocol.addMessage(queryMessage);
+		postMessage(queryMessage);
 	}
 
-	public void stopWatch() {
-		double seconds = (double)(System.currentTimeMillis() - startTime) / 1000;
-		System.out.println("Query took " + seconds + " seconds to complete");
+	/*
+	 * A query only goes to the controllers that can handle it, if none of the
+	 * connected ones can it waits until one connects
+	 */
+	private void warnIfUnsupported(HashQuery query) {
+		boolean masks = false;
+		boolean multiTarget = false;
+		for (Controller controller : getControllers()) {
+			masks |= controller.supportsMasks();
+			multiTarget |= controller.supportsMultiTarget();
+		}
+		if (query.getMask() != null && !masks) {
+			System.out.println("Warning, no connected controller supports masks, query " + query.getQueryID() + " waits until one connects");
+		}
+		if (query.isMultiTarget() && !multiTarget) {
+			System.out.println("Warning, no connected controller supports several digests in one query, query " + query.getQueryID() + " waits until one connects");
+		}
+	}
+
+	/*
+	 * Answers the digests whose plaintext was found before or that were not
+	 * in this keyspace the last time it was swept, and drops the ones a
+	 * running query is already looking for in the same keyspace, that query
+	 * answers them. Returns the rest
+	 */
+	private List<String> filterKnown(List<String> digests, HashAlgorithm algorithm, long keyspace) {
+		List<String> unknown = new ArrayList<String>();
+		for (String digest : digests) {
+			byte[] bytes = TargetSet.fromHex(digest);
+			Integer other = searching.get(searchKey(algorithm.getName(), keyspace, digest));
+			String plaintext = results != null ? results.getPlaintext(algorithm.getName(), bytes) : null;
+			if (plaintext != null) {
+				System.out.println("Already found " + digest + " = " + plaintext);
+			} else if (results != null && results.isMiss(algorithm.getName(), bytes, keyspace)) {
+				System.out.println("Already swept for " + digest + ", plaintext not found");
+			} else if (other != null) {
+				System.out.println(digest + " is already being looked for by query " + other);
+			} else {
+				unknown.add(digest);
+			}
+		}
+		return unknown;
 	}
 
 	public void start() {
 		super.start();
-		executor.execute(protocol);
+		for (HandlerLane lane : lanes) {
+			lane.start();
+		}
+		transport.start();
+		Thread relay = new Thread("Inbound relay") {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						postMessage(transport.receive());
+					}
+				} catch (InterruptedException e) {
+					// Shutting down
+				}
+			}
+		};
+		relay.setDaemon(true);
+		relay.start();
+		timer.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				postMessage(new LeaseTickMessage());
+			}
+		}, LEASE_TICK_MILLIS, LEASE_TICK_MILLIS, TimeUnit.MILLISECONDS);
 	}
 	// simulates a scheduler server
 
 	public void run() {
 		while (true) {
 			try {
-				Message message = protocol.getMessage();
-				messageHandler.execute(message);
+				handle(inbound.take());
 			} catch (InterruptedException ie) {
 				Thread.currentThread().interrupt();
 				System.out.println("Thread was interrupted, exiting");
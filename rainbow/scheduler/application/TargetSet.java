@@ -0,0 +1,197 @@
+package rainbow.scheduler.application;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * The digests a query is looking for
+ *
+ * The digests are kept sorted in one flat byte array and bucketed by their
+ * first prefixBits bits so a lookup is an index into the bucket table and a
+ * short binary search, the same lookup works for one target or a leaked list
+ * of thousands
+ *
+ * Digests that are found are only marked in a bitset so the arrays never
+ * have to be rebuilt while a sweep is running. The bitset is atomic words
+ * since the lanes mark digests while the local worker's threads check them
+ */
+public class TargetSet {
+
+	private int digestLength;
+	private int count;
+	// count * digestLength bytes, sorted
+	private byte[] digests;
+	private int prefixBits;
+	// bucketStart[b] is the index of the first digest with prefix b
+	private int[] bucketStart;
+	// Bit i of word i / 64 is set once digest i is found
+	private AtomicLongArray found;
+	private AtomicInteger remaining;
+
+	/*
+	 * Creates a set from hex digests, they must all be the same length
+	 * Duplicates are only stored once
+	 */
+	public TargetSet(List<String> hexDigests) {
+		TreeSet<String> unique = new TreeSet<String>();
+		for (String hex : hexDigests) {
+			unique.add(hex.toLowerCase());
+		}
+		if (unique.isEmpty()) {
+			throw new IllegalArgumentException("A target set needs at least one digest");
+		}
+		digestLength = unique.first().length() / 2;
+		count = unique.size();
+		digests = new byte[count * digestLength];
+		int i = 0;
+		// Lower case hex strings sort the same way as the unsigned bytes
+		for (String hex : unique) {
+			if (hex.length() != digestLength * 2) {
+				throw new IllegalArgumentException("Digests must all be the same length " + hex);
+			}
+			for (int j = 0; j < digestLength; j++) {
+				digests[i * digestLength + j] = (byte) Integer.parseInt(hex.substring(j * 2, j * 2 + 2), 16);
+			}
+			i++;
+		}
+		// About one digest per bucket, at most 16 bits so the table stays small
+		prefixBits = Math.min(16, Math.min(digestLength * 8, 32 - Integer.numberOfLeadingZeros(count)));
+		bucketStart = new int[(1 << prefixBits) + 1];
+		int digest = 0;
+		for (int bucket = 0; bucket <= 1 << prefixBits; bucket++) {
+			while (digest < count && prefix(digests, digest * digestLength) < bucket) {
+				digest++;
+			}
+			bucketStart[bucket] = digest;
+		}
+		found = new AtomicLongArray((count + 63) / 64);
+		remaining = new AtomicInteger(count);
+	}
+
+	private int prefix(byte[] digest, int offset) {
+		if (prefixBits == 0) {
+			return 0;
+		}
+		int value = ((digest[offset] & 0xff) << 8) | (digestLength > 1 ? digest[offset + 1] & 0xff : 0);
+		return value >>> (16 - prefixBits);
+	}
+
+	private int compare(byte[] digest, int offset, int index) {
+		int base = index * digestLength;
+		for (int i = 0; i < digestLength; i++) {
+			int a = digest[offset + i] & 0xff;
+			int b = digests[base + i] & 0xff;
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * Returns the index of the digest starting at offset or -1 if it is not a
+	 * target, found targets are still returned
+	 */
+	public int indexOf(byte[] digest, int offset) {
+		int bucket = prefix(digest, offset);
+		int low = bucketStart[bucket];
+		int high = bucketStart[bucket + 1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = compare(digest, offset, mid);
+			if (c > 0) {
+				low = mid + 1;
+			} else if (c < 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isFound(int index) {
+		return (found.get(index >>> 6) & (1L << index)) != 0;
+	}
+
+	/*
+	 * True if the digest is a target that has not been found yet
+	 */
+	public boolean contains(byte[] digest) {
+		int index = indexOf(digest, 0);
+		return index >= 0 && !isFound(index);
+	}
+
+	/*
+	 * Marks a digest as found, returns false if it is not a target or was
+	 * already found. Only one of several threads finding the same digest
+	 * gets true
+	 */
+	public boolean remove(byte[] digest) {
+		int index = indexOf(digest, 0);
+		if (index < 0) {
+			return false;
+		}
+		long bit = 1L << index;
+		long word;
+		do {
+			word = found.get(index >>> 6);
+			if ((word & bit) != 0) {
+				return false;
+			}
+		} while (!found.compareAndSet(index >>> 6, word, word | bit));
+		remaining.decrementAndGet();
+		return true;
+	}
+
+	public boolean isEmpty() {
+		return remaining.get() == 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int getRemaining() {
+		return remaining.get();
+	}
+
+	public int getDigestLength() {
+		return digestLength;
+	}
+
+	/*
+	 * Hex digests that have not been found
+	 */
+	public List<String> getRemainingDigests() {
+		List<String> result = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			if (!isFound(i)) {
+				result.add(toHex(Arrays.copyOfRange(digests, i * digestLength, (i + 1) * digestLength)));
+			}
+		}
+		return result;
+	}
+
+	public static byte[] fromHex(String hex) {
+		byte[] digest = new byte[hex.length() / 2];
+		for (int i = 0; i < digest.length; i++) {
+			digest[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return digest;
+	}
+
+	public static String toHex(byte[] digest) {
+		StringBuilder builder = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+}
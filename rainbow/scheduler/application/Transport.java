@@ -0,0 +1,28 @@
+package rainbow.scheduler.application;
+
+import rainbowpc.Message;
+
+/**
+ *
+ * Where the scheduler's inbound messages come from, the network protocol in
+ * production or an in memory queue for load tests
+ *
+ * Outbound messages go through each Controller's send so they don't need to
+ * be part of this
+ */
+public interface Transport {
+
+	/*
+	 * Starts accepting connections and messages
+	 */
+	public void start();
+
+	/*
+	 * Blocks until there is a message
+	 */
+	public Message receive() throws InterruptedException;
+
+	public void shutdown();
+
+	public boolean hasExited();
+}
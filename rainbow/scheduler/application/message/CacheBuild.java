@@ -0,0 +1,48 @@
+package rainbow.scheduler.application.message;
+
+import rainbowpc.Message;
+
+/**
+ *
+ * Asks a controller to build a rainbow table for a range of the keyspace,
+ * the plaintexts of the alphabet up to the string length. The controller
+ * sends a CacheReady for the same range once the table can be used
+ */
+public class CacheBuild extends Message {
+
+	public static String LABEL = "cacheBuild";
+	String method;
+	String alphabet;
+	int stringLength;
+	long startBlockNumber;
+	long endBlockNumber;
+
+	public CacheBuild(String method, String alphabet, int stringLength, long startBlockNumber, long endBlockNumber) {
+		super(LABEL);
+		this.method = method;
+		this.alphabet = alphabet;
+		this.stringLength = stringLength;
+		this.startBlockNumber = startBlockNumber;
+		this.endBlockNumber = endBlockNumber;
+	}
+
+	public String getHashMethod() {
+		return method;
+	}
+
+	public String getAlphabet() {
+		return alphabet;
+	}
+
+	public int getStringLength() {
+		return stringLength;
+	}
+
+	public long getStartBlockNumber() {
+		return startBlockNumber;
+	}
+
+	public long getEndBlockNumber() {
+		return endBlockNumber;
+	}
+}
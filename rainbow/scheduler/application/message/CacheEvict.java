@@ -0,0 +1,41 @@
+package rainbow.scheduler.application.message;
+
+import rainbowpc.Message;
+
+/**
+ *
+ * Tells a controller to drop a rainbow table to make room for one that is
+ * worth more, the scheduler has already stopped sending lookups for it
+ */
+public class CacheEvict extends Message {
+
+	public static String LABEL = "cacheEvict";
+	String method;
+	int stringLength;
+	long startBlockNumber;
+	long endBlockNumber;
+
+	public CacheEvict(String method, int stringLength, long startBlockNumber, long endBlockNumber) {
+		super(LABEL);
+		this.method = method;
+		this.stringLength = stringLength;
+		this.startBlockNumber = startBlockNumber;
+		this.endBlockNumber = endBlockNumber;
+	}
+
+	public String getHashMethod() {
+		return method;
+	}
+
+	public int getStringLength() {
+		return stringLength;
+	}
+
+	public long getStartBlockNumber() {
+		return startBlockNumber;
+	}
+
+	public long getEndBlockNumber() {
+		return endBlockNumber;
+	}
+}
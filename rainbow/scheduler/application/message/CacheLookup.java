@@ -0,0 +1,43 @@
+package rainbow.scheduler.application.message;
+
+import rainbowpc.Message;
+
+/**
+ *
+ * Asks the controller holding a rainbow table to look up the targets of a
+ * query it has been sent in that table instead of brute forcing the range.
+ * Plaintexts are reported with QueryFound and the controller sends a
+ * CacheLookupComplete when it is done
+ */
+public class CacheLookup extends Message {
+
+	public static String LABEL = "cacheLookup";
+	int queryID;
+	int stringLength;
+	long startBlockNumber;
+	long endBlockNumber;
+
+	public CacheLookup(int queryID, int stringLength, long startBlockNumber, long endBlockNumber) {
+		super(LABEL);
+		this.queryID = queryID;
+		this.stringLength = stringLength;
+		this.startBlockNumber = startBlockNumber;
+		this.endBlockNumber = endBlockNumber;
+	}
+
+	public int getQueryID() {
+		return queryID;
+	}
+
+	public int getStringLength() {
+		return stringLength;
+	}
+
+	public long getStartBlockNumber() {
+		return startBlockNumber;
+	}
+
+	public long getEndBlockNumber() {
+		return endBlockNumber;
+	}
+}
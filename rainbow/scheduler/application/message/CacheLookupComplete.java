@@ -0,0 +1,41 @@
+package rainbow.scheduler.application.message;
+
+import rainbowpc.scheduler.messages.SchedulerMessage;
+
+/**
+ *
+ * A controller finished a CacheLookup, whatever it found has already been
+ * sent as QueryFound
+ */
+public class CacheLookupComplete extends SchedulerMessage {
+
+	public static String LABEL = "cacheLookupComplete";
+	int queryID;
+	int stringLength;
+	long startBlockNumber;
+	long endBlockNumber;
+
+	public CacheLookupComplete(int queryID, int stringLength, long startBlockNumber, long endBlockNumber) {
+		super(LABEL, "");
+		this.queryID = queryID;
+		this.stringLength = stringLength;
+		this.startBlockNumber = startBlockNumber;
+		this.endBlockNumber = endBlockNumber;
+	}
+
+	public int getQueryID() {
+		return queryID;
+	}
+
+	public int getStringLength() {
+		return stringLength;
+	}
+
+	public long getStartBlockNumber() {
+		return startBlockNumber;
+	}
+
+	public long getEndBlockNumber() {
+		return endBlockNumber;
+	}
+}
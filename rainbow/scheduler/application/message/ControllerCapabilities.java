@@ -0,0 +1,36 @@
+package rainbow.scheduler.application.message;
+
+import rainbowpc.scheduler.messages.SchedulerMessage;
+
+/**
+ *
+ * A controller tells the scheduler which of the newer messages it
+ * understands, sent once after it connects. Until then it only gets one
+ * WorkBlockSetup per partition
+ */
+public class ControllerCapabilities extends SchedulerMessage {
+
+	public static String LABEL = "controllerCapabilities";
+	boolean batches;
+	boolean splits;
+
+	public ControllerCapabilities(boolean batches, boolean splits) {
+		super(LABEL, "");
+		this.batches = batches;
+		this.splits = splits;
+	}
+
+	/*
+	 * Takes WorkBlockBatch and sends WorkBlockBatchComplete
+	 */
+	public boolean supportsBatches() {
+		return batches;
+	}
+
+	/*
+	 * Takes WorkBlockShrink, so its partitions can be split
+	 */
+	public boolean supportsSplits() {
+		return splits;
+	}
+}
@@ -0,0 +1,31 @@
+package rainbow.scheduler.application.message;
+
+import java.io.IOException;
+import rainbow.scheduler.application.Controller;
+import rainbowpc.scheduler.messages.SchedulerMessage;
+
+/**
+ *
+ * Work that touches one controller, run on the thread that handles that
+ * controller's messages so it is ordered with them. Used when something that
+ * is not the controller's own message (a new query, a lease running out)
+ * needs to change its assignments or send to it
+ *
+ * Dropped if the controller disconnected before it ran
+ */
+public abstract class ControllerTask extends SchedulerMessage {
+
+	public static String LABEL = "controllerTask";
+	Controller controller;
+
+	public ControllerTask(Controller controller) {
+		super(LABEL, "");
+		this.controller = controller;
+	}
+
+	public Controller getController() {
+		return controller;
+	}
+
+	public abstract void run() throws IOException;
+}
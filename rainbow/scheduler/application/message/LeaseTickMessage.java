@@ -0,0 +1,17 @@
+package rainbow.scheduler.application.message;
+
+import rainbowpc.scheduler.messages.SchedulerMessage;
+
+/**
+ *
+ * Posted by the lease timer so that expired leases are handled on the
+ * scheduler thread along with every other message
+ */
+public class LeaseTickMessage extends SchedulerMessage {
+
+	public static String LABEL = "leaseTickMessage";
+
+	public LeaseTickMessage() {
+		super(LABEL, "");
+	}
+}
@@ -0,0 +1,24 @@
+package rainbow.scheduler.application.message;
+
+import rainbow.scheduler.application.Controller;
+import rainbowpc.scheduler.messages.SchedulerMessage;
+
+/**
+ *
+ * A controller without a protocolet went away, handled like a
+ * ControllerDisconnect
+ */
+public class LocalControllerDisconnect extends SchedulerMessage {
+
+	public static String LABEL = "localControllerDisconnect";
+	Controller controller;
+
+	public LocalControllerDisconnect(Controller controller) {
+		super(LABEL, "");
+		this.controller = controller;
+	}
+
+	public Controller getController() {
+		return controller;
+	}
+}
@@ -0,0 +1,24 @@
+package rainbow.scheduler.application.message;
+
+import rainbow.scheduler.application.Controller;
+import rainbowpc.scheduler.messages.SchedulerMessage;
+
+/**
+ *
+ * Registers a controller that runs inside the scheduler, handled like a
+ * NewControllerMessage
+ */
+public class LocalControllerMessage extends SchedulerMessage {
+
+	public static String LABEL = "localControllerMessage";
+	Controller controller;
+
+	public LocalControllerMessage(Controller controller) {
+		super(LABEL, "");
+		this.controller = controller;
+	}
+
+	public Controller getController() {
+		return controller;
+	}
+}
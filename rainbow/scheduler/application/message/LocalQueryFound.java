@@ -0,0 +1,29 @@
+package rainbow.scheduler.application.message;
+
+import rainbowpc.scheduler.messages.SchedulerMessage;
+
+/**
+ *
+ * A controller inside the scheduler found a plaintext, handled like a
+ * QueryFound
+ */
+public class LocalQueryFound extends SchedulerMessage {
+
+	public static String LABEL = "localQueryFound";
+	int queryID;
+	String plaintext;
+
+	public LocalQueryFound(int queryID, String plaintext) {
+		super(LABEL, "");
+		this.queryID = queryID;
+		this.plaintext = plaintext;
+	}
+
+	public int getQueryID() {
+		return queryID;
+	}
+
+	public String getPlaintext() {
+		return plaintext;
+	}
+}
@@ -0,0 +1,38 @@
+package rainbow.scheduler.application.message;
+
+import java.util.List;
+import rainbow.scheduler.application.Controller;
+import rainbow.scheduler.partition.Partition;
+import rainbowpc.scheduler.messages.SchedulerMessage;
+
+/**
+ *
+ * A controller inside the scheduler finished several work blocks of one
+ * query, handled like a WorkBlockBatchComplete
+ */
+public class LocalWorkBlockBatchComplete extends SchedulerMessage {
+
+	public static String LABEL = "localWorkBlockBatchComplete";
+	Controller controller;
+	int queryID;
+	List<Partition> partitions;
+
+	public LocalWorkBlockBatchComplete(Controller controller, int queryID, List<Partition> partitions) {
+		super(LABEL, "");
+		this.controller = controller;
+		this.queryID = queryID;
+		this.partitions = partitions;
+	}
+
+	public Controller getController() {
+		return controller;
+	}
+
+	public int getQueryID() {
+		return queryID;
+	}
+
+	public List<Partition> getPartitions() {
+		return partitions;
+	}
+}
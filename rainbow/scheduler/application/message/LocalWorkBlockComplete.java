@@ -0,0 +1,48 @@
+package rainbow.scheduler.application.message;
+
+import rainbow.scheduler.application.Controller;
+import rainbowpc.scheduler.messages.SchedulerMessage;
+
+/**
+ *
+ * A controller inside the scheduler finished a work block, handled like a
+ * WorkBlockComplete
+ */
+public class LocalWorkBlockComplete extends SchedulerMessage {
+
+	public static String LABEL = "localWorkBlockComplete";
+	Controller controller;
+	int queryID;
+	int stringLength;
+	long startBlockNumber;
+	long endBlockNumber;
+
+	public LocalWorkBlockComplete(Controller controller, int queryID, int stringLength, long startBlockNumber, long endBlockNumber) {
+		super(LABEL, "");
+		this.controller = controller;
+		this.queryID = queryID;
+		this.stringLength = stringLength;
+		this.startBlockNumber = startBlockNumber;
+		this.endBlockNumber = endBlockNumber;
+	}
+
+	public Controller getController() {
+		return controller;
+	}
+
+	public int getQueryID() {
+		return queryID;
+	}
+
+	public int getStringLength() {
+		return stringLength;
+	}
+
+	public long getStartBlockNumber() {
+		return startBlockNumber;
+	}
+
+	public long getEndBlockNumber() {
+		return endBlockNumber;
+	}
+}
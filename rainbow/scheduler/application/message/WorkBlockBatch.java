@@ -0,0 +1,33 @@
+package rainbow.scheduler.application.message;
+
+import java.util.List;
+import rainbow.scheduler.partition.Partition;
+import rainbow.scheduler.partition.PartitionCodec;
+import rainbowpc.Message;
+
+/**
+ *
+ * Several work blocks of one query sent to a controller at once, the same as
+ * a WorkBlockSetup for each of them. The ranges are packed with
+ * PartitionCodec
+ */
+public class WorkBlockBatch extends Message {
+
+	public static String LABEL = "workBlockBatch";
+	int queryID;
+	byte[] ranges;
+
+	public WorkBlockBatch(int queryID, List<Partition> partitions) {
+		super(LABEL);
+		this.queryID = queryID;
+		this.ranges = PartitionCodec.encode(partitions);
+	}
+
+	public int getQueryID() {
+		return queryID;
+	}
+
+	public List<Partition> getPartitions() {
+		return PartitionCodec.decode(ranges);
+	}
+}
@@ -0,0 +1,33 @@
+package rainbow.scheduler.application.message;
+
+import java.util.List;
+import rainbow.scheduler.partition.Partition;
+import rainbow.scheduler.partition.PartitionCodec;
+import rainbowpc.scheduler.messages.SchedulerMessage;
+
+/**
+ *
+ * A controller finished several work blocks of one query, handled like a
+ * WorkBlockComplete for each of them. A controller that sends one gets its
+ * work in WorkBlockBatches from then on, even without ControllerCapabilities
+ */
+public class WorkBlockBatchComplete extends SchedulerMessage {
+
+	public static String LABEL = "workBlockBatchComplete";
+	int queryID;
+	byte[] ranges;
+
+	public WorkBlockBatchComplete(int queryID, List<Partition> partitions) {
+		super(LABEL, "");
+		this.queryID = queryID;
+		this.ranges = PartitionCodec.encode(partitions);
+	}
+
+	public int getQueryID() {
+		return queryID;
+	}
+
+	public List<Partition> getPartitions() {
+		return PartitionCodec.decode(ranges);
+	}
+}
@@ -0,0 +1,42 @@
+package rainbow.scheduler.application.message;
+
+import rainbowpc.Message;
+
+/**
+ *
+ * Tells a controller to stop a work block it was given early, at
+ * endBlockNumber instead of where the block ended. The rest of it was given
+ * to another controller, the block is reported complete with the new end
+ */
+public class WorkBlockShrink extends Message {
+
+	public static String LABEL = "workBlockShrink";
+	int queryID;
+	int stringLength;
+	long startBlockNumber;
+	long endBlockNumber;
+
+	public WorkBlockShrink(int queryID, int stringLength, long startBlockNumber, long endBlockNumber) {
+		super(LABEL);
+		this.queryID = queryID;
+		this.stringLength = stringLength;
+		this.startBlockNumber = startBlockNumber;
+		this.endBlockNumber = endBlockNumber;
+	}
+
+	public int getQueryID() {
+		return queryID;
+	}
+
+	public int getStringLength() {
+		return stringLength;
+	}
+
+	public long getStartBlockNumber() {
+		return startBlockNumber;
+	}
+
+	public long getEndBlockNumber() {
+		return endBlockNumber;
+	}
+}
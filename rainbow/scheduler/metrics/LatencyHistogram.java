@@ -0,0 +1,113 @@
+package rainbow.scheduler.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Histogram of latencies (or any non negative long) with buckets that grow
+ * with the value, like an HDR histogram
+ *
+ * Every power of two is split into SUB_BUCKETS linear buckets so a
+ * percentile is off by at most 1/SUB_BUCKETS of its value, whatever the
+ * range, and recording is an array increment. The unit is up to the caller
+ *
+ * Safe to record from any thread and to read while recording, readers may
+ * see a recording that is only half done
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Enough buckets for every positive long
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong sum = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+		}
+	}
+
+	/*
+	 * Values below SUB_BUCKETS get a bucket each, after that the bucket is
+	 * the power of two and the next SUB_BUCKET_BITS bits
+	 */
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/*
+	 * Smallest value that goes in a bucket
+	 */
+	static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return (1L << exponent) | (sub << (exponent - SUB_BUCKET_BITS));
+	}
+
+	/*
+	 * Value that percentile percent of the recordings are at or below, the
+	 * top of the bucket it falls in. 0 if nothing was recorded
+	 */
+	public long getPercentile(double percent) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percent / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				long top = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+				return Math.min(top, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long total = count.get();
+		return total == 0 ? 0 : (double) sum.get() / total;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d", getCount(), getMean(),
+				getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+	}
+}
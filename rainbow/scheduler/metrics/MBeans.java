@@ -0,0 +1,54 @@
+package rainbow.scheduler.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Registers the scheduler's MBeans with the platform MBean server, they show
+ * up in jconsole or any JMX client under the rainbow.scheduler domain
+ *
+ * Metrics are nice to have, failing to register one is logged and ignored
+ */
+public class MBeans {
+
+	public static final String DOMAIN = "rainbow.scheduler";
+	static Logger logger = Logger.getLogger(MBeans.class.getName());
+
+	public static ObjectName name(String type, Object id) {
+		try {
+			if (id == null) {
+				return new ObjectName(DOMAIN + ":type=" + type);
+			}
+			return new ObjectName(DOMAIN + ":type=" + type + ",id=" + ObjectName.quote(id.toString()));
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static void register(ObjectName name, Object mbean) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(mbean, name);
+		} catch (JMException e) {
+			logger.log(Level.WARNING, "Could not register " + name, e);
+		}
+	}
+
+	public static void unregister(ObjectName name) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			logger.log(Level.WARNING, "Could not unregister " + name, e);
+		}
+	}
+}
@@ -18,12 +18,14 @@ public class AlphabetGenerator {
 		 * Types(first character, length) Note: Dependent on ascii character
 		 * ordering but hopefully that won't change anytime soon
 		 *
-		 * TODO:Add support for non-contiguous blocks of ascii characters
+		 * Non-contiguous types list their characters instead
 		 */
 
 		UPPER_CASE('A', 26),
 		LOWER_CASE('a', 26),
-		NUMBERS('0', 10);
+		NUMBERS('0', 10),
+		// Printable ascii that isn't a letter or number, including space
+		SPECIAL(" !\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~");
 		/*
 		 * End enum types
 		 */
@@ -36,6 +38,12 @@ public class AlphabetGenerator {
 				charArray[i] = (char) (first + i);
 			}
 			alphabet = new String(charArray);
+			this.length = length;
+		}
+
+		private Types(String characters) {
+			alphabet = characters;
+			length = characters.length();
 		}
 
 		public String asAlphabet() {
@@ -64,5 +72,6 @@ public class AlphabetGenerator {
 		// Should print out identical strings
 		System.out.println(generateAlphabet(Types.UPPER_CASE, Types.LOWER_CASE, Types.NUMBERS));
 		System.out.println(generateAlphabet(Types.NUMBERS, Types.LOWER_CASE, Types.UPPER_CASE));
+		System.out.println(generateAlphabet(Types.SPECIAL));
 	}
 }
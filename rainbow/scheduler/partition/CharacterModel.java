@@ -0,0 +1,146 @@
+package rainbow.scheduler.partition;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * How likely each character is at each position of a password, counted from
+ * a corpus of real passwords (one per line)
+ *
+ * Used to put the likely plaintexts first: order() sorts the charset of every
+ * position of a mask by descending probability so the low block numbers hold
+ * the likely plaintexts, and PartitionManager.orderBy() uses it to hand out
+ * the blocks with the most probability per block first
+ *
+ * Counts are add one smoothed so characters the corpus never had still get a
+ * small probability, positions past the longest trained one use the counts
+ * of all positions together
+ */
+public class CharacterModel {
+
+	// Positions that get their own counts
+	public static final int MAX_POSITIONS = 32;
+	private static final int CHARACTERS = 256;
+	private long[][] counts = new long[MAX_POSITIONS][CHARACTERS];
+	private long[] positionTotals = new long[MAX_POSITIONS];
+	private long[] allCounts = new long[CHARACTERS];
+	private long allTotal = 0;
+	private long[] lengthCounts = new long[MAX_POSITIONS + 1];
+	private long words = 0;
+
+	public void add(String word) {
+		int length = word.length();
+		for (int i = 0; i < length; i++) {
+			char c = word.charAt(i);
+			if (c >= CHARACTERS) {
+				continue;
+			}
+			if (i < MAX_POSITIONS) {
+				counts[i][c]++;
+				positionTotals[i]++;
+			}
+			allCounts[c]++;
+			allTotal++;
+		}
+		lengthCounts[Math.min(length, MAX_POSITIONS)]++;
+		words++;
+	}
+
+	/*
+	 * Counts every line of a corpus file, read as latin-1 so every byte is
+	 * one character
+	 */
+	public static CharacterModel train(File corpus) throws IOException {
+		CharacterModel model = new CharacterModel();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(corpus), "ISO-8859-1"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					model.add(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return model;
+	}
+
+	public double probability(int position, char c) {
+		if (c >= CHARACTERS) {
+			return 1.0 / (allTotal + CHARACTERS);
+		}
+		if (position < MAX_POSITIONS && positionTotals[position] > 0) {
+			return (counts[position][c] + 1.0) / (positionTotals[position] + CHARACTERS);
+		}
+		return (allCounts[c] + 1.0) / (allTotal + CHARACTERS);
+	}
+
+	/*
+	 * How likely a password is to be this long
+	 */
+	public double lengthProbability(int length) {
+		return (lengthCounts[Math.min(length, MAX_POSITIONS)] + 1.0) / (words + MAX_POSITIONS + 1);
+	}
+
+	/*
+	 * Probability that a position holds any character of the charset
+	 */
+	public double probability(int position, String charset) {
+		double total = 0;
+		for (int i = 0; i < charset.length(); i++) {
+			total += probability(position, charset.charAt(i));
+		}
+		return total;
+	}
+
+	/*
+	 * The same keyspace with every charset sorted most likely first, ties
+	 * keep their order. Only the order changes so the sweep still covers
+	 * every plaintext
+	 */
+	public Mask order(Mask mask) {
+		String[] charsets = new String[mask.getLength()];
+		for (int i = 0; i < charsets.length; i++) {
+			charsets[i] = order(i, mask.getCharset(i));
+		}
+		return new Mask(charsets);
+	}
+
+	private String order(final int position, String charset) {
+		List<Character> characters = new ArrayList<Character>();
+		for (char c : charset.toCharArray()) {
+			characters.add(c);
+		}
+		// Collections.sort is stable
+		Collections.sort(characters, new Comparator<Character>() {
+
+			@Override
+			public int compare(Character a, Character b) {
+				return Double.compare(probability(position, b), probability(position, a));
+			}
+		});
+		char[] ordered = new char[characters.size()];
+		for (int i = 0; i < ordered.length; i++) {
+			ordered[i] = characters.get(i);
+		}
+		return new String(ordered);
+	}
+
+	public long getWords() {
+		return words;
+	}
+
+	@Override
+	public String toString() {
+		return "CharacterModel{words=" + words + ", lengths=" + Arrays.toString(lengthCounts) + "}";
+	}
+}
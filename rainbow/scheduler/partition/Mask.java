@@ -0,0 +1,181 @@
+package rainbow.scheduler.partition;
+
+import java.util.Arrays;
+
+/*
+ * A keyspace of fixed length plaintexts where every position has its own
+ * charset, i.e. a password policy like ?u?l?l?l?d?d?s
+ *
+ * The plaintexts are numbered like the plain alphabet spaces, a mixed radix
+ * number where the last position changes fastest, so the blocks of a mask
+ * only cover the plaintexts that match it instead of the widest charset to
+ * the power of the length
+ *
+ * Mask syntax (same as the common cracking tools):
+ * ?l a-z, ?u A-Z, ?d 0-9, ?s specials, ?a all of them
+ * ?1 - ?9 the custom charsets passed to parse, which can use the classes too
+ * ?? a literal ?, any other character stands for itself
+ */
+public class Mask {
+
+	private String[] charsets;
+	private String source;
+
+	/*
+	 * One charset per position, duplicate characters are dropped so no
+	 * plaintext is counted twice
+	 */
+	public Mask(String... charsets) {
+		if (charsets.length == 0) {
+			throw new RuntimeException("Error, a mask needs at least one position");
+		}
+		this.charsets = new String[charsets.length];
+		for (int i = 0; i < charsets.length; i++) {
+			String charset = removeDuplicates(charsets[i]);
+			if (charset.isEmpty()) {
+				throw new RuntimeException("Error, position " + i + " of the mask has no characters");
+			}
+			this.charsets[i] = charset;
+		}
+	}
+
+	/*
+	 * The keyspace of the old fixed alphabet spaces, every position the same
+	 */
+	public static Mask uniform(String alphabet, int length) {
+		String[] charsets = new String[length];
+		Arrays.fill(charsets, alphabet);
+		return new Mask(charsets);
+	}
+
+	public static Mask parse(String mask, String... custom) {
+		String[] expanded = new String[custom.length];
+		for (int i = 0; i < custom.length; i++) {
+			expanded[i] = expand(custom[i], null);
+		}
+		int length = 0;
+		for (int i = 0; i < mask.length(); i++, length++) {
+			if (mask.charAt(i) == '?') {
+				i++;
+			}
+		}
+		String[] charsets = new String[length];
+		int position = 0;
+		for (int i = 0; i < mask.length(); i++) {
+			char c = mask.charAt(i);
+			if (c == '?') {
+				if (i + 1 >= mask.length()) {
+					throw new RuntimeException("Error, mask " + mask + " ends with ?");
+				}
+				i++;
+				charsets[position++] = charsetClass(mask.charAt(i), expanded);
+			} else {
+				charsets[position++] = String.valueOf(c);
+			}
+		}
+		Mask result = new Mask(charsets);
+		result.source = mask;
+		return result;
+	}
+
+	/*
+	 * Expands the ?x classes in a custom charset, everything else is literal
+	 */
+	private static String expand(String charset, String[] custom) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < charset.length(); i++) {
+			char c = charset.charAt(i);
+			if (c == '?' && i + 1 < charset.length()) {
+				i++;
+				builder.append(charsetClass(charset.charAt(i), custom));
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static String charsetClass(char c, String[] custom) {
+		switch (c) {
+			case 'l':
+				return AlphabetGenerator.Types.LOWER_CASE.asAlphabet();
+			case 'u':
+				return AlphabetGenerator.Types.UPPER_CASE.asAlphabet();
+			case 'd':
+				return AlphabetGenerator.Types.NUMBERS.asAlphabet();
+			case 's':
+				return AlphabetGenerator.Types.SPECIAL.asAlphabet();
+			case 'a':
+				return AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.values());
+			case '?':
+				return "?";
+		}
+		if (custom != null && c >= '1' && c <= '9' && c - '1' < custom.length) {
+			return custom[c - '1'];
+		}
+		throw new RuntimeException("Error, unknown charset ?" + c);
+	}
+
+	private static String removeDuplicates(String charset) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < charset.length(); i++) {
+			char c = charset.charAt(i);
+			if (charset.indexOf(c) == i) {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	/*
+	 * The first length positions, used to sweep every length up to the mask
+	 */
+	public Mask prefix(int length) {
+		if (length == charsets.length) {
+			return this;
+		}
+		return new Mask(Arrays.copyOf(charsets, length));
+	}
+
+	public int getLength() {
+		return charsets.length;
+	}
+
+	public String getCharset(int position) {
+		return charsets[position];
+	}
+
+	public int getRadix(int position) {
+		return charsets[position].length();
+	}
+
+	/*
+	 * True if every position has the same charset
+	 */
+	public boolean isUniform() {
+		for (String charset : charsets) {
+			if (!charset.equals(charsets[0])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof Mask && Arrays.equals(charsets, ((Mask) o).charsets);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(charsets);
+	}
+
+	@Override
+	public String toString() {
+		if (source != null) {
+			return source;
+		}
+		return isUniform() ? "[" + charsets[0] + "]^" + charsets.length : Arrays.toString(charsets);
+	}
+}
@@ -18,6 +18,15 @@ public class Partition implements Comparable<Partition> {
 	public long endBlockNumber;
 	//Only used by the scheduler to maintain the blocks current status
 	private Status status = Status.INCOMPLETE;
+	// Number of clients processing this block, more than one in the endgame
+	private int copies = 0;
+	// Order the partition manager handed it out in
+	long issueNumber;
+	// The controller working on it if that controller can be told to stop
+	// part way, only these are split. Set by the scheduler
+	private volatile Object owner;
+	// The partition that kept the first half when this one was split
+	volatile Partition replacement;
 
 	/*
 	 * Represents a range from startBlockNumber to endBlockNumber includes
@@ -48,12 +57,40 @@ public class Partition implements Comparable<Partition> {
 		this.status = status;
 	}
 
+	public int getCopies() {
+		return copies;
+	}
+
+	void setCopies(int copies) {
+		this.copies = copies;
+	}
+
+	public Object getOwner() {
+		return owner;
+	}
+
+	public void setOwner(Object owner) {
+		this.owner = owner;
+	}
+
+	/*
+	 * The shorter partition that took over this one's place in processing
+	 * when it was split, null if it wasn't
+	 */
+	public Partition getReplacement() {
+		return replacement;
+	}
+
 	@Override
 	public int compareTo(Partition o) {
 		if (this.stringLength != o.stringLength) {
 			return this.stringLength - o.stringLength;
 		} else {
-			return (int) (this.startBlockNumber - o.startBlockNumber);
+			// Don't subtract, the difference can be too big for an int
+			if (this.startBlockNumber < o.startBlockNumber) {
+				return -1;
+			}
+			return this.startBlockNumber == o.startBlockNumber ? 0 : 1;
 		}
 	}
 
@@ -68,6 +105,21 @@ public class Partition implements Comparable<Partition> {
 				&& this.endBlockNumber == other.endBlockNumber;
 	}
 
+	@Override
+	public int hashCode() {
+		int hash = stringLength;
+		hash = 31 * hash + (int) (startBlockNumber ^ (startBlockNumber >>> 32));
+		hash = 31 * hash + (int) (endBlockNumber ^ (endBlockNumber >>> 32));
+		return hash;
+	}
+
+	/*
+	 * Number of blocks covered by this partition
+	 */
+	public long getNumberOfBlocks() {
+		return endBlockNumber - startBlockNumber;
+	}
+
 	public boolean startBlockEquals(Partition p) {
 		return this.stringLength == p.stringLength
 				&& this.startBlockNumber == p.startBlockNumber;
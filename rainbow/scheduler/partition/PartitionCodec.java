@@ -0,0 +1,73 @@
+package rainbow.scheduler.partition;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Packs a list of partitions into bytes so a batch of them fits in one
+ * message
+ *
+ * Each partition is three varints: the string length, the start as the
+ * (zigzag) difference from the end of the partition before it, and the
+ * number of blocks. Partitions handed out one after another follow straight
+ * on from each other so the start is usually a single 0 byte and a whole
+ * partition takes 3 bytes instead of the 20 of its fields
+ */
+public class PartitionCodec {
+
+	public static byte[] encode(List<Partition> partitions) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(partitions.size() * 4);
+		long previousEnd = 0;
+		for (Partition p : partitions) {
+			writeVarint(out, p.stringLength);
+			long difference = p.startBlockNumber - previousEnd;
+			writeVarint(out, (difference << 1) ^ (difference >> 63));
+			writeVarint(out, p.endBlockNumber - p.startBlockNumber);
+			previousEnd = p.endBlockNumber;
+		}
+		return out.toByteArray();
+	}
+
+	public static List<Partition> decode(byte[] bytes) {
+		List<Partition> partitions = new ArrayList<Partition>();
+		int[] position = {0};
+		long previousEnd = 0;
+		while (position[0] < bytes.length) {
+			int stringLength = (int) readVarint(bytes, position);
+			long zigzag = readVarint(bytes, position);
+			long start = previousEnd + ((zigzag >>> 1) ^ -(zigzag & 1));
+			long end = start + readVarint(bytes, position);
+			partitions.add(new Partition(stringLength, start, end));
+			previousEnd = end;
+		}
+		return partitions;
+	}
+
+	/*
+	 * Seven bits a byte, lowest first, the top bit is set on every byte but
+	 * the last
+	 */
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarint(byte[] bytes, int[] position) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position[0] >= bytes.length) {
+				throw new RuntimeException("Error, partition batch ends in the middle of a number");
+			}
+			byte b = bytes[position[0]++];
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new RuntimeException("Error, number in partition batch is too long");
+	}
+}
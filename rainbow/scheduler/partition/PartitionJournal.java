@@ -0,0 +1,220 @@
+package rainbow.scheduler.partition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/*
+ * Append only log of the partition state changes that have to survive a
+ * restart, i.e. completed blocks and cached blocks
+ *
+ * Blocks that are only being processed are not logged, after a restart they
+ * are simply handed out again
+ *
+ * The log is a memory mapped file of fixed size records so appending is a
+ * few puts into the mapping and the operating system writes it back. When the
+ * file fills up it is replaced by a snapshot of the current state which,
+ * since completed ranges are merged, is only as big as the completed space is
+ * fragmented
+ *
+ * Record layout: int type, int stringLength, long startBlock, long endBlock
+ * A record with type 0 marks the end of the log since the file is zero filled
+ */
+public class PartitionJournal {
+
+	public static final int COMPLETE = 1;
+	public static final int CACHED = 2;
+	public static final int RELEASED = 3;
+
+	/*
+	 * Receives the records when the journal is replayed
+	 */
+	public interface Listener {
+
+		public void record(int type, int stringLength, long startBlock, long endBlock);
+	}
+
+	/*
+	 * Writes the current state as a list of records when the journal is
+	 * compacted
+	 */
+	public interface Snapshot {
+
+		public void write(PartitionJournal journal);
+	}
+	private static final int MAGIC = 0x524a4e4c; // RJNL
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_SIZE = 24;
+	public static int DEFAULT_CAPACITY = 1 << 20; // 1MB, about 43000 records
+	private File file;
+	private RandomAccessFile raf;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private Snapshot snapshot;
+	private boolean compacting = false;
+
+	/*
+	 * Opens or creates the journal, call replay before appending so the write
+	 * position is after the existing records
+	 */
+	public PartitionJournal(File file) throws IOException {
+		this.file = file;
+		boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+		capacity = exists ? (int) file.length() : DEFAULT_CAPACITY;
+		map(file, capacity);
+		if (!exists || buffer.getInt(0) != MAGIC) {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, RECORD_SIZE);
+			for (int i = HEADER_SIZE; i < capacity; i++) {
+				buffer.put(i, (byte) 0);
+			}
+		}
+		buffer.position(HEADER_SIZE);
+	}
+
+	private void map(File target, int size) throws IOException {
+		raf = new RandomAccessFile(target, "rw");
+		raf.setLength(size);
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/*
+	 * Sets who writes the state when the journal fills up, without one the
+	 * journal just grows
+	 */
+	public void setSnapshot(Snapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/*
+	 * Reads every record from the start of the log and leaves the write
+	 * position after the last one
+	 */
+	public void replay(Listener listener) {
+		int position = HEADER_SIZE;
+		while (position + RECORD_SIZE <= capacity) {
+			int type = buffer.getInt(position);
+			if (type == 0) {
+				break;
+			}
+			listener.record(type, buffer.getInt(position + 4), buffer.getLong(position + 8), buffer.getLong(position + 16));
+			position += RECORD_SIZE;
+		}
+		buffer.position(position);
+	}
+
+	public void append(int type, int stringLength, long startBlock, long endBlock) {
+		if (buffer.position() + RECORD_SIZE > capacity) {
+			if (compacting || snapshot == null) {
+				grow();
+			} else {
+				compact();
+			}
+		}
+		int position = buffer.position();
+		// Write the type last so a crash mid record leaves the end marker
+		buffer.putInt(position + 4, stringLength);
+		buffer.putLong(position + 8, startBlock);
+		buffer.putLong(position + 16, endBlock);
+		buffer.putInt(position, type);
+		buffer.position(position + RECORD_SIZE);
+	}
+
+	/*
+	 * Replaces the log with a snapshot of the current state, the snapshot is
+	 * written to a new file and renamed over the old one so a crash during
+	 * compaction leaves one of the two complete logs
+	 */
+	public void compact() {
+		if (snapshot == null) {
+			return;
+		}
+		File oldFile = file;
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			close();
+			// A new file is zero filled so replay stops after the snapshot
+			temp.delete();
+			file = temp;
+			capacity = Math.max(capacity, DEFAULT_CAPACITY);
+			map(temp, capacity);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, RECORD_SIZE);
+			buffer.position(HEADER_SIZE);
+			compacting = true;
+			snapshot.write(this);
+			compacting = false;
+			// Leave at least half of the file free for new records
+			if (buffer.position() > capacity / 2) {
+				int used = buffer.position();
+				grow();
+				buffer.position(used);
+			}
+			int position = buffer.position();
+			close();
+			// Never delete first, there would be no log at all until the move
+			Files.move(temp.toPath(), oldFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			file = oldFile;
+			map(file, capacity);
+			buffer.position(position);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not compact journal " + oldFile, e);
+		}
+	}
+
+	/*
+	 * Doubles the size of the mapped file
+	 */
+	private void grow() {
+		int position = buffer.position();
+		try {
+			close();
+			capacity *= 2;
+			map(file, capacity);
+			buffer.position(position);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not grow journal " + file, e);
+		}
+	}
+
+	/*
+	 * Forces the records to disk, the mapping is written back by the
+	 * operating system anyway but this makes sure it happened
+	 */
+	public void flush() {
+		buffer.force();
+	}
+
+	public void close() throws IOException {
+		buffer.force();
+		raf.close();
+	}
+
+	/*
+	 * Closes and removes the log, used when a query is done with it
+	 */
+	public void delete() {
+		try {
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		file.delete();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/*
+	 * Number of records in the log
+	 */
+	public int getRecords() {
+		return (buffer.position() - HEADER_SIZE) / RECORD_SIZE;
+	}
+}
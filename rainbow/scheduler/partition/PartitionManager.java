@@ -1,10 +1,19 @@
 package rainbow.scheduler.partition;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.TreeSet;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Stack;
-import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /*
  * Manages all the partitions of the plaintext space Use this to request a
@@ -13,73 +22,503 @@ import java.math.BigInteger;
  * Does not keep an array of all blocks since it could waste a few GB of memory
  * for no reason
  *
- * Instead it stores a sorted list of blocks being worked on and cached blocks
- * It also stores a pointer to the next available block
+ * Instead it stores the blocks being worked on and the cached blocks
+ *
+ * Fresh blocks are handed out from segments, a string length (or a range of
+ * one in probability order) with an atomic cursor, so requestPartition is a
+ * compare and set on the cursor of the current segment and doesn't lock.
+ * Blocks that come back through notifyFailure go on a concurrent free list
+ * that is drained before the cursors, completed and cached blocks are skipped
+ * with an exclusion index that is only rebuilt when the cache or the journal
+ * changes
+ *
+ * Completed blocks are not kept as partitions, they are merged into one
+ * RangeSet per string length so a long sweep only leaves behind as many
+ * intervals as there are holes in the completed space
  *
+ * Each string length has its own keyspace (a Mask), either the same alphabet
+ * in every position for lengths 1 to maxStringLength or a single mask, so
+ * the block numbers only cover plaintexts that are actually wanted
+ *
+ * The scheduler handles controllers on several threads that all share the
+ * partition manager of a query. requestPartition is lock free, the rest of
+ * the methods that read or change the partitions are synchronized
  */
 public class PartitionManager {
 	
-	private Partition nextAvailable;
-	private String alphabet;
-	// Keeps track of which blocks are being worked on
-	private TreeSet<Partition> processing;
+	/*
+	 * A run of blocks of one string length handed out in order, cursor is
+	 * the first block that hasn't been claimed. It never goes past end
+	 */
+	private static class Segment {
+
+		final int stringLength;
+		final long start;
+		final long end;
+		final AtomicLong cursor;
+
+		Segment(int stringLength, long start, long end) {
+			this.stringLength = stringLength;
+			this.start = start;
+			this.end = end;
+			this.cursor = new AtomicLong(start);
+		}
+
+		boolean isExhausted() {
+			return cursor.get() >= end;
+		}
+	}
+	// The keyspace of each string length, null for lengths that are not swept
+	private Mask[] masks;
+	// Handed out in order, the first one that isn't exhausted is used
+	private volatile Segment[] segments;
+	private AtomicInteger segmentPosition = new AtomicInteger();
+	// Ranges that were handed out and came back, handed out before the
+	// segments
+	private ConcurrentLinkedQueue<Partition> freeRanges = new ConcurrentLinkedQueue<Partition>();
+	// Completed and cached blocks when the index was built, indexed by string
+	// length. Never changed once built so any thread can read it
+	private volatile RangeSet[] excluded;
+	// requestPartition calls that may have claimed a range that is not in
+	// processing yet
+	private AtomicInteger claiming = new AtomicInteger();
+	private AtomicLong issued = new AtomicLong();
+	// Keeps track of which blocks are being worked on, a partition maps to
+	// itself so an equal one can be looked up
+	private ConcurrentHashMap<Partition, Partition> processing;
+	// The same blocks in the order they were handed out, oldest first
+	private ConcurrentSkipListMap<Long, Partition> issueOrder;
 	// Keeps track of which blocks are being cached in rainbow tables
 	private TreeSet<Partition> cached;
 	// Keeps track of which blocks are having their cache built but is not ready yet
 	private TreeSet<Partition> caching;
 	// What the largest strings we allow are
 	private int maxStringLength;
+	// Block ranges indexed by string length, used for the gap lookups
+	private RangeSet[] completedRanges;
+	private RangeSet[] cachedRanges;
+	private RangeSet[] cachingRanges;
+	// Number of blocks for each string length so we only calculate it once
+	private long[] numberOfBlocks;
+	// Where completed and cached ranges are logged, null if not persisted
+	private PartitionJournal journal;
+	// Ranges in the order they should be handed out, null for ascending
+	private Partition[] order;
+	// Ranges per string length the order splits the space into, at most
+	public static int MAX_ORDER_RANGES = 4096;
 
 
 	//private BigInteger totalKeysDone = new BigInteger(0);
 	
 	public PartitionManager(String alphabet, int maxStringLength) {
-		this.alphabet = alphabet;
-		processing = new TreeSet<Partition>();
+		this(alphabet, maxStringLength, false);
+	}
+
+	/*
+	 * offHeap stores the block ranges in direct buffers instead of the heap
+	 */
+	public PartitionManager(String alphabet, int maxStringLength, boolean offHeap) {
+		this(uniformMasks(alphabet, maxStringLength), offHeap);
+	}
+
+	/*
+	 * Only sweeps the plaintexts matching the mask, all of one length
+	 */
+	public PartitionManager(Mask mask) {
+		this(mask, false);
+	}
+
+	public PartitionManager(Mask mask, boolean offHeap) {
+		this(singleMask(mask), offHeap);
+	}
+
+	/*
+	 * increment sweeps every length up to the mask's length using the first
+	 * positions of the mask
+	 */
+	public PartitionManager(Mask mask, boolean increment, boolean offHeap) {
+		this(increment ? prefixMasks(mask) : singleMask(mask), offHeap);
+	}
+
+	private PartitionManager(Mask[] masks, boolean offHeap) {
+		this.masks = masks;
+		processing = new ConcurrentHashMap<Partition, Partition>();
+		issueOrder = new ConcurrentSkipListMap<Long, Partition>();
 		cached = new TreeSet<Partition>();
 		caching = new TreeSet<Partition>();
-		this.maxStringLength = maxStringLength;
+		this.maxStringLength = masks.length - 1;
+		completedRanges = new RangeSet[maxStringLength + 1];
+		cachedRanges = new RangeSet[maxStringLength + 1];
+		cachingRanges = new RangeSet[maxStringLength + 1];
+		numberOfBlocks = new long[maxStringLength + 1];
+		for (int i = 1; i <= maxStringLength; i++) {
+			completedRanges[i] = new RangeSet(offHeap);
+			cachedRanges[i] = new RangeSet(offHeap);
+			cachingRanges[i] = new RangeSet(offHeap);
+			// Lengths without a mask have no blocks and are skipped over
+			numberOfBlocks[i] = masks[i] == null ? 0 : PlaintextSpace.getNumberOfBlocks(masks[i]);
+		}
 		reset();
 	}
+
+	private static Mask[] uniformMasks(String alphabet, int maxStringLength) {
+		return prefixMasks(Mask.uniform(alphabet, maxStringLength));
+	}
+
+	private static Mask[] prefixMasks(Mask mask) {
+		Mask[] masks = new Mask[mask.getLength() + 1];
+		for (int i = 1; i <= mask.getLength(); i++) {
+			masks[i] = mask.prefix(i);
+		}
+		return masks;
+	}
+
+	private static Mask[] singleMask(Mask mask) {
+		Mask[] masks = new Mask[mask.getLength() + 1];
+		masks[mask.getLength()] = mask;
+		return masks;
+	}
 	/*
 	 * Resets the consumed blocks, maintains cached blocks
+	 *
+	 * Nothing else may be requesting partitions while this runs
 	 */
 	
-	public final void reset() {
-		nextAvailable = new Partition(1, 0, 0);
+	public synchronized final void reset() {
 		processing.clear();
+		issueOrder.clear();
+		freeRanges.clear();
+		for (int i = 1; i <= maxStringLength; i++) {
+			completedRanges[i].clear();
+		}
+		rebuildExclusions();
+		buildSegments();
+		if (journal != null) {
+			// Rewrite the log without the completed ranges
+			journal.compact();
+		}
+	}
+
+	/*
+	 * The segments to sweep, the probability order if there is one and
+	 * otherwise every string length from the bottom
+	 */
+	private void buildSegments() {
+		List<Segment> built = new ArrayList<Segment>();
+		if (order != null) {
+			for (Partition range : order) {
+				built.add(new Segment(range.stringLength, range.startBlockNumber, range.endBlockNumber));
+			}
+		} else {
+			for (int i = 1; i <= maxStringLength; i++) {
+				if (numberOfBlocks[i] > 0) {
+					built.add(new Segment(i, 0, numberOfBlocks[i]));
+				}
+			}
+		}
+		segmentPosition.set(0);
+		segments = built.toArray(new Segment[built.size()]);
+	}
+
+	/*
+	 * Takes a snapshot of the completed and cached ranges for the segments to
+	 * skip, has to be called whenever blocks ahead of a cursor become
+	 * completed or cached or stop being cached
+	 */
+	private void rebuildExclusions() {
+		RangeSet[] built = new RangeSet[maxStringLength + 1];
+		for (int i = 1; i <= maxStringLength; i++) {
+			built[i] = new RangeSet();
+			for (RangeSet set : new RangeSet[]{completedRanges[i], cachedRanges[i]}) {
+				for (int j = 0; j < set.size(); j++) {
+					built[i].add(set.getStart(j), set.getEnd(j));
+				}
+			}
+		}
+		excluded = built;
 	}
 
 	/*
 	 * Request a partition of the space, takes an size that gives that many
 	 * blocks
 	 *
-	 * nextAvailable always has the first empty block counting from the bottom
-	 *
+	 * Reclaimed ranges come first, then the cursor of the current segment.
+	 * Neither locks so any number of threads can request at once, returns
+	 * null once the whole space is handed out
 	 */
 	public Partition requestPartition(int size) {
-		if (nextAvailable.stringLength > maxStringLength) {
-			// No more blocks found, space has been exausted
+		while (true) {
+			claiming.incrementAndGet();
+			try {
+				Partition free = freeRanges.poll();
+				if (free != null) {
+					if (free.getNumberOfBlocks() > size) {
+						// Put the rest back for someone else
+						freeRanges.add(new Partition(free.stringLength, free.startBlockNumber + size, free.endBlockNumber));
+						return issue(free.stringLength, free.startBlockNumber, free.startBlockNumber + size);
+					}
+					return issue(free.stringLength, free.startBlockNumber, free.endBlockNumber);
+				}
+				Segment[] current = segments;
+				int position;
+				while ((position = segmentPosition.get()) < current.length) {
+					Segment segment = current[position];
+					Partition claimed = claim(segment, size);
+					if (claimed != null) {
+						return claimed;
+					}
+					if (segment.isExhausted()) {
+						segmentPosition.compareAndSet(position, position + 1);
+					}
+				}
+			} finally {
+				claiming.decrementAndGet();
+			}
+			// No more blocks found, the space has been exausted unless some
+			// blocks slipped through
+			if (!reclaimGaps()) {
+				return null;
+			}
+		}
+	}
+
+	/*
+	 * Claims up to size blocks from the cursor of a segment, returns null if
+	 * the segment is exhausted or the claim was all excluded blocks, the
+	 * caller tries again
+	 *
+	 * Excluded blocks in the middle of a claim split it, the first piece is
+	 * returned and the others go on the free list
+	 */
+	private Partition claim(Segment segment, int size) {
+		RangeSet skip = excluded[segment.stringLength];
+		long start = segment.cursor.get();
+		if (start >= segment.end) {
 			return null;
 		}
-		Partition result = nextAvailable.clone();
-		// Find the next start block
-		result = findPartitionStartBlock(result, size);
-		if (result.stringLength < nextAvailable.stringLength) {
-			// We need to move up to the next string length
-			return requestPartition(size);
+		long skipped = skip.skip(start);
+		if (skipped > start) {
+			// Jump over the completed or cached blocks in one go instead of
+			// a claim at a time
+			segment.cursor.compareAndSet(start, Math.min(skipped, segment.end));
+			return null;
 		}
-		// We found a good start point, now find the end point
-		result = findPartitionEndBlock(result, size);
-		result.setStatus(Partition.Status.PROCESSING);
-		if (result.endBlockNumber > nextAvailable.startBlockNumber) {
-			nextAvailable.startBlockNumber = result.endBlockNumber;
+		// Not a fetch and add, a segment ending near Long.MAX_VALUE would
+		// wrap around once claims go past its end
+		long end;
+		do {
+			start = segment.cursor.get();
+			if (start >= segment.end) {
+				return null;
+			}
+			end = size < segment.end - start ? start + size : segment.end;
+		} while (!segment.cursor.compareAndSet(start, end));
+		Partition result = null;
+		for (long piece = skip.skip(start); piece < end; piece = skip.skip(piece)) {
+			long pieceEnd = Math.min(end, skip.nextStart(piece));
+			if (result == null) {
+				result = issue(segment.stringLength, piece, pieceEnd);
+			} else {
+				freeRanges.add(new Partition(segment.stringLength, piece, pieceEnd));
+			}
+			piece = pieceEnd;
 		}
-		processing.add(result);
 		return result;
 	}
 
-	public List<Partition> stripedRequestPartitions(int size, int numberOfPartitions) {
+	private Partition issue(int stringLength, long start, long end) {
+		Partition result = new Partition(stringLength, start, end);
+		result.setStatus(Partition.Status.PROCESSING);
+		result.setCopies(1);
+		result.issueNumber = issued.getAndIncrement();
+		processing.put(result, result);
+		issueOrder.put(result.issueNumber, result);
+		return result;
+	}
+
+	/*
+	 * Safety net for when the segments and the free list have run dry but the
+	 * space is not complete, i.e. a cache was released while a segment was
+	 * skipping it. Once nothing is being processed every block that is not
+	 * completed or cached is free, so those go on the free list
+	 *
+	 * Returns true if it found any
+	 */
+	private synchronized boolean reclaimGaps() {
+		if (!freeRanges.isEmpty()) {
+			return true;
+		}
+		for (Segment segment : segments) {
+			if (!segment.isExhausted()) {
+				return true;
+			}
+		}
+		// Checked after the segments so a claim that got blocks before they
+		// ran out is either still counted or already in processing
+		if (claiming.get() > 0 || !processing.isEmpty()) {
+			return false;
+		}
+		boolean found = false;
+		for (int i = 1; i <= maxStringLength; i++) {
+			long start = findFree(i, 0, completedRanges, cachedRanges);
+			while (start < numberOfBlocks[i]) {
+				long end = findEnd(i, start, Integer.MAX_VALUE, completedRanges, cachedRanges);
+				freeRanges.add(new Partition(i, start, end));
+				found = true;
+				start = findFree(i, end, completedRanges, cachedRanges);
+			}
+		}
+		return found;
+	}
+
+	/*
+	 * Hands out the blocks with the most probability per block first instead
+	 * of by ascending length and block number. Works on any masks, if their
+	 * charsets are ordered by the model (CharacterModel.order) as well the
+	 * likely prefixes are also next to each other
+	 *
+	 * Every length is split on its first few positions into at most
+	 * MAX_ORDER_RANGES ranges, each range is all the plaintexts with one
+	 * prefix so it is a contiguous run of blocks. The ranges of all lengths
+	 * are sorted by probability over blocks, so a likely prefix of a long
+	 * length can come before an unlikely short length
+	 */
+	public synchronized void orderBy(CharacterModel model) {
+		final List<Partition> ranges = new ArrayList<Partition>();
+		final List<Double> scores = new ArrayList<Double>();
+		BigInteger blockSize = BigInteger.valueOf(PlaintextSpace.BLOCK_SIZE);
+		for (int length = 1; length <= maxStringLength; length++) {
+			Mask mask = masks[length];
+			if (mask == null) {
+				continue;
+			}
+			// Split on as many leading positions as keeps the ranges at
+			// least a block long and not too many of them
+			int prefixLength = 0;
+			long prefixes = 1;
+			BigInteger suffixes = PlaintextSpace.getNumberOfPlaintexts(mask);
+			while (prefixLength < length
+					&& prefixes * mask.getRadix(prefixLength) <= MAX_ORDER_RANGES
+					&& suffixes.divide(BigInteger.valueOf(mask.getRadix(prefixLength))).compareTo(blockSize) >= 0) {
+				suffixes = suffixes.divide(BigInteger.valueOf(mask.getRadix(prefixLength)));
+				prefixes *= mask.getRadix(prefixLength);
+				prefixLength++;
+			}
+			double suffixScore = Math.log(model.lengthProbability(length));
+			for (int i = prefixLength; i < length; i++) {
+				suffixScore += Math.log(model.probability(i, mask.getCharset(i)));
+			}
+			int[] digits = new int[prefixLength];
+			long previousEnd = 0;
+			for (long prefix = 0; prefix < prefixes; prefix++) {
+				BigInteger low = suffixes.multiply(BigInteger.valueOf(prefix));
+				long start = low.divide(blockSize).longValue();
+				long end = low.add(suffixes).add(blockSize).subtract(BigInteger.ONE).divide(blockSize).longValue();
+				double score = suffixScore - Math.log(end - start);
+				for (int i = 0; i < prefixLength; i++) {
+					score += Math.log(model.probability(i, mask.getCharset(i).charAt(digits[i])));
+				}
+				// A block shared with the previous prefix stays with it so
+				// the ranges don't overlap
+				start = Math.max(start, previousEnd);
+				if (start < end) {
+					ranges.add(new Partition(length, start, end));
+					scores.add(score);
+				}
+				previousEnd = end;
+				// Next prefix, last position changes fastest like the blocks
+				for (int i = prefixLength - 1; i >= 0 && ++digits[i] == mask.getRadix(i); i--) {
+					digits[i] = 0;
+				}
+			}
+		}
+		Integer[] sorted = new Integer[ranges.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = i;
+		}
+		Arrays.sort(sorted, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(scores.get(b), scores.get(a));
+			}
+		});
+		order = new Partition[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			order[i] = ranges.get(sorted[i]);
+		}
+		buildSegments();
+	}
+
+	/*
+	 * Endgame, once requestPartition has run dry hand out another copy of the
+	 * oldest block that is still being processed so a slow or stuck client
+	 * doesn't hold up the end of the sweep
+	 *
+	 * Blocks in exclude (the ones the client already has) and blocks that
+	 * already have maxCopies copies are skipped, returns null if there is
+	 * nothing to duplicate. Returns the same partition object that is in
+	 * processing
+	 */
+	public synchronized Partition requestDuplicate(Collection<Partition> exclude, int maxCopies) {
+		for (Partition p : issueOrder.values()) {
+			if (p.getCopies() < maxCopies && !exclude.contains(p)) {
+				p.setCopies(p.getCopies() + 1);
+				return p;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Finds the partition to take work from once the space has run dry, the
+	 * biggest one with a single owner that can be split into two halves of
+	 * at least minBlocks. Returns null if there is none
+	 *
+	 * The partition may be finished or split by someone else before split is
+	 * called, split checks again
+	 */
+	public synchronized Partition findSplit(Collection<Partition> exclude, long minBlocks) {
+		Partition best = null;
+		for (Partition p : processing.values()) {
+			if (p.getOwner() != null && p.getCopies() == 1
+					&& p.getNumberOfBlocks() >= 2 * Math.max(1, minBlocks)
+					&& (best == null || p.getNumberOfBlocks() > best.getNumberOfBlocks())
+					&& !exclude.contains(p)) {
+				best = p;
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * Splits a partition that is being processed in half, the second half is
+	 * returned as a new partition in processing. p's owner has to be told to
+	 * stop at the new end
+	 *
+	 * p itself is never changed since other threads still hold it, the first
+	 * half is a new partition that takes its place in processing and is
+	 * found with p.getReplacement(). Returns null if p can no longer be split
+	 */
+	public synchronized Partition split(Partition p, long minBlocks) {
+		if (processing.get(p) != p || p.getCopies() != 1
+				|| p.getNumberOfBlocks() < 2 * Math.max(1, minBlocks)) {
+			return null;
+		}
+		long middle = p.startBlockNumber + p.getNumberOfBlocks() / 2;
+		Partition head = new Partition(p.stringLength, p.startBlockNumber, middle);
+		head.setStatus(Partition.Status.PROCESSING);
+		head.setCopies(1);
+		head.setOwner(p.getOwner());
+		head.issueNumber = p.issueNumber;
+		processing.remove(p);
+		processing.put(head, head);
+		issueOrder.put(head.issueNumber, head);
+		p.replacement = head;
+		return issue(p.stringLength, middle, p.endBlockNumber);
+	}
+
+	public synchronized List<Partition> stripedRequestPartitions(int size, int numberOfPartitions) {
 		Stack<Partition> putBack = new Stack<Partition>();
 		List<Partition> assigned = new LinkedList<Partition>();
 		for (int i = 0; i < numberOfPartitions; i++) {
@@ -94,76 +533,98 @@ public class PartitionManager {
 		}
 		return assigned;
 	}
-	
-	private Partition findPartitionStartBlock(Partition result, int size) {
-		long numberOfBlocks = PlaintextSpace.getNumberOfBlocks(alphabet, result.stringLength);
+
+	/*
+	 * Finds the first block at or after start that is not in any of the given
+	 * sets, keeps skipping until none of the sets cover the block
+	 */
+	private long findFree(int stringLength, long start, RangeSet[]... sets) {
 		boolean blockIsGood;
 		do {
 			blockIsGood = true;
-			// First check for processing blocks
-			Partition pBlock = processing.ceiling(result);
-			if (pBlock != null && pBlock.startBlockEquals(result)) {
-				result.startBlockNumber = pBlock.endBlockNumber;
-				blockIsGood = false;
+			for (RangeSet[] set : sets) {
+				long skipped = set[stringLength].skip(start);
+				if (skipped != start) {
+					start = skipped;
+					blockIsGood = false;
+				}
 			}
-			// Now check for cached blocks
-			Partition cBlock = cached.ceiling(result);
-			if (cBlock != null && cBlock.startBlockEquals(result)) {
-				result.startBlockNumber = cBlock.endBlockNumber;
-				blockIsGood = false;
-			}
-			// Check if we hit the end of the number of blocks
-			if (result.startBlockNumber >= numberOfBlocks) {
-				// Reset, requestCache will notice that this has changed
-				nextAvailable.stringLength++;
-				nextAvailable.startBlockNumber = 0;
-				return result;
-			}
-			// If all of the above pass, check the flag
 		} while (!blockIsGood);
-		return result;
+		return start;
 	}
-	
-	private Partition findPartitionEndBlock(Partition result, int size) {
-		long numberOfBlocks = PlaintextSpace.getNumberOfBlocks(alphabet, result.stringLength);
-		// Set a max value and decrease from there
-		result.endBlockNumber = Long.MAX_VALUE;
-		Partition pBlock = processing.ceiling(result);
-		if (pBlock != null
-				&& result.stringLength == pBlock.stringLength
-				&& result.endBlockNumber > pBlock.startBlockNumber) {
-			result.endBlockNumber = pBlock.startBlockNumber;
-		}
-		Partition cBlock = cached.ceiling(result);
-		if (cBlock != null
-				&& result.stringLength == cBlock.stringLength
-				&& result.endBlockNumber > cBlock.startBlockNumber) {
-			result.endBlockNumber = cBlock.startBlockNumber;
-		}
-		// Check if we exceeded the size given
-		if (result.startBlockNumber + size < result.endBlockNumber) {
-			result.endBlockNumber = result.startBlockNumber + size;
-		}
-		// Check if we exceeded the number of blocks
-		if (result.endBlockNumber > numberOfBlocks) {
-			result.endBlockNumber = numberOfBlocks;
-		}
-		if (result.startBlockNumber >= result.endBlockNumber) {
+
+	/*
+	 * Finds the end of a partition starting at a free block start, stops at
+	 * the first block used by any of the given sets
+	 */
+	private long findEnd(int stringLength, long start, int size, RangeSet[]... sets) {
+		// Compare against what's left so start + size can't overflow
+		long end = size < numberOfBlocks[stringLength] - start ? start + size : numberOfBlocks[stringLength];
+		for (RangeSet[] set : sets) {
+			end = Math.min(end, set[stringLength].nextStart(start));
+		}
+		if (start >= end) {
 			throw new RuntimeException("Something went horribly wrong with the algorithm(probably a bug)");
 		}
-		return result;
+		return end;
 	}
 
 	/*
 	 * Notify Complete, tells the partition manager that a block is complete
+	 *
+	 * A report that doesn't match anything in processing is late, the block
+	 * failed or was split and its blocks went to someone else. They were
+	 * still searched so the whole range counts as completed, along with
+	 * whatever is processing inside it. Returns false if the range isn't in
+	 * the space at all and was ignored
 	 */
-	public void notifyComplete(Partition b) {
-		if (processing.contains(b)) {
-			processing.ceiling(b).setStatus(Partition.Status.COMPLETE);
-			//totalKeysDone += processing.ceiling(b).
-		} else {
-			throw new RuntimeException("Trying to complete block that was not requested");
+	public synchronized boolean notifyComplete(Partition b) {
+		Partition p = processing.get(b);
+		if (p != null) {
+			complete(p);
+			completedRanges[p.stringLength].add(p.startBlockNumber, p.endBlockNumber);
+			log(PartitionJournal.COMPLETE, p);
+			return true;
+		}
+		if (b.stringLength < 1 || b.stringLength > maxStringLength || b.startBlockNumber < 0
+				|| b.startBlockNumber >= b.endBlockNumber || b.endBlockNumber > numberOfBlocks[b.stringLength]) {
+			return false;
+		}
+		if (completedRanges[b.stringLength].skip(b.startBlockNumber) >= b.endBlockNumber) {
+			// A duplicate of the block finished first, nothing to do
+			return true;
+		}
+		completedRanges[b.stringLength].add(b.startBlockNumber, b.endBlockNumber);
+		log(PartitionJournal.COMPLETE, b);
+		for (Partition other : new ArrayList<Partition>(processing.values())) {
+			if (other.stringLength == b.stringLength && other.startBlockNumber >= b.startBlockNumber
+					&& other.endBlockNumber <= b.endBlockNumber) {
+				complete(other);
+			}
 		}
+		// Cut the range out of the free list, a piece someone polled in the
+		// meantime is just searched twice
+		for (Partition free : new ArrayList<Partition>(freeRanges)) {
+			if (free.stringLength != b.stringLength || free.endBlockNumber <= b.startBlockNumber
+					|| free.startBlockNumber >= b.endBlockNumber || !freeRanges.remove(free)) {
+				continue;
+			}
+			if (free.startBlockNumber < b.startBlockNumber) {
+				freeRanges.add(new Partition(free.stringLength, free.startBlockNumber, b.startBlockNumber));
+			}
+			if (free.endBlockNumber > b.endBlockNumber) {
+				freeRanges.add(new Partition(free.stringLength, b.endBlockNumber, free.endBlockNumber));
+			}
+		}
+		rebuildExclusions();
+		return true;
+	}
+
+	private void complete(Partition p) {
+		p.setStatus(Partition.Status.COMPLETE);
+		p.setCopies(0);
+		processing.remove(p);
+		issueOrder.remove(p.issueNumber);
 	}
 
 	/*
@@ -171,107 +632,104 @@ public class PartitionManager {
 	 * Generally caused by a client dcing without notice
 	 */
 	
-	public void notifyFailure(Partition b) {
-		if (processing.contains(b)) {
-			processing.remove(b);
+	public synchronized void notifyFailure(Partition b) {
+		Partition p = b == null ? null : processing.get(b);
+		// A partition that was split failed, its first half goes back
+		while (p == null && b != null && b.replacement != null) {
+			b = b.replacement;
+			p = processing.get(b);
 		}
-		if (b.compareTo(nextAvailable) < 0) {
-			nextAvailable = b;
+		if (p == null) {
+			return;
+		}
+		if (p.getCopies() > 1) {
+			// Another client is still working on a copy
+			p.setCopies(p.getCopies() - 1);
+			return;
+		}
+		p.setCopies(0);
+		processing.remove(p);
+		issueOrder.remove(p.issueNumber);
+		// Copied so p itself is never modified
+		freeRanges.add(p.clone());
+	}
+	/*
+	 * Returns true once every block of every string length has been completed
+	 * or is cached, i.e. the sweep is over
+	 */
+	public synchronized boolean isComplete() {
+		if (!processing.isEmpty()) {
+			return false;
+		}
+		for (int i = 1; i <= maxStringLength; i++) {
+			if (findFree(i, 0, completedRanges, cachedRanges) < numberOfBlocks[i]) {
+				return false;
+			}
 		}
+		return true;
 	}
+
 	/*
 	 * Request Cache, requests a block to be cached
 	 *
 	 * For now it only gives blocks in maxStringLength range
 	 *
-	 * Note: Almost a duplicate of requestPartition
+	 * Returns null if the whole range is already cached or caching
 	 */
 	
-	public Partition requestCache(int size) {
+	public synchronized Partition requestCache(int size) {
 		int stringLength = maxStringLength;
-		Partition result = new Partition(stringLength, 0, 0);
 		// Find the next start block
-		result = findCacheStartBlock(result, size);
-		if (result == null) {
-			return result;
+		long start = findFree(stringLength, 0, cachingRanges, cachedRanges);
+		if (start >= numberOfBlocks[stringLength]) {
+			// Fail as in the method description
+			return null;
 		}
 		// We found a good start point, now find the end point
-		result = findCacheEndBlock(result, size);
+		long end = findEnd(stringLength, start, size, cachingRanges, cachedRanges);
+		Partition result = new Partition(stringLength, start, end);
 		result.setStatus(Partition.Status.CACHING);
 		caching.add(result);
+		cachingRanges[stringLength].add(start, end);
 		return result;
 	}
-	
-	private Partition findCacheStartBlock(Partition result, int size) {
-		long numberOfBlocks = PlaintextSpace.getNumberOfBlocks(alphabet, result.stringLength);
-		
-		boolean blockIsGood;
-		do {
-			blockIsGood = true;
-			// First check for caching blocks
-			Partition c1Block = caching.ceiling(result);
-			if (c1Block != null && c1Block.startBlockEquals(result)) {
-				result.startBlockNumber = c1Block.endBlockNumber;
-				blockIsGood = false;
-			}
-			// Now check for cached blocks
-			Partition c2Block = cached.ceiling(result);
-			if (c2Block != null && c2Block.startBlockEquals(result)) {
-				result.startBlockNumber = c2Block.endBlockNumber;
-				blockIsGood = false;
-			}
-			// Check if we hit the end of the number of blocks
-			if (result.startBlockNumber >= numberOfBlocks) {
-				// Fail as in the method description
-				return null;
-			}
-			// If all of the above pass, check the flag
-		} while (!blockIsGood);
-		return result;
-	}
-	
-	private Partition findCacheEndBlock(Partition result, int size) {
-		long numberOfBlocks = PlaintextSpace.getNumberOfBlocks(alphabet, result.stringLength);
-		// Set a max value and decrease from there
-		result.endBlockNumber = Long.MAX_VALUE;
-		Partition c1Block = caching.ceiling(result);
-		if (c1Block != null
-				&& result.stringLength == c1Block.stringLength
-				&& result.endBlockNumber > c1Block.startBlockNumber) {
-			result.endBlockNumber = c1Block.startBlockNumber;
-		}
-		Partition c2Block = cached.ceiling(result);
-		if (c2Block != null
-				&& result.stringLength == c2Block.stringLength
-				&& result.endBlockNumber > c2Block.startBlockNumber) {
-			result.endBlockNumber = c2Block.startBlockNumber;
-		}
-		// Check if we exceeded the size given
-		if (result.startBlockNumber + size < result.endBlockNumber) {
-			result.endBlockNumber = result.startBlockNumber + size;
-		}
-		// Check if we exceeded the number of blocks
-		if (result.endBlockNumber > numberOfBlocks) {
-			result.endBlockNumber = numberOfBlocks;
-		}
-		if (result.startBlockNumber >= result.endBlockNumber) {
-			throw new RuntimeException("Something went horribly wrong with the algorithm(probably a bug)");
+	/*
+	 * Requests a block to be cached within [start, end) of a string length,
+	 * the first free range in there up to its end
+	 *
+	 * Returns null if all of it is already cached or caching
+	 */
+	public synchronized Partition requestCache(int stringLength, long start, long end) {
+		end = Math.min(end, numberOfBlocks[stringLength]);
+		start = findFree(stringLength, start, cachingRanges, cachedRanges);
+		if (start >= end) {
+			return null;
 		}
+		end = findEnd(stringLength, start, (int) Math.min(end - start, Integer.MAX_VALUE), cachingRanges, cachedRanges);
+		Partition result = new Partition(stringLength, start, end);
+		result.setStatus(Partition.Status.CACHING);
+		caching.add(result);
+		cachingRanges[stringLength].add(start, end);
 		return result;
 	}
+
 	/*
 	 * Notify Cache, tells the partition manager that this block is being cached
 	 * in a rainbowtable and should not be given as a job
 	 *
 	 */
 	
-	public void notifyCache(Partition b) {
+	public synchronized void notifyCache(Partition b) {
 		if (caching.contains(b)) {
 			caching.remove(b);
+			cachingRanges[b.stringLength].remove(b.startBlockNumber, b.endBlockNumber);
 		}
 		if (!cached.contains(b)) {
 			b.setStatus(Partition.Status.CACHED);
 			cached.add(b);
+			cachedRanges[b.stringLength].add(b.startBlockNumber, b.endBlockNumber);
+			log(PartitionJournal.CACHED, b);
+			rebuildExclusions();
 		}
 		// A cache may be building as a block is being brute forced
 		// Let the brute force finish the check
@@ -282,14 +740,161 @@ public class PartitionManager {
 	 * longer being cached
 	 */
 	
-	public void releaseCache(Partition b) {
+	public synchronized void releaseCache(Partition b) {
 		if (cached.contains(b)) {
 			cached.remove(b);
+			cachedRanges[b.stringLength].remove(b.startBlockNumber, b.endBlockNumber);
+			log(PartitionJournal.RELEASED, b);
+			rebuildExclusions();
+			// The part of the range the cursors already skipped has to be
+			// brute forced again, the rest is reached as usual
+			for (Segment segment : segments) {
+				if (segment.stringLength != b.stringLength) {
+					continue;
+				}
+				long start = Math.max(segment.start, b.startBlockNumber);
+				long end = Math.min(Math.min(segment.cursor.get(), segment.end), b.endBlockNumber);
+				if (start < end) {
+					freeRanges.add(new Partition(b.stringLength, start, end));
+				}
+			}
 		}
 		if (caching.contains(b)) {
 			caching.remove(b);
+			cachingRanges[b.stringLength].remove(b.startBlockNumber, b.endBlockNumber);
 		}
 	}
+	/*
+	 * Restores the completed and cached ranges from a journal and logs all
+	 * further changes to it, the journal is compacted straight away so it
+	 * starts out as one record per completed range
+	 */
+	public synchronized void attachJournal(PartitionJournal journal) {
+		journal.replay(new PartitionJournal.Listener() {
+
+			@Override
+			public void record(int type, int stringLength, long startBlock, long endBlock) {
+				if (stringLength < 1 || stringLength > maxStringLength) {
+					return;
+				}
+				Partition p = new Partition(stringLength, startBlock, endBlock);
+				switch (type) {
+					case PartitionJournal.COMPLETE:
+						completedRanges[stringLength].add(startBlock, endBlock);
+						break;
+					case PartitionJournal.CACHED:
+						p.setStatus(Partition.Status.CACHED);
+						cached.add(p);
+						cachedRanges[stringLength].add(startBlock, endBlock);
+						break;
+					case PartitionJournal.RELEASED:
+						cached.remove(p);
+						cachedRanges[stringLength].remove(startBlock, endBlock);
+						break;
+				}
+			}
+		});
+		journal.setSnapshot(new PartitionJournal.Snapshot() {
+
+			@Override
+			public void write(PartitionJournal journal) {
+				for (int i = 1; i <= maxStringLength; i++) {
+					RangeSet completed = completedRanges[i];
+					for (int j = 0; j < completed.size(); j++) {
+						journal.append(PartitionJournal.COMPLETE, i, completed.getStart(j), completed.getEnd(j));
+					}
+				}
+				for (Partition p : cached) {
+					journal.append(PartitionJournal.CACHED, p.stringLength, p.startBlockNumber, p.endBlockNumber);
+				}
+			}
+		});
+		journal.compact();
+		this.journal = journal;
+		// Start over, the segments skip what the journal says is done
+		freeRanges.clear();
+		rebuildExclusions();
+		buildSegments();
+	}
+
+	/*
+	 * The keyspace the blocks of a string length index into
+	 */
+	public Mask getMask(int stringLength) {
+		return stringLength < masks.length ? masks[stringLength] : null;
+	}
+
+	public long getNumberOfBlocks(int stringLength) {
+		return numberOfBlocks[stringLength];
+	}
+
+	/*
+	 * Each length fits in a long but with 128 bit keyspaces the sum over all
+	 * the lengths may not, it stops at Long.MAX_VALUE instead of wrapping
+	 */
+	public long getTotalBlocks() {
+		long total = 0;
+		for (int i = 1; i <= maxStringLength; i++) {
+			total = saturatedAdd(total, numberOfBlocks[i]);
+		}
+		return total;
+	}
+
+	private static long saturatedAdd(long a, long b) {
+		return a > Long.MAX_VALUE - b ? Long.MAX_VALUE : a + b;
+	}
+
+	/*
+	 * Blocks that are completed or cached, i.e. won't be handed out again,
+	 * clamped like getTotalBlocks
+	 */
+	public synchronized long getCoveredBlocks() {
+		long covered = 0;
+		for (int i = 1; i <= maxStringLength; i++) {
+			covered = saturatedAdd(covered, Math.min(numberOfBlocks[i],
+					saturatedAdd(completedRanges[i].coveredLength(), cachedRanges[i].coveredLength())));
+		}
+		return covered;
+	}
+
+	/*
+	 * Number of separate completed ranges, how fragmented the sweep is
+	 */
+	public synchronized int getCompletedRanges() {
+		int ranges = 0;
+		for (int i = 1; i <= maxStringLength; i++) {
+			ranges += completedRanges[i].size();
+		}
+		return ranges;
+	}
+
+	public synchronized PartitionJournal getJournal() {
+		return journal;
+	}
+
+	/*
+	 * Deletes the journal once the query is done, later changes are not
+	 * logged
+	 */
+	public synchronized void closeJournal() {
+		if (journal != null) {
+			journal.delete();
+			journal = null;
+		}
+	}
+
+	public synchronized void flushJournal() {
+		if (journal != null) {
+			journal.flush();
+		}
+	}
+
+	private void log(int type, Partition p) {
+		if (journal != null) {
+			journal.append(type, p.stringLength, p.startBlockNumber, p.endBlockNumber);
+		}
+	}
+
 	/*
 	 * For testing purposes only
 	 */
@@ -302,7 +907,11 @@ public class PartitionManager {
 		return caching;
 	}
 	
-	public TreeSet<Partition> getProcessing() {
-		return processing;
+	public Collection<Partition> getProcessing() {
+		return processing.values();
+	}
+
+	public RangeSet getCompleted(int stringLength) {
+		return completedRanges[stringLength];
 	}
 }
@@ -0,0 +1,179 @@
+package rainbow.scheduler.partition;
+
+import java.math.BigInteger;
+
+/*
+ * Walks the plaintexts of a block in order without creating any objects
+ *
+ * The current plaintext is kept as an array of charset offsets (an odometer)
+ * so moving to the next plaintext is an increment of the last position and a
+ * carry now and then, instead of textLength divisions like
+ * PlaintextSpace.getText. The text is written into arrays that are reused
+ * for every candidate, as bytes for hashing and as chars
+ *
+ * Works for masks as well, every position has its own radix
+ *
+ * Only works for alphabets of single byte characters
+ *
+ * Usage:
+ * PlaintextCursor cursor = new PlaintextCursor(alphabet, textLength, block);
+ * while (cursor.next()) { hash(cursor.getBytes()); }
+ */
+public class PlaintextCursor {
+
+	// Characters of each position, as bytes and as chars
+	private byte[][] positionBytes;
+	private char[][] positionChars;
+	private int[] radix;
+	private int textLength;
+	private long numberOfBlocks;
+	// Plaintexts in the last block, the others are all BLOCK_SIZE
+	private long lastBlockSize;
+	// Offset into the charset of each position, last one changes fastest
+	private int[] digits;
+	private byte[] bytes;
+	private char[] chars;
+	// Plaintexts left in the block including the current one
+	private long remaining;
+	// The current plaintext hasn't been returned by next() yet
+	private boolean fresh;
+
+	public PlaintextCursor(String alphabet, int textLength, long blockNumber) {
+		this(Mask.uniform(alphabet, textLength), blockNumber);
+	}
+
+	public PlaintextCursor(Mask mask, long blockNumber) {
+		this.textLength = mask.getLength();
+		this.positionBytes = new byte[textLength][];
+		this.positionChars = new char[textLength][];
+		this.radix = new int[textLength];
+		for (int i = 0; i < textLength; i++) {
+			char[] charset = mask.getCharset(i).toCharArray();
+			positionChars[i] = charset;
+			positionBytes[i] = new byte[charset.length];
+			radix[i] = charset.length;
+			for (int j = 0; j < charset.length; j++) {
+				if (charset[j] > 0xff) {
+					throw new IllegalArgumentException("Alphabet has a multi byte character " + charset[j]);
+				}
+				positionBytes[i][j] = (byte) charset[j];
+			}
+		}
+		this.numberOfBlocks = PlaintextSpace.getNumberOfBlocks(mask);
+		this.lastBlockSize = PlaintextSpace.getNumberOfPlaintexts(mask)
+				.subtract(BigInteger.valueOf(numberOfBlocks - 1).multiply(BigInteger.valueOf(PlaintextSpace.BLOCK_SIZE)))
+				.longValue();
+		this.digits = new int[textLength];
+		this.bytes = new byte[textLength];
+		this.chars = new char[textLength];
+		seek(blockNumber, 0);
+	}
+
+	/*
+	 * Moves to a plaintext, this is the only place that divides
+	 */
+	public final void seek(long blockNumber, int blockIndex) {
+		long blockSize = 0;
+		if (blockNumber < numberOfBlocks - 1) {
+			blockSize = PlaintextSpace.BLOCK_SIZE;
+		} else if (blockNumber == numberOfBlocks - 1) {
+			blockSize = lastBlockSize;
+		}
+		remaining = Math.max(0, blockSize - blockIndex);
+		if (blockNumber > PlaintextSpace.MAX_LONG_BLOCK) {
+			// Past 2^63 plaintexts
+			UInt128 index = new UInt128().setIndex(blockNumber, PlaintextSpace.BLOCK_SIZE, blockIndex);
+			for (int i = textLength - 1; i >= 0; i--) {
+				setDigit(i, index.divide(radix[i]));
+			}
+		} else {
+			long index = blockNumber * PlaintextSpace.BLOCK_SIZE + blockIndex;
+			for (int i = textLength - 1; i >= 0; i--) {
+				int offset = (int) (index % radix[i]);
+				setDigit(i, offset);
+				index /= radix[i];
+			}
+		}
+		fresh = true;
+	}
+
+	private void setDigit(int position, int offset) {
+		digits[position] = offset;
+		bytes[position] = positionBytes[position][offset];
+		chars[position] = positionChars[position][offset];
+	}
+
+	/*
+	 * Adds one to the odometer, the carry only goes past the last position
+	 * once every radix plaintexts
+	 */
+	private void increment() {
+		int i = textLength - 1;
+		while (i >= 0) {
+			int offset = digits[i] + 1;
+			if (offset < radix[i]) {
+				setDigit(i, offset);
+				return;
+			}
+			setDigit(i, 0);
+			i--;
+		}
+	}
+
+	/*
+	 * Moves to the next plaintext, the first call gives the plaintext the
+	 * cursor was created or seeked at. Returns false at the end of the block
+	 */
+	public boolean next() {
+		if (remaining <= 0) {
+			return false;
+		}
+		if (fresh) {
+			fresh = false;
+			return true;
+		}
+		remaining--;
+		if (remaining <= 0) {
+			return false;
+		}
+		increment();
+		return true;
+	}
+
+	/*
+	 * Writes the next count plaintexts one after another into out starting
+	 * at offset, each textLength bytes long. Returns how many were written,
+	 * less than count at the end of the block
+	 */
+	public int fillNext(byte[] out, int offset, int count) {
+		int written = 0;
+		while (written < count && next()) {
+			System.arraycopy(bytes, 0, out, offset + written * textLength, textLength);
+			written++;
+		}
+		return written;
+	}
+
+	/*
+	 * The current plaintext, the array is reused for the next one
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public char[] getChars() {
+		return chars;
+	}
+
+	public int getTextLength() {
+		return textLength;
+	}
+
+	/*
+	 * Plaintexts left in the block counting the current one if next() hasn't
+	 * returned it yet
+	 */
+	public long getRemaining() {
+		return fresh ? remaining : Math.max(0, remaining - 1);
+	}
+}
@@ -1,5 +1,7 @@
 package rainbow.scheduler.partition;
 
+import java.math.BigInteger;
+
 /*
  * Methods to numerically index the plaintext space
  *
@@ -13,31 +15,57 @@ package rainbow.scheduler.partition;
  * A length represents the space that the block is in, i.e. length = 2 gives
  * aa,ab,ac,ad ...
  *
- * Warning: This class will not work if there are more than 2^63 plaintexts
- * since that will overflow a long i.e. upper-lower-alphanumeric length 11 is
- * enough to overflow
+ * Spaces with more than 2^63 plaintexts (i.e. upper-lower-alphanumeric
+ * length 11) index their plaintexts with 128 bit arithmetic in UInt128, the
+ * plain long arithmetic is kept as the fast path for smaller spaces. Block
+ * numbers are always longs, that is enough for 2^63 blocks of BLOCK_SIZE
+ *
+ * The alphabet can also differ per position, see Mask. The index is then a
+ * mixed radix number, the old spaces are just masks with the same alphabet
+ * in every position
  *
  *
- * TODO: -Implement an iterator, will probably speed up the iteration if we
- * reuse the same character array and only reqire an increment and a check
+ * To walk through a whole block use getCursor(), it reuses the same arrays
+ * and only needs an increment per plaintext
  *
- * -Check to make sure we haven't past a block Need to check both to make sure
- * blockIndex < BLOCK_SIZE and that if its the last block then we should check
- * that limit also
+ * TODO: -Check to make sure we haven't past a block Need to check both to make
+ * sure blockIndex < BLOCK_SIZE and that if its the last block then we should
+ * check that limit also
  */
 public class PlaintextSpace {
 
 	public static final int BLOCK_SIZE = 100000000; // 100 million
+	// Plaintexts in blocks up to this one can be indexed with a long
+	static final long MAX_LONG_BLOCK = Long.MAX_VALUE / BLOCK_SIZE - 1;
 
 	/*
 	 * Calculates the number of blocks given a alphabet and the length of the
 	 * plaintext
+	 *
+	 * Throws if there are more blocks than fit in a long
 	 */
 	public static long getNumberOfBlocks(String alphabet, int textLength) {
+		return getNumberOfBlocks(Mask.uniform(alphabet, textLength));
+	}
+
+	/*
+	 * Same for a mask, only the plaintexts that match the mask are counted
+	 */
+	public static long getNumberOfBlocks(Mask mask) {
 		long totalSize = 1;
-		int alphabetLength = alphabet.length();
-		for (int i = 0; i < textLength; i++) {
-			totalSize *= alphabetLength;
+		for (int i = 0; i < mask.getLength(); i++) {
+			int radix = mask.getRadix(i);
+			if (totalSize > Long.MAX_VALUE / radix) {
+				// Would overflow, only now pay for a BigInteger
+				BigInteger blocks = getNumberOfPlaintexts(mask)
+						.add(BigInteger.valueOf(BLOCK_SIZE - 1))
+						.divide(BigInteger.valueOf(BLOCK_SIZE));
+				if (blocks.bitLength() > 63) {
+					throw new RuntimeException("Error, too many blocks for mask " + mask);
+				}
+				return blocks.longValue();
+			}
+			totalSize *= radix;
 		}
 		// Not a very efficient way of doing it but it works
 		if (totalSize % BLOCK_SIZE == 0) {
@@ -46,26 +74,67 @@ public class PlaintextSpace {
 			return totalSize / BLOCK_SIZE + 1;
 		}
 	}
-	String alphabet;
-	int alphabetLength;
+
+	/*
+	 * Total number of plaintexts of a length, can be more than a long holds
+	 */
+	public static BigInteger getNumberOfPlaintexts(String alphabet, int textLength) {
+		return BigInteger.valueOf(alphabet.length()).pow(textLength);
+	}
+
+	public static BigInteger getNumberOfPlaintexts(Mask mask) {
+		BigInteger total = BigInteger.ONE;
+		for (int i = 0; i < mask.getLength(); i++) {
+			total = total.multiply(BigInteger.valueOf(mask.getRadix(i)));
+		}
+		return total;
+	}
+	/*
+	 * The block a plaintext is in, the reverse of getText. Returns -1 if the
+	 * plaintext doesn't match the mask
+	 *
+	 * Only used for the odd found plaintext so it doesn't bother with the
+	 * long fast path
+	 */
+	public static long getBlockNumber(Mask mask, String text) {
+		if (text.length() != mask.getLength()) {
+			return -1;
+		}
+		BigInteger index = BigInteger.ZERO;
+		for (int i = 0; i < text.length(); i++) {
+			int offset = mask.getCharset(i).indexOf(text.charAt(i));
+			if (offset < 0) {
+				return -1;
+			}
+			index = index.multiply(BigInteger.valueOf(mask.getRadix(i))).add(BigInteger.valueOf(offset));
+		}
+		return index.divide(BigInteger.valueOf(BLOCK_SIZE)).longValue();
+	}
+
+	public static long getBlockNumber(String alphabet, String text) {
+		return getBlockNumber(Mask.uniform(alphabet, text.length()), text);
+	}
+	Mask mask;
 	long blockNumber;
 	int textLength;
 
 	public PlaintextSpace(String alphabet, long blockNumber, int textLength) {
-		this.alphabet = alphabet;
-		this.alphabetLength = alphabet.length();
+		this(Mask.uniform(alphabet, textLength), blockNumber);
+	}
+
+	public PlaintextSpace(Mask mask, long blockNumber) {
+		this.mask = mask;
 		this.blockNumber = blockNumber;
-		this.textLength = textLength;
-		if (Math.pow(alphabetLength, textLength) > Math.pow(2, 63)) {
-			throw new RuntimeException("Error, too many plaintexts. Possible overflow error");
-		}
+		this.textLength = mask.getLength();
+		// Throws if the block numbers would overflow
+		getNumberOfBlocks(mask);
 	}
 	/*
 	 * Shortcut to the static function
 	 */
 
 	public long getNumberOfBlocks() {
-		return getNumberOfBlocks(alphabet, textLength);
+		return getNumberOfBlocks(mask);
 	}
 	/*
 	 * Gets a text value for a certain index, returns null if we have exceeded
@@ -78,17 +147,35 @@ public class PlaintextSpace {
 		 * Calculate the index of this text Make sure one value is casted to
 		 * long so we don't overflow int
 		 */
+		if (blockNumber > MAX_LONG_BLOCK) {
+			UInt128 wideIndex = new UInt128().setIndex(blockNumber, BLOCK_SIZE, blockIndex);
+			for (int i = textLength - 1; i >= 0; i--) {
+				int offset = wideIndex.divide(mask.getRadix(i));
+				characterValues[i] = mask.getCharset(i).charAt(offset);
+			}
+			if (!wideIndex.isZero()) {
+				return null;
+			}
+			return new String(characterValues);
+		}
 		long index = (long) blockNumber * BLOCK_SIZE + blockIndex;
-		for (int i = 0; i < textLength; i++) {
-			int offset = (int) (index % alphabetLength);
-			characterValues[textLength - 1 - i] = alphabet.charAt(offset);
-			index /= alphabetLength;
+		for (int i = textLength - 1; i >= 0; i--) {
+			int radix = mask.getRadix(i);
+			int offset = (int) (index % radix);
+			characterValues[i] = mask.getCharset(i).charAt(offset);
+			index /= radix;
 		}
 		if(index > 0){
 			return null;
 		}
 		return new String(characterValues);
 	}
+	/*
+	 * Cursor over the plaintexts of this block
+	 */
+	public PlaintextCursor getCursor() {
+		return new PlaintextCursor(mask, blockNumber);
+	}
 	/*
 	 * Some basic unit tests, should be moved elsewhere later
 	 */
@@ -128,6 +215,61 @@ public class PlaintextSpace {
 		if (getNumberOfBlocks(AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.LOWER_CASE), 5) != 1) {
 			throw new RuntimeException();
 		}
+		// The cursor should give the same plaintexts as getText
+		PlaintextCursor cursor = ps.getCursor();
+		for (int i = 0; i < 100000; i++) {
+			if (!cursor.next() || !new String(cursor.getChars()).equals(ps.getText(i))) {
+				throw new RuntimeException(String.format("Cursor gave %s and expected %s", new String(cursor.getChars()), ps.getText(i)));
+			}
+		}
+		// a-z length 3 is one short block
+		PlaintextSpace ps2 = new PlaintextSpace(AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.LOWER_CASE), 0, 3);
+		PlaintextCursor shortCursor = ps2.getCursor();
+		byte[] buffer = new byte[3 * 1000];
+		int count = 0;
+		int filled;
+		while ((filled = shortCursor.fillNext(buffer, 0, 1000)) > 0) {
+			count += filled;
+		}
+		if (count != 26 * 26 * 26 || !new String(shortCursor.getChars()).equals("zzz")) {
+			throw new RuntimeException(String.format("Cursor gave %s plaintexts ending with %s", count, new String(shortCursor.getChars())));
+		}
+		// 62^11 is more than 2^63 plaintexts
+		String wideAlphabet = AlphabetGenerator.generateAlphabet(
+				AlphabetGenerator.Types.UPPER_CASE,
+				AlphabetGenerator.Types.LOWER_CASE,
+				AlphabetGenerator.Types.NUMBERS);
+		long wideBlocks = getNumberOfBlocks(wideAlphabet, 11);
+		BigInteger widePlaintexts = getNumberOfPlaintexts(wideAlphabet, 11);
+		if (!BigInteger.valueOf(wideBlocks - 1).multiply(BigInteger.valueOf(BLOCK_SIZE)).add(BigInteger.ONE).max(widePlaintexts).equals(widePlaintexts)
+				|| !BigInteger.valueOf(wideBlocks).multiply(BigInteger.valueOf(BLOCK_SIZE)).max(widePlaintexts).equals(BigInteger.valueOf(wideBlocks).multiply(BigInteger.valueOf(BLOCK_SIZE)))) {
+			throw new RuntimeException(String.format("Got %s blocks for %s plaintexts", wideBlocks, widePlaintexts));
+		}
+		PlaintextSpace last = new PlaintextSpace(wideAlphabet, wideBlocks - 1, 11);
+		int lastIndex = widePlaintexts.mod(BigInteger.valueOf(BLOCK_SIZE)).intValue() - 1;
+		if (lastIndex < 0) {
+			lastIndex += BLOCK_SIZE;
+		}
+		if (!"99999999999".equals(last.getText(lastIndex)) || last.getText(lastIndex + 1) != null) {
+			throw new RuntimeException(String.format("Got %s for the last plaintext", last.getText(lastIndex)));
+		}
+		PlaintextCursor wideCursor = last.getCursor();
+		wideCursor.seek(wideBlocks - 1, lastIndex - 1000);
+		for (int i = lastIndex - 1000; i <= lastIndex; i++) {
+			if (!wideCursor.next() || !new String(wideCursor.getChars()).equals(last.getText(i))) {
+				throw new RuntimeException(String.format("Cursor gave %s and expected %s", new String(wideCursor.getChars()), last.getText(i)));
+			}
+		}
+		if (wideCursor.next()) {
+			throw new RuntimeException("Cursor went past the last plaintext");
+		}
+		// Back from a plaintext to its block
+		if (getBlockNumber(wideAlphabet, "99999999999") != wideBlocks - 1
+				|| getBlockNumber(ps1.mask, ps1.getText(12345)) != 32
+				|| getBlockNumber(ps.mask, "AAAAAAA") != 0
+				|| getBlockNumber(ps.mask, "AAAAAA!") != -1) {
+			throw new RuntimeException("Wrong block number for a plaintext");
+		}
 	}
 
 	public static void main(String[] s) {
@@ -0,0 +1,273 @@
+package rainbow.scheduler.partition;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/*
+ * A set of block numbers stored as sorted, non-overlapping, half-open
+ * intervals [start, end)
+ *
+ * Adjacent or overlapping intervals are merged as they are added so the memory
+ * used depends on how fragmented the set is rather than how many ranges were
+ * ever added, i.e. completing blocks 0-2, 2-4 and 4-6 leaves a single interval
+ * 0-6
+ *
+ * The intervals are kept as pairs of primitive longs (start, end) in a long[]
+ * on the heap, or in a direct LongBuffer outside of the heap so that very
+ * fragmented sets don't put pressure on the garbage collector. Inserting or
+ * removing in the middle moves the tail in place, only growing allocates
+ *
+ * All lookups are a binary search so they are O(log n) in the number of
+ * intervals
+ */
+public class RangeSet {
+
+	private static final int INITIAL_CAPACITY = 16;
+	// Exactly one of the two is used
+	private long[] heap;
+	private LongBuffer direct;
+	// Number of intervals, each interval takes two longs
+	private int size;
+
+	public RangeSet() {
+		this(false);
+	}
+
+	public RangeSet(boolean offHeap) {
+		if (offHeap) {
+			direct = allocateDirect(INITIAL_CAPACITY * 2);
+		} else {
+			heap = new long[INITIAL_CAPACITY * 2];
+		}
+		this.size = 0;
+	}
+
+	private static LongBuffer allocateDirect(int longs) {
+		return ByteBuffer.allocateDirect(longs * 8).asLongBuffer();
+	}
+
+	private long start(int i) {
+		return heap != null ? heap[i * 2] : direct.get(i * 2);
+	}
+
+	private long end(int i) {
+		return heap != null ? heap[i * 2 + 1] : direct.get(i * 2 + 1);
+	}
+
+	private void set(int i, long start, long end) {
+		if (heap != null) {
+			heap[i * 2] = start;
+			heap[i * 2 + 1] = end;
+		} else {
+			direct.put(i * 2, start);
+			direct.put(i * 2 + 1, end);
+		}
+	}
+
+	/*
+	 * Moves the intervals from index from onwards by shift places, grows the
+	 * storage if needed
+	 */
+	private void shift(int from, int shift) {
+		if (shift == 0) {
+			return;
+		}
+		int capacity = heap != null ? heap.length : direct.capacity();
+		if ((size + shift) * 2 > capacity) {
+			int grown = Math.max(capacity * 2, (size + shift) * 2);
+			if (heap != null) {
+				heap = Arrays.copyOf(heap, grown);
+			} else {
+				LongBuffer buffer = allocateDirect(grown);
+				direct.clear();
+				buffer.put(direct);
+				direct = buffer;
+			}
+		}
+		if (from < size) {
+			int length = (size - from) * 2;
+			if (heap != null) {
+				// arraycopy copies overlapping regions as if through a temporary
+				System.arraycopy(heap, from * 2, heap, (from + shift) * 2, length);
+			} else if (shift > 0) {
+				// Back to front so nothing is overwritten before it is moved
+				for (int i = length - 1; i >= 0; i--) {
+					direct.put((from + shift) * 2 + i, direct.get(from * 2 + i));
+				}
+			} else {
+				for (int i = 0; i < length; i++) {
+					direct.put((from + shift) * 2 + i, direct.get(from * 2 + i));
+				}
+			}
+		}
+		size += shift;
+	}
+
+	/*
+	 * Returns the index of the last interval with start <= value or -1 if
+	 * there is none
+	 */
+	private int floorIndex(long value) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (start(mid) <= value) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+
+	/*
+	 * Adds the range [start, end) merging with any intervals it touches
+	 */
+	public void add(long start, long end) {
+		if (start >= end) {
+			return;
+		}
+		// First interval that could merge is the one before start
+		int first = floorIndex(start);
+		if (first < 0 || end(first) < start) {
+			first++;
+		}
+		// Last interval that could merge is the last one starting at or before end
+		int last = floorIndex(end);
+		if (first > last) {
+			// Touches nothing, insert at first
+			shift(first, 1);
+			set(first, start, end);
+			return;
+		}
+		long newStart = Math.min(start, start(first));
+		long newEnd = Math.max(end, end(last));
+		set(first, newStart, newEnd);
+		// Remove the intervals that were merged into first
+		shift(last + 1, first - last);
+	}
+
+	/*
+	 * Removes the range [start, end) splitting intervals if needed
+	 */
+	public void remove(long start, long end) {
+		if (start >= end) {
+			return;
+		}
+		int first = floorIndex(start);
+		if (first < 0 || end(first) <= start) {
+			first++;
+		}
+		int last = floorIndex(end - 1);
+		if (first > last) {
+			return;
+		}
+		long headStart = start(first);
+		long tailEnd = end(last);
+		int keep = 0;
+		if (headStart < start) {
+			keep++;
+		}
+		if (tailEnd > end) {
+			keep++;
+		}
+		shift(last + 1, keep - (last - first + 1));
+		int i = first;
+		if (headStart < start) {
+			set(i++, headStart, start);
+		}
+		if (tailEnd > end) {
+			set(i, end, tailEnd);
+		}
+	}
+
+	public boolean contains(long value) {
+		int i = floorIndex(value);
+		return i >= 0 && end(i) > value;
+	}
+
+	/*
+	 * Returns true if any part of [start, end) is in the set
+	 */
+	public boolean intersects(long start, long end) {
+		if (start >= end) {
+			return false;
+		}
+		if (contains(start)) {
+			return true;
+		}
+		return nextStart(start) < end;
+	}
+
+	/*
+	 * If value is in the set returns the end of the interval containing it,
+	 * otherwise returns value
+	 */
+	public long skip(long value) {
+		int i = floorIndex(value);
+		if (i >= 0 && end(i) > value) {
+			return end(i);
+		}
+		return value;
+	}
+
+	/*
+	 * Returns the start of the first interval starting after value or
+	 * Long.MAX_VALUE if there is none
+	 */
+	public long nextStart(long value) {
+		int i = floorIndex(value) + 1;
+		if (i < size) {
+			return start(i);
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/*
+	 * Number of intervals, not the number of blocks
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/*
+	 * Total number of blocks covered by the set
+	 */
+	public long coveredLength() {
+		long total = 0;
+		for (int i = 0; i < size; i++) {
+			total += end(i) - start(i);
+		}
+		return total;
+	}
+
+	public long getStart(int index) {
+		return start(index);
+	}
+
+	public long getEnd(int index) {
+		return end(index);
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("RangeSet{");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append('[').append(start(i)).append(',').append(end(i)).append(')');
+		}
+		return builder.append('}').toString();
+	}
+}
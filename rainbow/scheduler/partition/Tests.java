@@ -1,6 +1,11 @@
 package rainbow.scheduler.partition;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * To change this template, choose Tools | Templates and open the template in
@@ -79,8 +84,530 @@ public class Tests {
 		}
 	}
 
-	public static void main(String[] s) {
+	/*
+	 * Checks that ranges are merged and split correctly
+	 */
+	public static void testRangeSet() {
+		System.out.println("Begin test3");
+		RangeSet set = new RangeSet(true);
+		set.add(0, 2);
+		set.add(4, 6);
+		set.add(2, 4);
+		if (set.size() != 1 || set.getStart(0) != 0 || set.getEnd(0) != 6) {
+			throw new RuntimeException("Ranges were not merged " + set);
+		}
+		set.remove(2, 3);
+		if (set.size() != 2 || set.contains(2) || !set.contains(3)) {
+			throw new RuntimeException("Range was not split " + set);
+		}
+		if (set.skip(0) != 2 || set.skip(2) != 2 || set.nextStart(2) != 3) {
+			throw new RuntimeException("Bad gap lookup " + set);
+		}
+		for (int i = 100; i > 10; i -= 2) {
+			set.add(i, i + 1);
+		}
+		set.add(10, 101);
+		if (set.size() != 3 || set.coveredLength() != 2 + 3 + 91) {
+			throw new RuntimeException("Bad merge of many ranges " + set);
+		}
+		System.out.println(set);
+	}
+
+	/*
+	 * Completes a whole space out of order, the completed ranges should
+	 * collapse into one interval per string length
+	 */
+	public static void testSweep() {
+		System.out.println("Begin test4");
+		PartitionManager p = new PartitionManager(AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.LOWER_CASE, AlphabetGenerator.Types.NUMBERS), 7);
+		ArrayList<Partition> outstanding = new ArrayList<Partition>();
+		long start = System.currentTimeMillis();
+		Partition b;
+		while ((b = p.requestPartition(3)) != null) {
+			outstanding.add(b);
+			if (outstanding.size() == 16) {
+				// Complete every other block first so the space is fragmented
+				for (int i = 0; i < outstanding.size(); i += 2) {
+					p.notifyComplete(outstanding.get(i));
+				}
+				for (int i = 1; i < outstanding.size(); i += 2) {
+					p.notifyComplete(outstanding.get(i));
+				}
+				outstanding.clear();
+			}
+		}
+		for (Partition partition : outstanding) {
+			p.notifyComplete(partition);
+		}
+		if (!p.getProcessing().isEmpty()) {
+			throw new RuntimeException("Blocks left in processing");
+		}
+		for (int i = 1; i <= 7; i++) {
+			if (p.getCompleted(i).size() != 1) {
+				throw new RuntimeException("Completed ranges were not merged " + p.getCompleted(i));
+			}
+		}
+		System.out.println(String.format("Sweep took %s ms", System.currentTimeMillis() - start));
+	}
+
+	/*
+	 * Completes blocks with a journal attached, a new partition manager
+	 * attached to the same journal should carry on from the same place
+	 */
+	public static void testJournal() throws IOException {
+		System.out.println("Begin test5");
+		String alphabet = AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.LOWER_CASE);
+		File file = File.createTempFile("partitions", ".journal");
+		file.delete();
+		// Small enough that the journal gets compacted a few times
+		PartitionJournal.DEFAULT_CAPACITY = 1024;
+		PartitionManager p = new PartitionManager(alphabet, 8);
+		p.attachJournal(new PartitionJournal(file));
+		for (int i = 0; i < 500; i++) {
+			Partition b = p.requestPartition(2);
+			if (i % 7 != 3) {
+				p.notifyComplete(b);
+			}
+		}
+		p.getJournal().close();
+		long start = System.currentTimeMillis();
+		PartitionManager restored = new PartitionManager(alphabet, 8);
+		restored.attachJournal(new PartitionJournal(file));
+		System.out.println(String.format("Replay took %s ms", System.currentTimeMillis() - start));
+		for (int i = 1; i <= 8; i++) {
+			if (!p.getCompleted(i).toString().equals(restored.getCompleted(i).toString())) {
+				throw new RuntimeException("Journal lost blocks " + restored.getCompleted(i));
+			}
+		}
+		// The first block handed out should be the first one that failed
+		Partition first = restored.requestPartition(2);
+		if (first.stringLength != 4 || first.startBlockNumber != 0) {
+			throw new RuntimeException("Restored sweep starts at the wrong place " + first);
+		}
+		restored.getJournal().delete();
+	}
+
+	/*
+	 * Runs a space dry and checks that the oldest blocks get duplicated and
+	 * that the second copy to finish is ignored
+	 */
+	public static void testEndgame() {
+		System.out.println("Begin test6");
+		PartitionManager p = new PartitionManager(AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.LOWER_CASE), 3);
+		Partition[] b = new Partition[3];
+		for (int i = 0; i < 3; i++) {
+			b[i] = p.requestPartition(10);
+		}
+		if (p.requestPartition(10) != null) {
+			throw new RuntimeException("Space should be exhausted");
+		}
+		ArrayList<Partition> mine = new ArrayList<Partition>();
+		mine.add(b[0]);
+		Partition duplicate = p.requestDuplicate(mine, 2);
+		if (duplicate != b[1] || duplicate.getCopies() != 2) {
+			throw new RuntimeException("Should duplicate the oldest block not already held " + duplicate);
+		}
+		// The original owner disconnects, the copy keeps the block out of the pool
+		p.notifyFailure(b[1]);
+		if (p.requestPartition(10) != null) {
+			throw new RuntimeException("Block with a running copy was put back");
+		}
+		p.notifyComplete(duplicate);
+		p.notifyComplete(b[0]);
+		p.notifyComplete(b[2]);
+		// Late duplicate report
+		p.notifyComplete(b[1]);
+		if (!p.isComplete()) {
+			throw new RuntimeException("Space should be complete");
+		}
+	}
+
+	/*
+	 * A mask only sweeps the plaintexts that match it, each exactly once
+	 */
+	public static void testMask() {
+		System.out.println("Begin test7");
+		Mask mask = Mask.parse("?d?1?u", "ab?d");
+		if (PlaintextSpace.getNumberOfPlaintexts(mask).intValue() != 10 * 12 * 26) {
+			throw new RuntimeException("Wrong size for mask " + mask);
+		}
+		PlaintextSpace space = new PlaintextSpace(mask, 0);
+		PlaintextCursor cursor = space.getCursor();
+		HashSet<String> seen = new HashSet<String>();
+		for (int i = 0; i < 10 * 12 * 26; i++) {
+			String text = space.getText(i);
+			if (!text.matches("[0-9][ab0-9][A-Z]") || !seen.add(text)) {
+				throw new RuntimeException("Bad or repeated plaintext " + text);
+			}
+			if (!cursor.next() || !new String(cursor.getChars()).equals(text)) {
+				throw new RuntimeException("Cursor gave " + new String(cursor.getChars()) + " and expected " + text);
+			}
+		}
+		if (space.getText(10 * 12 * 26) != null || cursor.next()) {
+			throw new RuntimeException("Went past the end of the mask");
+		}
+		// A policy is much smaller than the widest charset to the power of its length
+		Mask policy = Mask.parse("?u?l?l?l?l?l?d?d?s");
+		String all = AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.values());
+		if (PlaintextSpace.getNumberOfBlocks(policy) * 1000 > PlaintextSpace.getNumberOfBlocks(all, 9)) {
+			throw new RuntimeException("Mask should be a fraction of the full space");
+		}
+		PartitionManager p = new PartitionManager(policy);
+		Partition first = p.requestPartition(10);
+		if (first.stringLength != 9 || first.startBlockNumber != 0 || p.getMask(9) != policy) {
+			throw new RuntimeException("Mask should start at its own length " + first);
+		}
+		long blocks = first.getNumberOfBlocks();
+		Partition next;
+		while ((next = p.requestPartition(1000000)) != null) {
+			blocks += next.getNumberOfBlocks();
+		}
+		if (blocks != PlaintextSpace.getNumberOfBlocks(policy)) {
+			throw new RuntimeException("Handed out " + blocks + " blocks");
+		}
+	}
+
+	/*
+	 * Probability order hands out the likely blocks first but still every
+	 * block exactly once
+	 */
+	public static void testProbabilityOrder() {
+		System.out.println("Begin test8");
+		CharacterModel model = new CharacterModel();
+		String[] corpus = {"password", "sunshine", "princess", "starwars", "qwertyui", "football", "superman", "sandwich", "pass"};
+		for (String word : corpus) {
+			model.add(word);
+		}
+		Mask mask = model.order(Mask.uniform(AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.LOWER_CASE), 8));
+		if (mask.getCharset(0).charAt(0) != 's' || mask.getCharset(1).charAt(0) != 'a') {
+			throw new RuntimeException("Charsets not ordered by the corpus " + mask.getCharset(0) + " " + mask.getCharset(1));
+		}
+		PartitionManager p = new PartitionManager(mask, true, false);
+		p.orderBy(model);
+		long total = 0;
+		for (int i = 1; i <= 8; i++) {
+			total += p.getNumberOfBlocks(i);
+		}
+		// The short lengths are a block each so they come first, then the
+		// long ranges with the likely prefixes
+		Partition firstLong = null;
+		long handedOut = 0;
+		Partition next;
+		while ((next = p.requestPartition(1)) != null) {
+			if (firstLong == null && next.stringLength == 8) {
+				firstLong = next;
+			}
+			handedOut += next.getNumberOfBlocks();
+			p.notifyComplete(next);
+		}
+		if (handedOut != total || !p.isComplete()) {
+			throw new RuntimeException("Handed out " + handedOut + " of " + total + " blocks");
+		}
+		// The block at the start of a range can be shared with the range before
+		String firstText = new PlaintextSpace(mask, firstLong.startBlockNumber).getText(PlaintextSpace.BLOCK_SIZE - 1);
+		if (!firstText.startsWith("sa")) {
+			throw new RuntimeException("Should start with the likely prefix, got " + firstLong + " " + firstText);
+		}
+	}
+
+	/*
+	 * Every length fits in a long but two of them together don't, the total
+	 * stops at the largest long instead of going negative
+	 */
+	public static void testTotalBlocks() {
+		System.out.println("Begin test9");
+		String[] charsets = new String[28];
+		for (int i = 0; i < 26; i++) {
+			charsets[i] = "0123456789";
+		}
+		charsets[26] = "0123";
+		charsets[27] = "01";
+		PartitionManager p = new PartitionManager(new Mask(charsets), true, false);
+		if (p.getNumberOfBlocks(28) < 0 || p.getNumberOfBlocks(27) < 0) {
+			throw new RuntimeException("A single length should fit in a long");
+		}
+		if (p.getTotalBlocks() != Long.MAX_VALUE) {
+			throw new RuntimeException("Expected the total to be clamped, got " + p.getTotalBlocks());
+		}
+		p.notifyComplete(new Partition(28, 0, 10));
+		if (p.getCoveredBlocks() != 10) {
+			throw new RuntimeException("Expected 10 covered blocks, got " + p.getCoveredBlocks());
+		}
+	}
+
+	/*
+	 * Several threads requesting, failing and completing at once still cover
+	 * every block exactly once, cached blocks are skipped and a released
+	 * cache is swept after all
+	 */
+	public static void testConcurrentRequests() {
+		System.out.println("Begin test10");
+		final PartitionManager p = new PartitionManager(AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.LOWER_CASE, AlphabetGenerator.Types.NUMBERS), 7);
+		Partition cache = p.requestCache(300);
+		p.notifyCache(cache);
+		Partition released = p.requestCache(200);
+		p.notifyCache(released);
+		final long[][] counts = new long[8][];
+		for (int i = 1; i <= 7; i++) {
+			counts[i] = new long[(int) p.getNumberOfBlocks(i)];
+		}
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+
+				@Override
+				public void run() {
+					java.util.Random random = new java.util.Random(seed);
+					Partition b;
+					while ((b = p.requestPartition(1 + random.nextInt(5))) != null) {
+						if (random.nextInt(10) == 0) {
+							p.notifyFailure(b);
+							failures.incrementAndGet();
+							continue;
+						}
+						synchronized (counts) {
+							for (long i = b.startBlockNumber; i < b.endBlockNumber; i++) {
+								counts[b.stringLength][(int) i]++;
+							}
+						}
+						p.notifyComplete(b);
+					}
+				}
+			};
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		p.releaseCache(released);
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		for (int i = 1; i <= 7; i++) {
+			for (int j = 0; j < counts[i].length; j++) {
+				boolean isCached = i == cache.stringLength && j >= cache.startBlockNumber && j < cache.endBlockNumber;
+				if (counts[i][j] != (isCached ? 0 : 1)) {
+					throw new RuntimeException("Block " + j + " of length " + i + " was completed " + counts[i][j] + " times");
+				}
+			}
+		}
+		if (!p.isComplete() || failures.get() == 0) {
+			throw new RuntimeException("Space should be complete");
+		}
+	}
+
+	/*
+	 * A block reported after it failed and went back on the free list or to
+	 * someone else still counts, and a report outside the space is ignored
+	 */
+	public static void testLateComplete() {
+		System.out.println("Begin test11");
+		PartitionManager p = new PartitionManager(AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.LOWER_CASE, AlphabetGenerator.Types.NUMBERS), 7);
+		Partition first;
+		while ((first = p.requestPartition(100)).getNumberOfBlocks() < 100) {
+			p.notifyComplete(first);
+		}
+		Partition second = p.requestPartition(100);
+		// Both leases run out, the first goes to someone else
+		p.notifyFailure(first);
+		p.notifyFailure(second);
+		Partition again = p.requestPartition(100);
+		if (!again.equals(first)) {
+			throw new RuntimeException("Expected the failed block again, got " + again);
+		}
+		// The original owners report late
+		if (!p.notifyComplete(first.clone()) || !p.notifyComplete(second.clone())) {
+			throw new RuntimeException("Late reports should be accepted");
+		}
+		if (p.getProcessing().contains(again)) {
+			throw new RuntimeException("The reissued block was completed by the late report");
+		}
+		// Its new owner finishes as well
+		if (!p.notifyComplete(again)) {
+			throw new RuntimeException("A block completed twice should be accepted");
+		}
+		if (p.notifyComplete(new Partition(7, p.getNumberOfBlocks(7), p.getNumberOfBlocks(7) + 10))
+				|| p.notifyComplete(new Partition(8, 0, 10))) {
+			throw new RuntimeException("Reports outside the space should be ignored");
+		}
+		Partition next;
+		while ((next = p.requestPartition(100000)) != null) {
+			if (next.stringLength == second.stringLength && next.startBlockNumber < second.endBlockNumber
+					&& next.endBlockNumber > second.startBlockNumber) {
+				throw new RuntimeException("Handed out a block reported late " + next);
+			}
+			p.notifyComplete(next);
+		}
+		if (!p.isComplete()) {
+			throw new RuntimeException("The sweep should be complete");
+		}
+	}
+
+	/*
+	 * Partitions come out of a batch the way they went in, including ones
+	 * that go backwards and ones with huge block numbers
+	 */
+	public static void testCodec() {
+		System.out.println("Begin test12");
+		List<Partition> partitions = new ArrayList<Partition>();
+		partitions.add(new Partition(3, 0, 100));
+		partitions.add(new Partition(3, 100, 200));
+		partitions.add(new Partition(5, 7, 8));
+		partitions.add(new Partition(4, 5000, 90000));
+		partitions.add(new Partition(12, Long.MAX_VALUE / 4, Long.MAX_VALUE / 2));
+		partitions.add(new Partition(1, 0, 1));
+		List<Partition> decoded = PartitionCodec.decode(PartitionCodec.encode(partitions));
+		if (decoded.size() != partitions.size()) {
+			throw new RuntimeException("Decoded " + decoded.size() + " partitions, expected " + partitions.size());
+		}
+		for (int i = 0; i < partitions.size(); i++) {
+			Partition expected = partitions.get(i);
+			Partition actual = decoded.get(i);
+			if (expected.stringLength != actual.stringLength || expected.startBlockNumber != actual.startBlockNumber
+					|| expected.endBlockNumber != actual.endBlockNumber) {
+				throw new RuntimeException("Partition " + i + " decoded as " + actual + ", expected " + expected);
+			}
+		}
+		// Partitions that follow on from each other take 3 bytes
+		List<Partition> consecutive = new ArrayList<Partition>();
+		for (int i = 0; i < 100; i++) {
+			consecutive.add(new Partition(6, i * 50, i * 50 + 50));
+		}
+		if (PartitionCodec.encode(consecutive).length != 300) {
+			throw new RuntimeException("Consecutive partitions should take 3 bytes each");
+		}
+	}
+
+	/*
+	 * A partition split while it is being processed stays findable, its two
+	 * halves complete and fail on their own and the sweep still covers every
+	 * block once
+	 */
+	public static void testSplit() {
+		System.out.println("Begin test13");
+		PartitionManager p = new PartitionManager(AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.LOWER_CASE, AlphabetGenerator.Types.NUMBERS), 8);
+		// The short string lengths don't have 1000 blocks
+		long done = 0;
+		Partition big;
+		while ((big = p.requestPartition(1000)).getNumberOfBlocks() < 1000) {
+			done += big.getNumberOfBlocks();
+			p.notifyComplete(big);
+		}
+		Partition other = p.requestPartition(10);
+		if (p.findSplit(new ArrayList<Partition>(), 1) != null) {
+			throw new RuntimeException("Partitions without an owner should not be split");
+		}
+		big.setOwner("owner");
+		other.setOwner("owner");
+		List<Partition> exclude = new ArrayList<Partition>();
+		if (p.findSplit(exclude, 1) != big) {
+			throw new RuntimeException("Should split the biggest partition");
+		}
+		long end = big.endBlockNumber;
+		Partition whole = big;
+		Partition tail = p.split(whole, 1);
+		big = whole.getReplacement();
+		if (whole.endBlockNumber != end) {
+			throw new RuntimeException("The split partition should not change " + whole);
+		}
+		if (big.startBlockNumber != whole.startBlockNumber || tail.startBlockNumber != big.endBlockNumber
+				|| tail.endBlockNumber != end || big.getNumberOfBlocks() != tail.getNumberOfBlocks()) {
+			throw new RuntimeException("Bad split " + big + " " + tail);
+		}
+		if (!p.getProcessing().contains(big) || !p.getProcessing().contains(tail)) {
+			throw new RuntimeException("Both halves should be processing");
+		}
+		exclude.add(tail);
+		exclude.add(other);
+		if (p.findSplit(exclude, 1) != big) {
+			throw new RuntimeException("The first half can be split again");
+		}
+		// Too small to split into halves of this size
+		if (p.split(other, 10) != null) {
+			throw new RuntimeException("Split a partition that is too small");
+		}
+		p.notifyComplete(tail);
+		// The owner only knows the partition it was given
+		p.notifyFailure(whole);
+		p.notifyComplete(other);
+		if (p.split(big, 1) != null) {
+			throw new RuntimeException("Split a partition that is no longer processing");
+		}
+		// The failed first half is handed out again and nothing else twice
+		Partition next;
+		long handedOut = done + tail.getNumberOfBlocks() + other.getNumberOfBlocks();
+		while ((next = p.requestPartition(1000)) != null) {
+			handedOut += next.getNumberOfBlocks();
+			p.notifyComplete(next);
+		}
+		if (handedOut != p.getTotalBlocks() || !p.isComplete()) {
+			throw new RuntimeException("Handed out " + handedOut + " of " + p.getTotalBlocks() + " blocks after a split");
+		}
+	}
+
+	/*
+	 * Caching a range in the middle of a string length only gives the part
+	 * that isn't cached or caching yet
+	 */
+	public static void testRequestCacheRange() {
+		System.out.println("Begin test14");
+		PartitionManager p = new PartitionManager(AlphabetGenerator.generateAlphabet(AlphabetGenerator.Types.LOWER_CASE, AlphabetGenerator.Types.NUMBERS), 8);
+		Partition first = p.requestCache(7, 100, 200);
+		if (first.stringLength != 7 || first.startBlockNumber != 100 || first.endBlockNumber != 200) {
+			throw new RuntimeException("Expected blocks 100 to 200, got " + first);
+		}
+		p.notifyCache(first);
+		Partition second = p.requestCache(7, 50, 300);
+		if (second.startBlockNumber != 50 || second.endBlockNumber != 100) {
+			throw new RuntimeException("Expected blocks 50 to 100, got " + second);
+		}
+		Partition third = p.requestCache(7, 50, 300);
+		if (third.startBlockNumber != 200 || third.endBlockNumber != 300) {
+			throw new RuntimeException("Expected blocks 200 to 300, got " + third);
+		}
+		if (p.requestCache(7, 60, 250) != null) {
+			throw new RuntimeException("Everything in there is cached or caching");
+		}
+		// Clipped to the end of the string length
+		long blocks = p.getNumberOfBlocks(7);
+		Partition last = p.requestCache(7, blocks - 10, blocks + 1000);
+		if (last.endBlockNumber != blocks) {
+			throw new RuntimeException("Went past the last block " + last);
+		}
+		// Released ranges can be cached again
+		p.releaseCache(second);
+		if (p.requestCache(7, 0, 300).startBlockNumber != 0) {
+			throw new RuntimeException("The start should be free");
+		}
+		// The cached range is not brute forced
+		Partition next;
+		while ((next = p.requestPartition(100000)) != null) {
+			if (next.stringLength == 7 && next.startBlockNumber < 200 && next.endBlockNumber > 100) {
+				throw new RuntimeException("Handed out cached blocks " + next);
+			}
+			p.notifyComplete(next);
+		}
+	}
+
+	public static void main(String[] s) throws IOException {
 		//testRequestPartition();		
 		testRequestCache();
+		testRangeSet();
+		testSweep();
+		testJournal();
+		testEndgame();
+		testMask();
+		testProbabilityOrder();
+		testTotalBlocks();
+		testConcurrentRequests();
+		testLateComplete();
+		testCodec();
+		testSplit();
+		testRequestCacheRange();
 	}
 }
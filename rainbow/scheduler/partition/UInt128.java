@@ -0,0 +1,97 @@
+package rainbow.scheduler.partition;
+
+import java.math.BigInteger;
+
+/*
+ * Unsigned 128 bit integer kept in two longs, used to index plaintexts once
+ * there are more than 2^63 of them
+ *
+ * Only has the operations the plaintext space needs, multiplying by and
+ * dividing by numbers that fit in an int, so it never has to allocate.
+ * BigInteger is only used to convert at the edges
+ */
+final class UInt128 {
+
+	private static final long MASK_32 = 0xffffffffL;
+	long hi;
+	long lo;
+
+	UInt128() {
+	}
+
+	UInt128(long hi, long lo) {
+		this.hi = hi;
+		this.lo = lo;
+	}
+
+	/*
+	 * Sets this to blockNumber * blockSize + blockIndex
+	 */
+	UInt128 setIndex(long blockNumber, int blockSize, long blockIndex) {
+		hi = 0;
+		lo = blockNumber;
+		multiply(blockSize);
+		add(blockIndex);
+		return this;
+	}
+
+	void multiply(int factor) {
+		long m = factor & MASK_32;
+		long p0 = (lo & MASK_32) * m;
+		long p1 = (lo >>> 32) * m + (p0 >>> 32);
+		long p2 = (hi & MASK_32) * m + (p1 >>> 32);
+		long p3 = (hi >>> 32) * m + (p2 >>> 32);
+		lo = (p1 << 32) | (p0 & MASK_32);
+		hi = (p3 << 32) | (p2 & MASK_32);
+	}
+
+	void add(long value) {
+		long sum = lo + value;
+		// Unsigned overflow of the low half carries into the high half
+		if ((sum ^ Long.MIN_VALUE) < (lo ^ Long.MIN_VALUE)) {
+			hi++;
+		}
+		lo = sum;
+	}
+
+	/*
+	 * Divides this by divisor in place and returns the remainder, divisor
+	 * must be positive
+	 */
+	int divide(int divisor) {
+		long d = divisor;
+		long remainder = 0;
+		long limb;
+		limb = (remainder << 32) | (hi >>> 32);
+		long q3 = limb / d;
+		remainder = limb % d;
+		limb = (remainder << 32) | (hi & MASK_32);
+		long q2 = limb / d;
+		remainder = limb % d;
+		limb = (remainder << 32) | (lo >>> 32);
+		long q1 = limb / d;
+		remainder = limb % d;
+		limb = (remainder << 32) | (lo & MASK_32);
+		long q0 = limb / d;
+		remainder = limb % d;
+		hi = (q3 << 32) | q2;
+		lo = (q1 << 32) | q0;
+		return (int) remainder;
+	}
+
+	boolean isZero() {
+		return hi == 0 && lo == 0;
+	}
+
+	BigInteger toBigInteger() {
+		return BigInteger.valueOf(hi >>> 32).shiftLeft(32).or(BigInteger.valueOf(hi & MASK_32))
+				.shiftLeft(64)
+				.or(BigInteger.valueOf(lo >>> 32).shiftLeft(32))
+				.or(BigInteger.valueOf(lo & MASK_32));
+	}
+
+	@Override
+	public String toString() {
+		return toBigInteger().toString();
+	}
+}
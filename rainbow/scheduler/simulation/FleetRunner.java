@@ -0,0 +1,117 @@
+package rainbow.scheduler.simulation;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import rainbow.scheduler.application.HashAlgorithm;
+import rainbow.scheduler.application.LoopbackTransport;
+import rainbow.scheduler.application.SchedulerMetrics;
+import rainbow.scheduler.application.SchedulerServer;
+import rainbow.scheduler.application.TargetSet;
+import rainbow.scheduler.partition.Mask;
+
+/**
+ *
+ * Runs a real scheduler against a synthetic fleet and prints how it keeps up
+ * every second
+ *
+ * Arguments are key=value, any public field of SyntheticFleet plus
+ * seconds (how long to run), partitionSeconds (SchedulerServer
+ * TARGET_PARTITION_SECONDS), mask (the keyspace of the query) and algorithm
+ * (its hash method), i.e.
+ * controllers=5000 latencyMillis=50 hangProbability=0.01 timeScale=10
+ *
+ * The query is for the digest of "", which is outside every mask so it
+ * never finishes early
+ */
+public class FleetRunner {
+
+	public static void main(String[] args) throws Exception {
+		LoopbackTransport transport = new LoopbackTransport();
+		SyntheticFleet fleet = new SyntheticFleet(transport);
+		int seconds = 60;
+		String mask = "?a?a?a?a?a?a?a?a?a";
+		HashAlgorithm algorithm = HashAlgorithm.MD5;
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (split < 0) {
+				throw new RuntimeException("Error, expected key=value and got " + arg);
+			}
+			String key = arg.substring(0, split);
+			String value = arg.substring(split + 1);
+			if (key.equals("seconds")) {
+				seconds = Integer.parseInt(value);
+			} else if (key.equals("partitionSeconds")) {
+				SchedulerServer.TARGET_PARTITION_SECONDS = Integer.parseInt(value);
+			} else if (key.equals("mask")) {
+				mask = value;
+			} else if (key.equals("algorithm")) {
+				algorithm = HashAlgorithm.forName(value);
+				if (algorithm.digest("") == null) {
+					throw new RuntimeException("Error, can't make a digest for " + algorithm);
+				}
+			} else {
+				set(fleet, key, value);
+			}
+		}
+		// Don't recover or keep the real scheduler's queries
+		File state = File.createTempFile("fleet-state", "");
+		state.delete();
+		state.mkdir();
+		System.setProperty("rainbow.scheduler.state", state.getPath());
+
+		SchedulerServer server = new SchedulerServer(transport);
+		server.start();
+		fleet.start();
+		server.newQuery(Collections.singletonList(TargetSet.toHex(algorithm.digest(""))), Mask.parse(mask), algorithm);
+
+		SchedulerMetrics metrics = server.getMetrics();
+		long lastHandled = 0;
+		long lastCompleted = 0;
+		System.out.println("second\tmsgs/s\tparts/s\tdepth\twaitP50\twaitP99\thandleP50\thandleP99\thandleMax\tctrls\thung\texpired");
+		for (int second = 1; second <= seconds; second++) {
+			Thread.sleep(1000);
+			long handled = metrics.getMessagesHandled();
+			long completed = metrics.getPartitionsCompleted();
+			System.out.println(second
+					+ "\t" + (handled - lastHandled)
+					+ "\t" + (completed - lastCompleted)
+					+ "\t" + server.getInboundQueueDepth()
+					+ "\t" + metrics.getQueueWaitMicrosP50()
+					+ "\t" + metrics.getQueueWaitMicrosP99()
+					+ "\t" + metrics.getHandleMicrosP50()
+					+ "\t" + metrics.getHandleMicrosP99()
+					+ "\t" + metrics.getHandleMicrosMax()
+					+ "\t" + metrics.getControllers()
+					+ "\t" + metrics.getHungControllers()
+					+ "\t" + metrics.getLeasesExpired());
+			metrics.resetHistograms();
+			lastHandled = handled;
+			lastCompleted = completed;
+		}
+		fleet.stop();
+		for (File file : state.listFiles()) {
+			file.delete();
+		}
+		state.delete();
+		System.exit(0);
+	}
+
+	private static void set(SyntheticFleet fleet, String key, String value) throws Exception {
+		Field field;
+		try {
+			field = SyntheticFleet.class.getField(key);
+		} catch (NoSuchFieldException e) {
+			throw new RuntimeException("Error, unknown setting " + key);
+		}
+		if (field.getType() == int.class) {
+			field.setInt(fleet, Integer.parseInt(value));
+		} else if (field.getType() == long.class) {
+			field.setLong(fleet, Long.parseLong(value));
+		} else if (field.getType() == boolean.class) {
+			field.setBoolean(fleet, Boolean.parseBoolean(value));
+		} else {
+			field.setDouble(fleet, Double.parseDouble(value));
+		}
+	}
+}
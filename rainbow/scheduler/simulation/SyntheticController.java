@@ -0,0 +1,205 @@
+package rainbow.scheduler.simulation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import rainbow.scheduler.application.Assignment;
+import rainbow.scheduler.application.Controller;
+import rainbow.scheduler.application.HashQuery;
+import rainbow.scheduler.application.message.LocalControllerDisconnect;
+import rainbow.scheduler.application.message.LocalWorkBlockBatchComplete;
+import rainbow.scheduler.application.message.LocalWorkBlockComplete;
+import rainbow.scheduler.partition.Partition;
+import rainbowpc.Message;
+
+/**
+ *
+ * A pretend controller that doesn't hash anything, it reports each partition
+ * complete after the time its hash rate says it would take
+ *
+ * Partitions are worked on one after another like a real controller, each
+ * one takes its work / hashRate (MD5 hashes per second, see HashAlgorithm)
+ * plus the network latency both ways, give or take the fleet's jitter. After
+ * a partition it may disconnect or hang (stop reporting for a while) with the
+ * fleet's probabilities. If the fleet takes batches the partitions done are
+ * held until nothing else is due and then reported together
+ *
+ * assignPartition runs on the scheduler thread, the reports are delivered
+ * from the fleet's clock thread through the loopback transport and never
+ * touch the Controller's state
+ */
+public class SyntheticController extends Controller {
+
+	private SyntheticFleet fleet;
+	private double hashRate;
+	// Only used on the scheduler thread
+	private Random random;
+	// When the controller gets through what it has been given, nanoTime
+	private long busyUntil = 0;
+	// Reports due before this are dropped
+	private volatile long hungUntil = 0;
+	private volatile boolean disconnected = false;
+	private Set<Integer> stopped = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	// Reports that haven't gone out yet, so a split partition is reported
+	// with its new end
+	private ConcurrentHashMap<Assignment, Report> reports = new ConcurrentHashMap<Assignment, Report>();
+	// Blocks done and not reported yet when batching, keyed by queryID. Only
+	// used on the clock thread
+	private Map<Integer, List<Partition>> done = new HashMap<Integer, List<Partition>>();
+
+	public SyntheticController(SyntheticFleet fleet, double hashRate, Random random) {
+		super(null);
+		this.fleet = fleet;
+		this.hashRate = hashRate;
+		this.random = random;
+		setBatching(fleet.batches);
+	}
+
+	@Override
+	protected void send(Message message) {
+	}
+
+	@Override
+	public boolean supportsMasks() {
+		return true;
+	}
+
+	@Override
+	public boolean supportsMultiTarget() {
+		return true;
+	}
+
+	@Override
+	public void synchronize() {
+	}
+
+	@Override
+	public boolean supportsSplits() {
+		return true;
+	}
+
+	/*
+	 * The report goes out at the same time with the shorter range, the time
+	 * the rest would have taken isn't given back
+	 */
+	@Override
+	public void shrinkAssignment(Assignment assignment) {
+		Report report = reports.get(assignment);
+		if (report != null) {
+			report.end = assignment.getPartition().endBlockNumber;
+		}
+	}
+
+	@Override
+	public Assignment assignPartition(Partition p, HashQuery query) throws IOException {
+		Assignment assignment = super.assignPartition(p, query);
+		if (disconnected) {
+			return assignment;
+		}
+		long now = System.nanoTime();
+		long latency = fleet.scale(jitter(fleet.latencyMillis) * 1000000);
+		long work = fleet.scale(jitter(query.getAlgorithm().getWork(p.getNumberOfBlocks()) / hashRate * 1e9));
+		long started = Math.max(now + latency, busyUntil);
+		busyUntil = started + work;
+		long reported = busyUntil + latency;
+		// What happens after this partition is decided now so the random
+		// numbers stay on one thread
+		boolean disconnect = random.nextDouble() < fleet.disconnectProbability;
+		boolean hang = !disconnect && random.nextDouble() < fleet.hangProbability;
+		Report report = new Report(assignment, disconnect, hang);
+		reports.put(assignment, report);
+		schedule(report, reported - now);
+		return assignment;
+	}
+
+	@Override
+	public List<Assignment> stopQuery(HashQuery query) throws IOException {
+		stopped.add(query.getQueryID());
+		return super.stopQuery(query);
+	}
+
+	private double jitter(double value) {
+		return value * (1 + fleet.jitter * (2 * random.nextDouble() - 1));
+	}
+
+	private void schedule(Runnable task, long delayNanos) {
+		fleet.getClock().schedule(task, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+	}
+
+	/*
+	 * Reports a partition back to the scheduler, runs on the clock thread
+	 */
+	private class Report implements Runnable {
+
+		private Assignment assignment;
+		private int queryID;
+		private Partition partition;
+		private volatile long end;
+		private boolean disconnect;
+		private boolean hang;
+
+		Report(Assignment assignment, boolean disconnect, boolean hang) {
+			this.assignment = assignment;
+			this.queryID = assignment.getQuery().getQueryID();
+			this.partition = assignment.getPartition().clone();
+			this.end = partition.endBlockNumber;
+			this.disconnect = disconnect;
+			this.hang = hang;
+		}
+
+		@Override
+		public void run() {
+			reports.remove(assignment);
+			long now = System.nanoTime();
+			if (disconnected || now < hungUntil || stopped.contains(queryID)) {
+				return;
+			}
+			if (disconnect) {
+				disconnected = true;
+				fleet.deliver(new LocalControllerDisconnect(SyntheticController.this));
+				fleet.replace(SyntheticController.this);
+				return;
+			}
+			if (hang) {
+				// Everything due while hung is lost, the leases take it back
+				hungUntil = now + fleet.scale(fleet.hangMillis * 1000000.0);
+				return;
+			}
+			if (!supportsBatches()) {
+				fleet.deliver(new LocalWorkBlockComplete(SyntheticController.this, queryID,
+						partition.stringLength, partition.startBlockNumber, end));
+				return;
+			}
+			List<Partition> blocks = done.get(queryID);
+			if (blocks == null) {
+				blocks = new ArrayList<Partition>();
+				done.put(queryID, blocks);
+			}
+			blocks.add(new Partition(partition.stringLength, partition.startBlockNumber, end));
+			if (reports.isEmpty()) {
+				reportDone();
+			}
+		}
+	}
+
+	/*
+	 * Reports the blocks held back, one message per query
+	 */
+	private void reportDone() {
+		for (Map.Entry<Integer, List<Partition>> entry : done.entrySet()) {
+			fleet.deliver(new LocalWorkBlockBatchComplete(this, entry.getKey(), entry.getValue()));
+		}
+		done.clear();
+	}
+
+	public double getHashRate() {
+		return hashRate;
+	}
+}
@@ -0,0 +1,114 @@
+package rainbow.scheduler.simulation;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import rainbow.scheduler.application.LoopbackTransport;
+import rainbow.scheduler.application.message.LocalControllerMessage;
+import rainbowpc.Message;
+
+/**
+ *
+ * A set of synthetic controllers connected to a scheduler through a loopback
+ * transport, to see how the scheduler holds up with thousands of controllers
+ * without a cluster
+ *
+ * Set the fields then call start(). Times are real milliseconds divided by
+ * timeScale, so timeScale 10 runs a 30 second partition in 3
+ */
+public class SyntheticFleet {
+
+	public int controllers = 1000;
+	// Hashes per second of an average controller
+	public double hashRate = 1e9;
+	// Controllers are spread evenly between hashRate * (1 +- rateSpread)
+	public double rateSpread = 0.5;
+	// One way, scheduler to controller
+	public double latencyMillis = 20;
+	// Every time is off by up to this fraction
+	public double jitter = 0.1;
+	// Chance per partition of the controller disconnecting after it
+	public double disconnectProbability = 0;
+	// Chance per partition of the controller going quiet for hangMillis
+	public double hangProbability = 0;
+	public double hangMillis = 120000;
+	// How long until a disconnected controller comes back as a new one, less
+	// than zero for never
+	public double reconnectMillis = 5000;
+	// The controllers take WorkBlockBatches and report the blocks they are
+	// done with together
+	public boolean batches = false;
+	public double timeScale = 1;
+	public long seed = 1;
+	private LoopbackTransport transport;
+	private ScheduledExecutorService clock;
+	private Random random;
+
+	public SyntheticFleet(LoopbackTransport transport) {
+		this.transport = transport;
+	}
+
+	public void start() {
+		random = new Random(seed);
+		clock = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "synthetic-fleet");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (int i = 0; i < controllers; i++) {
+			connect();
+		}
+	}
+
+	public void stop() {
+		clock.shutdownNow();
+	}
+
+	private void connect() {
+		double rate;
+		Random controllerRandom;
+		synchronized (random) {
+			rate = hashRate * (1 + rateSpread * (2 * random.nextDouble() - 1));
+			controllerRandom = new Random(random.nextLong());
+		}
+		deliver(new LocalControllerMessage(new SyntheticController(this, rate, controllerRandom)));
+	}
+
+	/*
+	 * A controller disconnected, bring a new one up later like a restarted
+	 * node would
+	 */
+	void replace(SyntheticController controller) {
+		if (reconnectMillis < 0 || clock.isShutdown()) {
+			return;
+		}
+		clock.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				connect();
+			}
+		}, scale(reconnectMillis * 1000000), TimeUnit.NANOSECONDS);
+	}
+
+	void deliver(Message message) {
+		transport.deliver(message);
+	}
+
+	ScheduledExecutorService getClock() {
+		return clock;
+	}
+
+	/*
+	 * Nanoseconds of real time to wait for a simulated time in nanoseconds
+	 */
+	long scale(double nanos) {
+		return (long) (nanos / timeScale);
+	}
+}
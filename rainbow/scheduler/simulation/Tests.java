@@ -0,0 +1,331 @@
+package rainbow.scheduler.simulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import rainbow.scheduler.application.ActiveQuery;
+import rainbow.scheduler.application.Assignment;
+import rainbow.scheduler.application.CacheDirectory;
+import rainbow.scheduler.application.Controller;
+import rainbow.scheduler.application.HashAlgorithm;
+import rainbow.scheduler.application.HashQuery;
+import rainbow.scheduler.application.LoopbackTransport;
+import rainbow.scheduler.application.SchedulerServer;
+import rainbow.scheduler.application.TargetSet;
+import rainbow.scheduler.application.message.LocalControllerMessage;
+import rainbow.scheduler.application.message.LocalWorkBlockBatchComplete;
+import rainbow.scheduler.application.message.LocalWorkBlockComplete;
+import rainbow.scheduler.application.message.WorkBlockBatch;
+import rainbow.scheduler.application.message.WorkBlockShrink;
+import rainbow.scheduler.partition.Mask;
+import rainbow.scheduler.partition.Partition;
+import rainbow.scheduler.partition.PartitionManager;
+import rainbowpc.Message;
+
+/**
+ *
+ * Runs a real scheduler on the loopback transport with controllers the
+ * test reports for by hand
+ */
+public class Tests {
+
+	/*
+	 * Keeps what it was given and never reports by itself
+	 */
+	private static class SilentController extends Controller {
+
+		List<Assignment> given = Collections.synchronizedList(new ArrayList<Assignment>());
+		List<WorkBlockBatch> batches = Collections.synchronizedList(new ArrayList<WorkBlockBatch>());
+		List<WorkBlockShrink> shrinks = Collections.synchronizedList(new ArrayList<WorkBlockShrink>());
+
+		SilentController() {
+			super(null);
+		}
+
+		@Override
+		protected void send(Message message) {
+			if (message instanceof WorkBlockBatch) {
+				batches.add((WorkBlockBatch) message);
+			} else if (message instanceof WorkBlockShrink) {
+				shrinks.add((WorkBlockShrink) message);
+			}
+		}
+
+		@Override
+		public boolean supportsMasks() {
+			return true;
+		}
+
+		@Override
+		public boolean supportsMultiTarget() {
+			return true;
+		}
+
+		@Override
+		public void synchronize() {
+		}
+
+		@Override
+		public Assignment assignPartition(Partition p, HashQuery query) throws IOException {
+			Assignment assignment = super.assignPartition(p, query);
+			given.add(assignment);
+			return assignment;
+		}
+	}
+
+	/*
+	 * Builds a table when asked and never answers a lookup of it
+	 */
+	private static class CachingController extends SilentController {
+
+		private volatile CacheDirectory.Entry built;
+
+		CachingController() {
+			setCacheCapable(true);
+		}
+
+		@Override
+		public void buildCache(CacheDirectory.Entry entry, String alphabet) {
+			built = entry;
+		}
+	}
+
+	private static List<File> states = new ArrayList<File>();
+
+	/*
+	 * A scheduler with a state directory of its own, so it doesn't recover
+	 * the real scheduler's queries or the ones of the other tests
+	 */
+	private static SchedulerServer newServer() throws IOException {
+		File state = File.createTempFile("test-state", "");
+		state.delete();
+		state.mkdir();
+		states.add(state);
+		System.setProperty("rainbow.scheduler.state", state.getPath());
+		return new SchedulerServer(new LoopbackTransport());
+	}
+
+	private static boolean waitFor(Condition condition) throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			if (condition.holds()) {
+				return true;
+			}
+			Thread.sleep(100);
+		}
+		return false;
+	}
+
+	private interface Condition {
+
+		boolean holds();
+	}
+
+	/*
+	 * A controller that is too slow for its leases is hung once they run out,
+	 * its late report still counts and it gets work again
+	 */
+	public static void testLateReport() throws Exception {
+		System.out.println("Begin test1");
+		SchedulerServer.LEASE_DEFAULT_SECONDS = 1;
+		SchedulerServer.LEASE_TICK_MILLIS = 100;
+		final SchedulerServer server = newServer();
+		server.start();
+		final SilentController controller = new SilentController();
+		server.postMessage(new LocalControllerMessage(controller));
+		server.newQuery(Collections.singletonList(TargetSet.toHex(HashAlgorithm.MD5.digest(""))),
+				Mask.parse("?l?l?l?l?l?l"), HashAlgorithm.MD5);
+		if (!waitFor(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return controller.isHung() && server.getMetrics().getLeasesExpired() > 0;
+			}
+		})) {
+			throw new RuntimeException("The lease never ran out");
+		}
+		final int given = controller.given.size();
+		final Assignment late = controller.given.get(0);
+		final Partition range = late.getPartition();
+		final int queryID = late.getQuery().getQueryID();
+		server.postMessage(new LocalWorkBlockComplete(controller, queryID,
+				range.stringLength, range.startBlockNumber, range.endBlockNumber));
+		if (!waitFor(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return !controller.isHung() && controller.given.size() > given;
+			}
+		})) {
+			throw new RuntimeException("The controller got no work after reporting");
+		}
+		ActiveQuery active = server.getQuery(queryID);
+		if (active.getPartitionManager().getCompleted(range.stringLength).skip(range.startBlockNumber) < range.endBlockNumber) {
+			throw new RuntimeException("The late report of " + range + " was dropped");
+		}
+	}
+
+	/*
+	 * A holder that never answers a lookup doesn't stall the query, the
+	 * lookup's lease runs out and the range is swept instead
+	 */
+	public static void testSilentHolder() throws Exception {
+		System.out.println("Begin test2");
+		SchedulerServer.LEASE_DEFAULT_SECONDS = 600;
+		SchedulerServer.LOOKUP_LEASE_SECONDS = 1;
+		SchedulerServer.LEASE_TICK_MILLIS = 100;
+		final SchedulerServer server = newServer();
+		server.start();
+		final CachingController holder = new CachingController();
+		server.postMessage(new LocalControllerMessage(holder));
+		if (!waitFor(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return holder.built != null;
+			}
+		})) {
+			throw new RuntimeException("The holder was never asked to build a table");
+		}
+		// What the CacheReady handler does
+		Partition table = holder.built.getRange();
+		if (server.getCaches().ready(holder, table.stringLength, table.startBlockNumber, table.endBlockNumber) == null) {
+			throw new RuntimeException("The table of " + table + " was not taken");
+		}
+		server.newQuery(Collections.singletonList(TargetSet.toHex(HashAlgorithm.MD5.digest(""))), null, HashAlgorithm.MD5);
+		if (!waitFor(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return !holder.given.isEmpty();
+			}
+		})) {
+			throw new RuntimeException("The holder got no work");
+		}
+		final int queryID = holder.given.get(0).getQuery().getQueryID();
+		// Sweeps the whole space, the table's range included since it is
+		// swept once the lookup is given up on
+		PartitionManager pm = server.getQuery(queryID).getPartitionManager();
+		for (int length = 1; pm.getMask(length) != null; length++) {
+			server.postMessage(new LocalWorkBlockComplete(holder, queryID, length, 0, pm.getNumberOfBlocks(length)));
+		}
+		if (!waitFor(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return server.getQuery(queryID) == null;
+			}
+		})) {
+			throw new RuntimeException("The query is still waiting on the lookup");
+		}
+	}
+
+	/*
+	 * A controller that takes batches gets the partitions replacing a batch
+	 * of completions in one WorkBlockBatch
+	 */
+	public static void testBatch() throws Exception {
+		System.out.println("Begin test3");
+		SchedulerServer.LEASE_DEFAULT_SECONDS = 600;
+		final SchedulerServer server = newServer();
+		server.start();
+		final SilentController controller = new SilentController();
+		controller.setBatching(true);
+		server.postMessage(new LocalControllerMessage(controller));
+		server.newQuery(Collections.singletonList(TargetSet.toHex(HashAlgorithm.MD5.digest(""))),
+				Mask.parse("?a?a?a?a?a?a?a?a?a"), HashAlgorithm.MD5);
+		if (!waitFor(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return controller.batches.size() == 1;
+			}
+		})) {
+			throw new RuntimeException("The first partitions were not sent as a batch");
+		}
+		WorkBlockBatch first = controller.batches.get(0);
+		List<Partition> done = first.getPartitions();
+		if (done.size() != SchedulerServer.MESSAGES_BUFFERED) {
+			throw new RuntimeException("The first batch has " + done.size() + " partitions");
+		}
+		server.postMessage(new LocalWorkBlockBatchComplete(controller, first.getQueryID(), done));
+		if (!waitFor(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return controller.batches.size() == 2;
+			}
+		})) {
+			throw new RuntimeException("The completed batch was not refilled with a batch");
+		}
+		int refilled = controller.batches.get(1).getPartitions().size();
+		if (refilled != done.size()) {
+			throw new RuntimeException(done.size() + " partitions done were refilled with " + refilled);
+		}
+	}
+
+	/*
+	 * An idle controller at the end of the sweep takes the second half of a
+	 * partition from a remote controller that takes WorkBlockShrink, which is
+	 * told where to stop
+	 */
+	public static void testSplit() throws Exception {
+		System.out.println("Begin test4");
+		SchedulerServer.LEASE_DEFAULT_SECONDS = 600;
+		final SchedulerServer server = newServer();
+		server.start();
+		final SilentController owner = new SilentController();
+		owner.setSplitting(true);
+		server.postMessage(new LocalControllerMessage(owner));
+		// 4 blocks, all of them go to the owner
+		server.newQuery(Collections.singletonList(TargetSet.toHex(HashAlgorithm.MD5.digest(""))),
+				Mask.parse("?l?l?l?l?l?l"), HashAlgorithm.MD5);
+		if (!waitFor(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return owner.given.size() == 2;
+			}
+		})) {
+			throw new RuntimeException("The owner didn't get the whole space");
+		}
+		final SilentController idle = new SilentController();
+		server.postMessage(new LocalControllerMessage(idle));
+		if (!waitFor(new Condition() {
+
+			@Override
+			public boolean holds() {
+				return !idle.given.isEmpty() && !owner.shrinks.isEmpty();
+			}
+		})) {
+			throw new RuntimeException("Nothing was split off for the idle controller");
+		}
+		Partition tail = idle.given.get(0).getPartition();
+		WorkBlockShrink shrink = owner.shrinks.get(0);
+		if (shrink.getStringLength() != tail.stringLength || shrink.getEndBlockNumber() != tail.startBlockNumber) {
+			throw new RuntimeException("The owner stops at " + shrink.getEndBlockNumber() + " and " + tail + " was split off");
+		}
+	}
+
+	public static void main(String[] s) throws Exception {
+		int status = 0;
+		try {
+			testLateReport();
+			testSilentHolder();
+			testBatch();
+			testSplit();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = 1;
+		}
+		for (File state : states) {
+			for (File file : state.listFiles()) {
+				file.delete();
+			}
+			state.delete();
+		}
+		// The scheduler's threads don't stop by themselves
+		System.exit(status);
+	}
+}